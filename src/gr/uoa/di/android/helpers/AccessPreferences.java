@@ -3,17 +3,33 @@ package gr.uoa.di.android.helpers;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Build;
 import android.preference.PreferenceManager;
 
+import gr.uoa.di.android.helpers.files.InputStreamAction;
+import gr.uoa.di.android.helpers.files.OutputStreamAction;
+import gr.uoa.di.android.helpers.files.Reader;
+import gr.uoa.di.android.helpers.files.Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Wrapper around SharedPreferences. See <a
@@ -23,7 +39,15 @@ import java.util.Set;
 public final class AccessPreferences {
 
 	private static final List<Class<?>> CLASSES = new ArrayList<Class<?>>();
-	private static SharedPreferences prefs; // cache
+	private static volatile PrefsStore defaultStore; // cache
+	/** Named stores by file name - the default one included */
+	private static final ConcurrentMap<String, PrefsStore> STORES = new ConcurrentHashMap<String, PrefsStore>();
+	/** Number of shards of sharded stores by name - see setShards() */
+	private static final ConcurrentMap<String, Integer> SHARDS = new ConcurrentHashMap<String, Integer>();
+	/** Backends of stores not kept in xml by name - see setBackend() */
+	private static final ConcurrentMap<String, PrefsBackend> BACKENDS = new ConcurrentHashMap<String, PrefsBackend>();
+	/** Preloads in progress by store name - see preload() */
+	private static final ConcurrentMap<String, Preload> PRELOADS = new ConcurrentHashMap<String, Preload>();
 	static {
 		CLASSES.add(String.class);
 		CLASSES.add(Boolean.class);
@@ -35,21 +59,103 @@ public final class AccessPreferences {
 
 	private AccessPreferences() {}
 
-	private static SharedPreferences getPrefs(Context ctx) {
+	/** The default store - what PreferenceManager gives */
+	private static PrefsStore store(Context ctx) {
 		// synchronized is really needed or volatile is all I need (visibility)
 		// the same instance of SharedPreferences will be returned AFAIC
-		SharedPreferences result = prefs;
-		if (result == null)
+		PrefsStore result = defaultStore;
+		if (result == null) {
+			final String name = defaultName(ctx);
+			awaitPreload(name);
 			synchronized (AccessPreferences.class) {
-				result = prefs;
+				result = defaultStore;
 				if (result == null) {
-					result = prefs = PreferenceManager
-						.getDefaultSharedPreferences(ctx);
+					result = STORES.get(name);
+					if (result == null) result = cache(openDefault(ctx, name));
+					defaultStore = result;
 				}
 			}
+		}
+		return result;
+	}
+
+	// that's the name PreferenceManager uses - the default store is registered
+	// under it so store(ctx, name) for it does not give a second store on the
+	// same file
+	private static String defaultName(Context ctx) {
+		return ctx.getPackageName() + "_preferences";
+	}
+
+	private static PrefsStore openDefault(Context ctx, String name) {
+		return new PrefsStore(name,
+			PreferenceManager.getDefaultSharedPreferences(ctx), setsDir(ctx,
+				name), true);
+	}
+
+	/** Where the journals of the sets of the store are kept */
+	private static File setsDir(Context ctx, String name) {
+		return new File(new File(ctx.getFilesDir(), "prefs-sets"), name);
+	}
+
+	/**
+	 * The named store - lock free once created. One SharedPreferences file per
+	 * name (as given to {@link Context#getSharedPreferences(String, int)} with
+	 * MODE_PRIVATE).
+	 */
+	private static PrefsStore store(Context ctx, String name) {
+		if (name == null)
+			throw new NullPointerException("Null store names are not permitted");
+		PrefsStore result = STORES.get(name);
+		if (result == null) {
+			awaitPreload(name);
+			synchronized (STORES) {
+				result = STORES.get(name);
+				if (result == null) result = cache(open(ctx, name));
+			}
+		}
 		return result;
 	}
 
+	/** Opens a new (uncached) store - use store() instead */
+	private static PrefsStore open(Context ctx, String name) {
+		final Integer shards = SHARDS.get(name);
+		final PrefsBackend backend = backend(name);
+		// the default file may be opened by name first - see defaultName()
+		return new PrefsStore(name, shards == null ? backend.open(ctx, name)
+				: new ShardedPreferences(ctx, name, shards, backend), setsDir(
+			ctx, name), name.equals(defaultName(ctx)));
+	}
+
+	/**
+	 * Caches the store unless one with the same name got there first -
+	 * returns the cached one. Package private for the tests, which cache
+	 * stores of in-memory preferences as they have no Context.
+	 */
+	static PrefsStore cache(PrefsStore st) {
+		synchronized (STORES) {
+			final PrefsStore cached = STORES.get(st.name);
+			if (cached != null) return cached;
+			STORES.put(st.name, st);
+			return st;
+		}
+	}
+
+	/** If the store is open or being opened (preloaded) */
+	private static boolean inUse(String name) {
+		return STORES.containsKey(name) || PRELOADS.containsKey(name);
+	}
+
+	private static PrefsBackend backend(String name) {
+		final PrefsBackend backend = BACKENDS.get(name);
+		return backend == null ? PrefsBackend.XML : backend;
+	}
+
+	/** The store of a typed key */
+	private static PrefsStore store(Context ctx, PrefKey<?> key) {
+		final String name = key.getStore();
+		return name == null ? store(ctx) : store(ctx, name);
+	}
+
 	/**
 	 * Wrapper around {@link android.content.SharedPreferences.Editor}
 	 * {@code put()} methods. Null keys are not permitted. Attempts to insert a
@@ -81,6 +187,20 @@ public final class AccessPreferences {
 	 * put(ctx, FLOAT_KEY, 0.0F); // Correct, always specify you want a Float
 	 * </pre>
 	 *
+	 * A byte, short or char, on the other hand, does not get here : since the
+	 * primitive overloads were added ({@link #put(Context, String, int)} and
+	 * co) the compiler widens them to int and picks put(Context, String, int)
+	 * - so they are stored as an Integer where they used to throw
+	 * IllegalArgumentException. A Byte, Short or Character object still
+	 * throws, as does a byte in {@link #commit(Context, String, Object)} and
+	 * {@link Transaction#put(String, Object)}, which have no int overloads :
+	 *
+	 * <pre>
+	 * put(ctx, INT_KEY, (byte) 1); // stores the Integer 1
+	 * put(ctx, INT_KEY, 'c'); // stores the Integer 99, not a String
+	 * commit(ctx, INT_KEY, (byte) 1); // IllegalArgumentException, a Byte
+	 * </pre>
+	 *
 	 * You will also get an IllegalArgumentException if you are trying to add a
 	 * Set<String> before API 11 (HONEYCOMB). You **can** persist a {@link Set}
 	 * that does not contain Strings using this method, but you are recommended
@@ -117,13 +237,27 @@ public final class AccessPreferences {
 	 * @throws NullPointerException
 	 *             if key is {@code null}
 	 */
-	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
 	public static <T> void put(final Context ctx, final String key,
 			final T value) {
-		final Editor ed = _put(ctx, key, value);
-		if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
-			ed.apply();
-		else ed.commit();
+		put(store(ctx), key, value);
+	}
+
+	private static <T> void put(final PrefsStore st, final String key,
+			final T value) {
+		final long start = PrefsStats.start();
+		try {
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				if (key == null)
+					throw new NullPointerException("Null keys are not permitted");
+				checkPersistable(value);
+				pw.put(key, value);
+				return;
+			}
+			st.apply(_put(st, key, value));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.PUT, start);
+		}
 	}
 
 	/**
@@ -150,16 +284,62 @@ public final class AccessPreferences {
 	 */
 	public static <T> boolean commit(final Context ctx, final String key,
 			final T value) {
-		return _put(ctx, key, value).commit();
+		return commit(store(ctx), key, value);
+	}
+
+	private static <T> boolean commit(final PrefsStore st, final String key,
+			final T value) {
+		return st.commit(commitEditor(st, key, value));
+	}
+
+	/** The editor to commit for a commit() of the value */
+	private static <T> Editor commitEditor(final PrefsStore st,
+			final String key, final T value) {
+		final Editor ed = _put(st, key, value);
+		// this value supersedes any pending one
+		final PendingWrites pw = st.pending;
+		if (pw != null) pw.discard(key);
+		return ed;
+	}
+
+	/**
+	 * Returns a {@link Transaction} - a batch of puts and removes which are
+	 * written to disk together, in one go, when you call
+	 * {@link Transaction#apply()} or {@link Transaction#commit()}. Use it when
+	 * you need to write more than a couple of keys in a row - each
+	 * {@link #put(Context, String, Object)} schedules a rewrite of the whole
+	 * preferences file. So :
+	 *
+	 * <pre>
+	 * AccessPreferences.edit(ctx).put(KEY_1, &quot;a string&quot;).put(KEY_2, 0L)
+	 * 	.remove(KEY_3).apply(); // one disk write
+	 * </pre>
+	 *
+	 * The values are checked exactly as in {@link #put(Context, String, Object)}
+	 * - see there for the caveats.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @return a new Transaction
+	 */
+	@SuppressLint("CommitPrefEdits")
+	public static Transaction edit(final Context ctx) {
+		return new Transaction(store(ctx));
 	}
 
 	@SuppressLint("CommitPrefEdits")
+	private static <T> Editor _put(final PrefsStore st, final String key,
+			final T value) {
+		if (key == null)
+			throw new NullPointerException("Null keys are not permitted");
+		return _put(st.edit(), key, value);
+	}
+
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
-	private static <T> Editor _put(final Context ctx, final String key,
+	static <T> Editor _put(final Editor ed, final String key,
 			final T value) {
 		if (key == null)
 			throw new NullPointerException("Null keys are not permitted");
-		final Editor ed = getPrefs(ctx).edit();
 		if (value == null) {
 			// commit it as that is exactly what the API does (but not for boxed
 			// primitives) - can be retrieved as anything but if you give get()
@@ -194,6 +374,277 @@ public final class AccessPreferences {
 		return ed;
 	}
 
+	/**
+	 * Checks the value could be put in the preferences - same checks as
+	 * {@link #put(Context, String, Object)}.
+	 */
+	private static void checkPersistable(final Object value) {
+		if (value == null) return;
+		for (Class<?> cls : CLASSES) {
+			if (cls.isInstance(value)) {
+				if (cls == Set.class
+					&& android.os.Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+					throw new IllegalArgumentException(
+						"You can add sets in the preferences only after API "
+							+ Build.VERSION_CODES.HONEYCOMB);
+				}
+				return;
+			}
+		}
+		throw new IllegalArgumentException("The given value : " + value
+			+ " cannot be persisted");
+	}
+
+	// =========================================================================
+	// Coalescing mode
+	// =========================================================================
+	/**
+	 * Turns on coalescing mode. In this mode
+	 * {@link #put(Context, String, Object)} does not write to the preferences
+	 * at once - the values are kept in memory and written all together in a
+	 * single apply() {@code windowMillis} after the first of them was put or
+	 * as soon as {@code maxPending} keys are waiting. Puts to the same key in
+	 * the meantime are merged so only the last value is written. Meant for
+	 * keys updated many times per second (counters, timestamps) - each apply()
+	 * rewrites the whole preferences file. Reads (get(), contains(),
+	 * getAll()) see the pending values so nothing changes for them. Pending
+	 * values are also written when the application goes to the background
+	 * (ICE_CREAM_SANDWICH and above) - on older APIs call
+	 * {@link #flush(Context)} in onPause(). Still, pending values are lost if
+	 * the process is killed before they are written - do not use this for
+	 * data you can't afford to lose. commit(), clear(), remove() and
+	 * {@link Transaction}s are not buffered. If coalescing mode is already on
+	 * the pending values are flushed and the new parameters take effect.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param windowMillis
+	 *            how long a put may stay in memory, must be positive
+	 * @param maxPending
+	 *            how many keys may be pending before they are written, must be
+	 *            positive
+	 * @throws IllegalArgumentException
+	 *             if windowMillis or maxPending is not positive
+	 */
+	public static void enableCoalescing(final Context ctx,
+			final long windowMillis, final int maxPending) {
+		enableCoalescing(ctx, store(ctx), windowMillis, maxPending);
+	}
+
+	private static void enableCoalescing(final Context ctx,
+			final PrefsStore st, final long windowMillis, final int maxPending) {
+		if (windowMillis <= 0 || maxPending <= 0)
+			throw new IllegalArgumentException("Illegal window (" + windowMillis
+				+ ") or max pending keys (" + maxPending + ")");
+		synchronized (st) {
+			final PendingWrites old = st.pending;
+			st.pending = new PendingWrites(ctx, st, windowMillis, maxPending);
+			if (old != null) old.close();
+		}
+	}
+
+	/**
+	 * Turns coalescing mode off, writing any pending values. No op if not in
+	 * coalescing mode.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 */
+	public static void disableCoalescing(final Context ctx) {
+		disableCoalescing(store(ctx));
+	}
+
+	private static void disableCoalescing(final PrefsStore st) {
+		synchronized (st) {
+			final PendingWrites old = st.pending;
+			st.pending = null;
+			if (old != null) old.close();
+		}
+	}
+
+	/**
+	 * Writes any values pending in coalescing mode (see
+	 * {@link #enableCoalescing(Context, long, int)}) in a single apply(). No op
+	 * if not in coalescing mode.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 */
+	public static void flush(final Context ctx) {
+		store(ctx).flush();
+	}
+
+	// =========================================================================
+	// Preloading
+	// =========================================================================
+	/**
+	 * Loads the preferences on a background thread - call it as early as
+	 * possible, say in Application#onCreate(). The first access to the
+	 * preferences parses the whole file on the thread that makes it - usually
+	 * the main thread, while the first activity starts. After this call the
+	 * parsing (and the copy of the values get() uses for null defaults) is
+	 * done in the background - a thread that needs the preferences before it
+	 * finishes waits only for what is left of it. No op if the preferences are
+	 * already loaded or being loaded.
+	 *
+	 * @param ctx
+	 *            a context belonging to the application
+	 */
+	public static void preload(Context ctx) {
+		preload(ctx, (PreloadListener) null);
+	}
+
+	/**
+	 * As {@link #preload(Context)} reporting the timings to the given
+	 * listener. Compare the time of the first get() with and without
+	 * preloading to see how much of it was moved off the calling thread.
+	 *
+	 * @param ctx
+	 *            a context belonging to the application
+	 * @param lis
+	 *            the listener, may be null
+	 */
+	public static void preload(Context ctx, PreloadListener lis) {
+		preload(ctx, defaultName(ctx), true, lis);
+	}
+
+	private static void preload(Context ctx, final String name,
+			final boolean isDefault, PreloadListener lis) {
+		if (STORES.containsKey(name)) return; // loaded already
+		// don't keep an activity around while loading
+		final Context app = ctx.getApplicationContext();
+		final Context context = app != null ? app : ctx;
+		preload(name, new Callable<PrefsStore>() {
+
+			@Override
+			public PrefsStore call() {
+				return isDefault ? openDefault(context, name) : open(context,
+					name);
+			}
+		}, lis);
+	}
+
+	/**
+	 * Runs the preload of the named store, opened by opener, unless the store
+	 * is loaded or being loaded. Package private for the tests, which open
+	 * stores of in-memory preferences as they have no Context.
+	 */
+	static void preload(String name, Callable<PrefsStore> opener,
+			PreloadListener lis) {
+		if (STORES.containsKey(name)) return; // loaded already
+		final Preload task = new Preload(name, opener, lis);
+		if (PRELOADS.putIfAbsent(name, task) != null) return;
+		final Thread thread = new Thread(task, "AccessPreferences-preload-"
+			+ name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Blocks until the preload of the named store (if any) is done. If it
+	 * failed the caller will open the store itself - and fail the same way.
+	 */
+	private static void awaitPreload(String name) {
+		final Preload task = PRELOADS.get(name);
+		if (task == null) return;
+		final long start = System.nanoTime();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true; // a get() can't be interrupted
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		if (task.lis != null) task.lis.onWaited(name, System.nanoTime() - start);
+	}
+
+	/**
+	 * Timings of {@link AccessPreferences#preload(Context, PreloadListener)}.
+	 * Meant for measuring startup - keep the implementation cheap.
+	 */
+	public interface PreloadListener {
+
+		/**
+		 * Called on the preloading thread once the store is loaded.
+		 *
+		 * @param store
+		 *            the name of the store
+		 * @param loadNanos
+		 *            how long the loading took
+		 */
+		void onPreloaded(String store, long loadNanos);
+
+		/**
+		 * Called on a thread that needed the store while it was still
+		 * loading, once it is loaded.
+		 *
+		 * @param store
+		 *            the name of the store
+		 * @param waitNanos
+		 *            how long the thread was blocked
+		 */
+		void onWaited(String store, long waitNanos);
+	}
+
+	/**
+	 * Opens the store, builds its snapshot and caches it. Removed from
+	 * PRELOADS once done - by then the store is cached.
+	 */
+	private static final class Preload extends FutureTask<PrefsStore> {
+
+		final String name;
+		final PreloadListener lis;
+
+		Preload(final String name, final Callable<PrefsStore> opener,
+				final PreloadListener lis) {
+			super(new Callable<PrefsStore>() {
+
+				@Override
+				public PrefsStore call() throws Exception {
+					final long start = System.nanoTime();
+					final PrefsStore st = opener.call();
+					st.snapshot(); // waits for the framework to parse the file
+					final PrefsStore cached = cache(st);
+					if (lis != null)
+						lis.onPreloaded(name, System.nanoTime() - start);
+					return cached;
+				}
+			});
+			this.name = name;
+			this.lis = lis;
+		}
+
+		@Override
+		protected void done() {
+			PRELOADS.remove(name, this);
+		}
+	}
+
+	/**
+	 * Mimics the framework for values still pending in coalescing mode - a
+	 * pending null behaves as a missing value and a value of a different type
+	 * than the default results in a ClassCastException. The default must have
+	 * been checked with {@link #checkPersistable(Object)}.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T fromPending(final String key, final Object value,
+			final T defaultValue) {
+		if (value == PendingWrites.NULL) return defaultValue;
+		if (defaultValue == null || defaultValue.getClass() == value.getClass()
+			|| (defaultValue instanceof Set && value instanceof Set))
+			return (T) value;
+		throw new ClassCastException("Value : " + value + " stored for key : "
+			+ key + " is not a " + defaultValue.getClass().getSimpleName());
+	}
+
 	/**
 	 * Wrapper around {@link android.content.SharedPreferences.Editor}
 	 * {@code get()} methods. Null keys are not permitted. Attempts to retrieve
@@ -247,22 +698,51 @@ public final class AccessPreferences {
 	 * @throws NullPointerException
 	 *             if key is {@code null}
 	 */
+	public static <T> T get(final Context ctx, final String key,
+			final T defaultValue) {
+		return get(store(ctx), key, defaultValue);
+	}
+
+	private static <T> T get(final PrefsStore st, final String key,
+			final T defaultValue) {
+		final long start = PrefsStats.start();
+		try {
+			return _get(st, key, defaultValue);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
-	public static <T> T get(final Context ctx, final String key,
+	private static <T> T _get(final PrefsStore st, final String key,
 			final T defaultValue) {
 		if (key == null)
 			throw new NullPointerException("Null keys are not permitted");
+		// in coalescing mode the value may not have reached the prefs yet
+		final PendingWrites pw = st.pending;
+		if (pw != null) {
+			final Object value = pw.get(key);
+			if (value != null) {
+				checkPersistable(defaultValue);
+				return fromPending(key, value, defaultValue);
+			}
+		}
+		// a set edited an element at a time - see addToSet()
+		final Set<String> journaled = st.sets.view(key);
+		if (journaled != null) {
+			checkPersistable(defaultValue);
+			return fromPending(key, journaled, defaultValue);
+		}
 		// if the value provided as defaultValue is null I can't get its class
 		if (defaultValue == null) {
 			// if the key !exist I return null which is both the default value
 			// provided and what Android would do (as in return the default
-			// value - except if boxed primitive..)
-			if (!getPrefs(ctx).contains(key)) return null;
-			// if the key does exist I get the value and..
-			final Object value = getPrefs(ctx).getAll().get(key);
-			// ..if null I return null - here I differ from framework - I return
-			// null for boxed primitives
+			// value - except if boxed primitive..). If it does exist I get the
+			// value from the snapshot (no getAll() copy) and if null I return
+			// null - here I differ from framework - I return null for boxed
+			// primitives
+			final Object value = st.snapshot().get(key);
 			if (value == null) return null;
 			// ..if not null I get the class of the non null value. Here I
 			// differ from framework - I do not throw if the (non null) value is
@@ -300,16 +780,16 @@ public final class AccessPreferences {
 			// that's really Illegal State I guess
 			throw new IllegalStateException("Unknown class for value :\n\t"
 				+ value + "\nstored in preferences");
-		} else if (defaultValue instanceof String) return (T) getPrefs(ctx)
+		} else if (defaultValue instanceof String) return (T) st.prefs
 			.getString(key, (String) defaultValue);
-		else if (defaultValue instanceof Boolean) return (T) (Boolean) getPrefs(
-			ctx).getBoolean(key, (Boolean) defaultValue);
+		else if (defaultValue instanceof Boolean) return (T) (Boolean) st.prefs
+			.getBoolean(key, (Boolean) defaultValue);
 		// the order should not matter
-		else if (defaultValue instanceof Integer) return (T) (Integer) getPrefs(
-			ctx).getInt(key, (Integer) defaultValue);
-		else if (defaultValue instanceof Long) return (T) (Long) getPrefs(ctx)
+		else if (defaultValue instanceof Integer) return (T) (Integer) st.prefs
+			.getInt(key, (Integer) defaultValue);
+		else if (defaultValue instanceof Long) return (T) (Long) st.prefs
 			.getLong(key, (Long) defaultValue);
-		else if (defaultValue instanceof Float) return (T) (Float) getPrefs(ctx)
+		else if (defaultValue instanceof Float) return (T) (Float) st.prefs
 			.getFloat(key, (Float) defaultValue);
 		else if (defaultValue instanceof Set) {
 			if (android.os.Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
@@ -319,113 +799,819 @@ public final class AccessPreferences {
 			}
 			// this set can contain whatever it wants - don't be fooled by the
 			// Set<String> cast
-			return (T) getPrefs(ctx).getStringSet(key,
+			return (T) st.prefs.getStringSet(key,
 				(Set<String>) defaultValue);
 		} else throw new IllegalArgumentException(defaultValue
 			+ " cannot be persisted in SharedPreferences");
 	}
 
+	// =========================================================================
+	// Typed keys - see PrefKey
+	// =========================================================================
 	/**
-	 * Wraps {@link android.content.SharedPreferences#contains(String)}.
+	 * Returns the value stored for the typed key or its default. No type
+	 * checks or lookups at runtime - the key knows its type.
 	 *
 	 * @param ctx
-	 *            the context the SharedPreferences belong to
+	 *            the context the Shared preferences belong to
 	 * @param key
-	 *            the preference's key, must not be {@code null}
-	 * @return true if the preferences contain the given key, false otherwise
+	 *            the typed key, must not be {@code null}
+	 * @return the value stored for key or the key's default
+	 * @throws ClassCastException
+	 *             if the value stored is not of the key's type
 	 * @throws NullPointerException
 	 *             if key is {@code null}
 	 */
-	public static boolean contains(Context ctx, String key) {
-		if (key == null)
-			throw new NullPointerException("Null keys are not permitted");
-		return getPrefs(ctx).contains(key);
+	public static <T> T get(final Context ctx, final PrefKey<T> key) {
+		final long start = PrefsStats.start();
+		try {
+			final PrefsStore st = store(ctx, key);
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				final Object value = pw.get(key.getKey());
+				if (value == PendingWrites.NULL) return key.getDefault();
+				if (value != null) return key.cast(value);
+			}
+			final Set<String> journaled = st.sets.view(key.getKey());
+			if (journaled != null) return key.cast(journaled);
+			return key.read(st.prefs);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
 	}
 
 	/**
-	 * Wraps {@link android.content.SharedPreferences#getAll()}. Since you must
-	 * not modify the collection returned by this method, or alter any of its
-	 * contents, this method returns an <em>unmodifiableMap</em> representing
-	 * the preferences.
+	 * As {@link #put(Context, String, Object)} for a typed key - the value is
+	 * guaranteed by the compiler to be of the right type.
 	 *
 	 * @param ctx
-	 *            the context the SharedPreferences belong to
-	 * @return an <em>unmodifiableMap</em> containing a list of key/value pairs
-	 *         representing the preferences
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the typed key, must not be {@code null}
+	 * @param value
+	 *            the value, may be null
 	 * @throws NullPointerException
-	 *             as per the docs of getAll() - does not say when
+	 *             if key is {@code null}
 	 */
-	public static Map<String, ?> getAll(Context ctx) {
-		return Collections.unmodifiableMap(getPrefs(ctx).getAll());
+	@SuppressLint("CommitPrefEdits")
+	public static <T> void put(final Context ctx, final PrefKey<T> key,
+			final T value) {
+		final long start = PrefsStats.start();
+		try {
+			final PrefsStore st = store(ctx, key);
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				pw.put(key.getKey(), value);
+				return;
+			}
+			final Editor ed = st.edit();
+			key.write(ed, value);
+			st.apply(ed);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.PUT, start);
+		}
 	}
 
 	/**
-	 * Wraps {@link android.content.SharedPreferences.Editor#clear()}. See its
-	 * docs for clarifications. Calls
-	 * {@link android.content.SharedPreferences.Editor#commit()}
+	 * As {@link #commit(Context, String, Object)} for a typed key.
 	 *
 	 * @param ctx
-	 *            the context the SharedPreferences belong to
-	 * @return true if the preferences were successfully cleared, false
-	 *         otherwise
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the typed key, must not be {@code null}
+	 * @param value
+	 *            the value, may be null
+	 * @return true if the commit succeeded, false if not
+	 * @throws NullPointerException
+	 *             if key is {@code null}
 	 */
-	public static boolean clear(Context ctx) {
-		return getPrefs(ctx).edit().clear().commit();
+	public static <T> boolean commit(final Context ctx, final PrefKey<T> key,
+			final T value) {
+		final PrefsStore st = store(ctx, key);
+		return st.commit(commitEditor(st, key, value));
+	}
+
+	private static <T> Editor commitEditor(final PrefsStore st,
+			final PrefKey<T> key, final T value) {
+		final Editor ed = st.edit();
+		key.write(ed, value);
+		final PendingWrites pw = st.pending;
+		if (pw != null) pw.discard(key.getKey());
+		return ed;
 	}
 
+	// =========================================================================
+	// Objects - stored as strings via a Codec
+	// =========================================================================
 	/**
-	 * Wraps {@link android.content.SharedPreferences.Editor#remove(String)}.
-	 * See its docs for clarifications. Calls
-	 * {@link android.content.SharedPreferences.Editor#commit()}.
+	 * Returns the object stored for the key with
+	 * {@link #putObject(Context, String, Object, Codec)} - or any string the
+	 * codec can decode. The decoded object is cached, so as long as the key
+	 * keeps its value repeated calls cost a lookup instead of decoding the
+	 * string again (say parsing JSON). The cached object is dropped when the
+	 * key changes (the change is detected even before the listeners are
+	 * notified). The same instance is returned to all callers - do not mutate
+	 * it, better use immutable types.
 	 *
 	 * @param ctx
-	 *            the context the SharedPreferences belong to
+	 *            the context the Shared preferences belong to
 	 * @param key
 	 *            the preference's key, must not be {@code null}
-	 * @return true if the key was successfully removed, false otherwise
+	 * @param codec
+	 *            the codec, must not be {@code null}. Use the same instance for
+	 *            a key - the cache is per codec instance
+	 * @return the object or null if the key is not there (or is null)
+	 * @throws ClassCastException
+	 *             if the value of the key is not a String
 	 * @throws NullPointerException
-	 *             if key is {@code null}
+	 *             if key or codec is {@code null}
 	 */
-	public static boolean remove(Context ctx, String key) {
+	public static <T> T getObject(final Context ctx, final String key,
+			final Codec<T> codec) {
+		return getObject(store(ctx), key, codec);
+	}
+
+	private static <T> T getObject(final PrefsStore st, final String key,
+			final Codec<T> codec) {
+		final long start = PrefsStats.start();
+		try {
+			return _getObject(st, key, codec);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T _getObject(final PrefsStore st, final String key,
+			final Codec<T> codec) {
+		if (codec == null) throw new NullPointerException("Null codec");
+		final String encoded = getString(st, key);
+		if (encoded == null) return null;
+		T value = (T) st.decoded(key, encoded, codec);
+		if (value == null) {
+			value = codec.decode(encoded);
+			st.cache(key, encoded, codec, value);
+		}
+		return value;
+	}
+
+	/** The String value of the key, pending or not - null if not there */
+	private static String getString(final PrefsStore st, final String key) {
 		if (key == null)
 			throw new NullPointerException("Null keys are not permitted");
-		return getPrefs(ctx).edit().remove(key).commit();
+		final PendingWrites pw = st.pending;
+		if (pw != null) {
+			final Object value = pw.get(key);
+			if (value == PendingWrites.NULL) return null;
+			if (value != null) {
+				if (!(value instanceof String))
+					throw new ClassCastException("Value : " + value
+						+ " stored for key : " + key + " is not a String");
+				return (String) value;
+			}
+		}
+		return st.prefs.getString(key, null);
 	}
 
 	/**
-	 * Wraps
-	 * {@link android.content.SharedPreferences#registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)}
-	 * .
+	 * Encodes the value (once) and puts it as in
+	 * {@link #put(Context, String, Object)}. The value is cached for
+	 * {@link #getObject(Context, String, Codec)} with the same codec, which
+	 * won't decode it.
 	 *
 	 * @param ctx
-	 *            the context the SharedPreferences belong to
-	 * @param lis
-	 *            the listener, must not be null
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the value, null puts a null String
+	 * @param codec
+	 *            the codec, must not be {@code null}
 	 * @throws NullPointerException
-	 *             if lis is {@code null}
+	 *             if key or codec is {@code null}
 	 */
-	public static void registerListener(Context ctx,
-			OnSharedPreferenceChangeListener lis) {
-		if (lis == null) throw new NullPointerException("Null listener");
-		getPrefs(ctx).registerOnSharedPreferenceChangeListener(lis);
+	public static <T> void putObject(final Context ctx, final String key,
+			final T value, final Codec<T> codec) {
+		putObject(store(ctx), key, value, codec);
 	}
 
+	private static <T> void putObject(final PrefsStore st, final String key,
+			final T value, final Codec<T> codec) {
+		if (codec == null) throw new NullPointerException("Null codec");
+		final String encoded = value == null ? null : codec.encode(value);
+		put(st, key, encoded);
+		if (encoded != null) st.cache(key, encoded, codec, value);
+	}
+
+	// =========================================================================
+	// Primitive accessors - no boxing, no instanceof chain
+	// =========================================================================
 	/**
-	 * Wraps
-	 * {@link android.content.SharedPreferences#unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)}
-	 * .
+	 * As {@link #get(Context, String, Object)} for int values but without
+	 * boxing the default or the return value - meant for hot paths. Does not
+	 * allocate (unless the value is still pending in coalescing mode, where it
+	 * is unboxed).
 	 *
 	 * @param ctx
-	 *            the context the SharedPreferences belong to
-	 * @param lis
-	 *            the listener, must not be null
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param defaultValue
+	 *            returned if the key is not present
+	 * @return the int stored for key or defaultValue
+	 * @throws ClassCastException
+	 *             if the value stored for key is not an Integer
 	 * @throws NullPointerException
-	 *             if lis is {@code null}
+	 *             if key is {@code null}
 	 */
-	public static void unregisterListener(Context ctx,
+	public static int getInt(final Context ctx, final String key,
+			final int defaultValue) {
+		return getInt(store(ctx), key, defaultValue);
+	}
+
+	private static int getInt(final PrefsStore st, final String key,
+			final int defaultValue) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				final Object value = pw.get(key);
+				if (value == PendingWrites.NULL) return defaultValue;
+				if (value != null) return (Integer) value;
+			}
+			return st.prefs.getInt(key, defaultValue);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	/**
+	 * As {@link #get(Context, String, Object)} for long values but without
+	 * boxing the default or the return value - meant for hot paths. Does not
+	 * allocate (unless the value is still pending in coalescing mode, where it
+	 * is unboxed).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param defaultValue
+	 *            returned if the key is not present
+	 * @return the long stored for key or defaultValue
+	 * @throws ClassCastException
+	 *             if the value stored for key is not a Long
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static long getLong(final Context ctx, final String key,
+			final long defaultValue) {
+		return getLong(store(ctx), key, defaultValue);
+	}
+
+	private static long getLong(final PrefsStore st, final String key,
+			final long defaultValue) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				final Object value = pw.get(key);
+				if (value == PendingWrites.NULL) return defaultValue;
+				if (value != null) return (Long) value;
+			}
+			return st.prefs.getLong(key, defaultValue);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	/**
+	 * As {@link #get(Context, String, Object)} for float values but without
+	 * boxing the default or the return value - meant for hot paths. Does not
+	 * allocate (unless the value is still pending in coalescing mode, where it
+	 * is unboxed).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param defaultValue
+	 *            returned if the key is not present
+	 * @return the float stored for key or defaultValue
+	 * @throws ClassCastException
+	 *             if the value stored for key is not a Float
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static float getFloat(final Context ctx, final String key,
+			final float defaultValue) {
+		return getFloat(store(ctx), key, defaultValue);
+	}
+
+	private static float getFloat(final PrefsStore st, final String key,
+			final float defaultValue) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				final Object value = pw.get(key);
+				if (value == PendingWrites.NULL) return defaultValue;
+				if (value != null) return (Float) value;
+			}
+			return st.prefs.getFloat(key, defaultValue);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	/**
+	 * As {@link #get(Context, String, Object)} for boolean values but without
+	 * boxing the default or the return value - meant for hot paths. Does not
+	 * allocate (unless the value is still pending in coalescing mode, where it
+	 * is unboxed).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param defaultValue
+	 *            returned if the key is not present
+	 * @return the boolean stored for key or defaultValue
+	 * @throws ClassCastException
+	 *             if the value stored for key is not a Boolean
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static boolean getBoolean(final Context ctx, final String key,
+			final boolean defaultValue) {
+		return getBoolean(store(ctx), key, defaultValue);
+	}
+
+	private static boolean getBoolean(final PrefsStore st, final String key,
+			final boolean defaultValue) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				final Object value = pw.get(key);
+				if (value == PendingWrites.NULL) return defaultValue;
+				if (value != null) return (Boolean) value;
+			}
+			return st.prefs.getBoolean(key, defaultValue);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	/**
+	 * As {@link #put(Context, String, Object)} for int values but without
+	 * boxing (except in coalescing mode where the value must be buffered).
+	 * Also picked for byte, short and char values, widened to int - see
+	 * {@link #put(Context, String, Object)}.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the int to store
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static void put(final Context ctx, final String key,
+			final int value) {
+		put(store(ctx), key, value);
+	}
+
+	private static void put(final PrefsStore st, final String key,
+			final int value) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				pw.put(key, value);
+				return;
+			}
+			st.apply(st.edit().putInt(key, value));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.PUT, start);
+		}
+	}
+
+	/**
+	 * As {@link #put(Context, String, Object)} for long values but without
+	 * boxing (except in coalescing mode where the value must be buffered).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the long to store
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static void put(final Context ctx, final String key,
+			final long value) {
+		put(store(ctx), key, value);
+	}
+
+	private static void put(final PrefsStore st, final String key,
+			final long value) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				pw.put(key, value);
+				return;
+			}
+			st.apply(st.edit().putLong(key, value));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.PUT, start);
+		}
+	}
+
+	/**
+	 * As {@link #put(Context, String, Object)} for float values but without
+	 * boxing (except in coalescing mode where the value must be buffered).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the float to store
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static void put(final Context ctx, final String key,
+			final float value) {
+		put(store(ctx), key, value);
+	}
+
+	private static void put(final PrefsStore st, final String key,
+			final float value) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				pw.put(key, value);
+				return;
+			}
+			st.apply(st.edit().putFloat(key, value));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.PUT, start);
+		}
+	}
+
+	/**
+	 * As {@link #put(Context, String, Object)} for boolean values but without
+	 * boxing (except in coalescing mode where the value must be buffered).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the boolean to store
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static void put(final Context ctx, final String key,
+			final boolean value) {
+		put(store(ctx), key, value);
+	}
+
+	private static void put(final PrefsStore st, final String key,
+			final boolean value) {
+		final long start = PrefsStats.start();
+		try {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			final PendingWrites pw = st.pending;
+			if (pw != null) {
+				pw.put(key, value);
+				return;
+			}
+			st.apply(st.edit().putBoolean(key, value));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.PUT, start);
+		}
+	}
+
+	/**
+	 * Wraps {@link android.content.SharedPreferences#contains(String)}.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @return true if the preferences contain the given key, false otherwise
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static boolean contains(Context ctx, String key) {
+		return contains(store(ctx), key);
+	}
+
+	private static boolean contains(PrefsStore st, String key) {
+		final long start = PrefsStats.start();
+		try {
+			return _contains(st, key);
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	private static boolean _contains(PrefsStore st, String key) {
+		if (key == null)
+			throw new NullPointerException("Null keys are not permitted");
+		final PendingWrites pw = st.pending;
+		if (pw != null) {
+			final Object value = pw.get(key);
+			// whether a null value is contained depends on the API level - ask
+			if (value == PendingWrites.NULL) pw.flush();
+			else if (value != null) return true;
+		}
+		return st.sets.view(key) != null || st.prefs.contains(key);
+	}
+
+	/**
+	 * Wraps {@link android.content.SharedPreferences#getAll()}. Since you must
+	 * not modify the collection returned by this method, or alter any of its
+	 * contents, this method returns an <em>unmodifiableMap</em> representing
+	 * the preferences.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @return an <em>unmodifiableMap</em> containing a list of key/value pairs
+	 *         representing the preferences
+	 * @throws NullPointerException
+	 *             as per the docs of getAll() - does not say when
+	 */
+	public static Map<String, ?> getAll(Context ctx) {
+		return getAll(store(ctx));
+	}
+
+	private static Map<String, ?> getAll(PrefsStore st) {
+		final long start = PrefsStats.start();
+		try {
+			st.flush(); // no-op if nothing is pending
+			return Collections.unmodifiableMap(st.sets.overlay(st.prefs
+				.getAll()));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.GET, start);
+		}
+	}
+
+	/**
+	 * Wraps {@link android.content.SharedPreferences.Editor#clear()}. See its
+	 * docs for clarifications. Calls
+	 * {@link android.content.SharedPreferences.Editor#commit()}
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @return true if the preferences were successfully cleared, false
+	 *         otherwise
+	 */
+	public static boolean clear(Context ctx) {
+		return clear(store(ctx));
+	}
+
+	@SuppressLint("CommitPrefEdits")
+	private static boolean clear(PrefsStore st) {
+		final long start = PrefsStats.start();
+		try {
+			return st.commit(clearEditor(st));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.CLEAR, start);
+		}
+	}
+
+	private static Editor clearEditor(PrefsStore st) {
+		final PendingWrites pw = st.pending;
+		if (pw != null) pw.discardAll();
+		// clear() does not notify the listeners (before API 30 at least) but
+		// commit() invalidates the snapshot anyway
+		return st.edit().clear();
+	}
+
+	/**
+	 * Wraps {@link android.content.SharedPreferences.Editor#remove(String)}.
+	 * See its docs for clarifications. Calls
+	 * {@link android.content.SharedPreferences.Editor#commit()}.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @return true if the key was successfully removed, false otherwise
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static boolean remove(Context ctx, String key) {
+		return remove(store(ctx), key);
+	}
+
+	@SuppressLint("CommitPrefEdits")
+	private static boolean remove(PrefsStore st, String key) {
+		final long start = PrefsStats.start();
+		try {
+			return st.commit(removeEditor(st, key));
+		} finally {
+			PrefsStats.end(PrefsStats.Op.REMOVE, start);
+		}
+	}
+
+	private static Editor removeEditor(PrefsStore st, String key) {
+		if (key == null)
+			throw new NullPointerException("Null keys are not permitted");
+		final PendingWrites pw = st.pending;
+		if (pw != null) pw.discard(key);
+		return st.edit().remove(key);
+	}
+
+	// =========================================================================
+	// Asynchronous commits
+	// =========================================================================
+	// commit() blocks until the file is written (and synced) - the methods
+	// below do the same on a background thread, one per store, and return at
+	// once. The commits of a store run in the order they were called, one at
+	// a time. The values are checked (and the exceptions thrown) on the calling
+	// thread. Until a commit runs get() returns the previous value - use
+	// put() (apply()) if you need to read your writes at once and don't need
+	// the result.
+	// While async commits of a store are queued its other writes (put(),
+	// commit(), remove(), a Transaction...) are queued behind them, so the
+	// last write wins as it would without async commits : commitAsync(k, 2)
+	// then put(k, 3) leaves 3. Such a put() returns before its value is
+	// visible to get() though, and such a commit() waits for the queued
+	// commits - get() the future first if you need to read your own writes.
+	// Set edits (addToSet() etc) wait for the queued writes.
+	/**
+	 * As {@link #commit(Context, String, Object)} on a background thread.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            an instance of String, Boolean, Integer, Long, Float or
+	 *            Set<String> (for API >= HONEYCOMB)
+	 * @return a future giving the result of the commit
+	 * @throws IllegalArgumentException
+	 *             see {@link #put(Context, String, Object)}
+	 * @throws NullPointerException
+	 *             if key is {@code null}
+	 */
+	public static <T> Future<Boolean> commitAsync(final Context ctx,
+			final String key, final T value) {
+		final PrefsStore st = store(ctx);
+		return st.commitAsync(commitEditor(st, key, value));
+	}
+
+	/** As {@link #commit(Context, PrefKey, Object)} on a background thread. */
+	public static <T> Future<Boolean> commitAsync(final Context ctx,
+			final PrefKey<T> key, final T value) {
+		final PrefsStore st = store(ctx, key);
+		return st.commitAsync(commitEditor(st, key, value));
+	}
+
+	/** As {@link #clear(Context)} on a background thread. */
+	public static Future<Boolean> clearAsync(Context ctx) {
+		final PrefsStore st = store(ctx);
+		return st.commitAsync(clearEditor(st));
+	}
+
+	/** As {@link #remove(Context, String)} on a background thread. */
+	public static Future<Boolean> removeAsync(Context ctx, String key) {
+		final PrefsStore st = store(ctx);
+		return st.commitAsync(removeEditor(st, key));
+	}
+
+	/**
+	 * Wraps
+	 * {@link android.content.SharedPreferences#registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)}
+	 * .
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param lis
+	 *            the listener, must not be null
+	 * @throws NullPointerException
+	 *             if lis is {@code null}
+	 */
+	public static void registerListener(Context ctx,
+			OnSharedPreferenceChangeListener lis) {
+		if (lis == null) throw new NullPointerException("Null listener");
+		store(ctx).prefs.registerOnSharedPreferenceChangeListener(lis);
+	}
+
+	/**
+	 * Registers the listener for the given keys only. All the key listeners
+	 * of the preferences sit behind a single framework listener and are
+	 * indexed by key - so a change wakes only the listeners of the key that
+	 * changed, while listeners registered with
+	 * {@link #registerListener(Context, OnSharedPreferenceChangeListener)}
+	 * are all called for every change and have to compare the key
+	 * themselves. Called on the thread the framework notifies on (the main
+	 * thread for the framework's preferences). Registering a listener again
+	 * for a key it is registered for is a no op.
+	 *
+	 * Unlike the framework, which holds its listeners weakly, the listener is
+	 * strongly referenced until you call
+	 * {@link #unregisterListener(Context, OnSharedPreferenceChangeListener)}
+	 * - do call it (in onPause() or onDestroy() for an activity) or it will
+	 * leak.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param lis
+	 *            the listener, must not be null
+	 * @param keys
+	 *            the keys to listen to, must not be null
+	 * @throws NullPointerException
+	 *             if lis or any of the keys is {@code null}
+	 */
+	public static void registerListener(Context ctx,
+			OnSharedPreferenceChangeListener lis, String... keys) {
+		registerListener(store(ctx), null, lis, keys);
+	}
+
+	/**
+	 * As {@link #registerListener(Context, OnSharedPreferenceChangeListener,
+	 * String...)} delivering the changes on the executor. Changes of a key
+	 * that come in while the previous change of the same key is still queued
+	 * are merged - the listener is called once, and reads the latest value.
+	 * So with an executor posting to the main thread's Handler a counter
+	 * updated many times per frame wakes the listener once per frame. The
+	 * key passed is the one that changed, the value must be read when the
+	 * listener runs.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param executor
+	 *            where to deliver the changes, must not be null
+	 * @param lis
+	 *            the listener, must not be null
+	 * @param keys
+	 *            the keys to listen to, must not be null
+	 * @throws NullPointerException
+	 *             if executor, lis or any of the keys is {@code null}
+	 */
+	public static void registerListener(Context ctx, Executor executor,
+			OnSharedPreferenceChangeListener lis, String... keys) {
+		if (executor == null) throw new NullPointerException("Null executor");
+		registerListener(store(ctx), executor, lis, keys);
+	}
+
+	private static void registerListener(PrefsStore st, Executor executor,
+			OnSharedPreferenceChangeListener lis, String... keys) {
+		if (lis == null) throw new NullPointerException("Null listener");
+		for (String key : keys) {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+		}
+		st.keyListeners.register(lis, executor, keys);
+	}
+
+	/**
+	 * Wraps
+	 * {@link android.content.SharedPreferences#unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)}
+	 * . Unregisters the listener from all the keys it was registered for with
+	 * {@link #registerListener(Context, OnSharedPreferenceChangeListener, String...)}
+	 * too.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param lis
+	 *            the listener, must not be null
+	 * @throws NullPointerException
+	 *             if lis is {@code null}
+	 */
+	public static void unregisterListener(Context ctx,
+			OnSharedPreferenceChangeListener lis) {
+		unregisterListener(store(ctx), lis);
+	}
+
+	private static void unregisterListener(PrefsStore st,
 			OnSharedPreferenceChangeListener lis) {
 		if (lis == null) throw new NullPointerException("Null listener");
-		getPrefs(ctx).unregisterOnSharedPreferenceChangeListener(lis);
+		st.prefs.unregisterOnSharedPreferenceChangeListener(lis);
+		st.keyListeners.unregister(lis);
 	}
 
 	/**
@@ -448,7 +1634,630 @@ public final class AccessPreferences {
 		if (lis == null) throw new NullPointerException("Null listener");
 		if (key == null)
 			throw new NullPointerException("Null keys are not permitted");
-		lis.onSharedPreferenceChanged(getPrefs(ctx), key);
+		lis.onSharedPreferenceChanged(store(ctx).prefs, key);
+	}
+
+	// =========================================================================
+	// Sets edited an element at a time
+	// =========================================================================
+	/**
+	 * Adds the value to the Set<String> of the key (creating it if needed)
+	 * without rewriting the whole set. put() of a set copies it and rewrites
+	 * it (as all of the preferences file) so adding an element to a set of
+	 * thousands costs thousands. Here the set is kept hashed in memory and the
+	 * added values are appended to a small journal file next to the
+	 * preferences. Once the journal gets as big as the set, the set is written
+	 * to the preferences in one go and the journal is deleted - so the cost
+	 * per element stays constant. get(), contains(), getAll() and
+	 * {@link #exportTo(Context, File)} see the current set, and put(),
+	 * remove() or clear() of the key replace it as usual. Changes are written
+	 * to the journal at once, not synced - they survive the process but not
+	 * necessarily a power cut. The journal is deleted only once the set it was
+	 * folded into is on disk (a commit on the store's I/O thread waits for
+	 * that). get() returns a live view of the set - it shows the later adds
+	 * and removes. Do not edit the set bypassing AccessPreferences (via a
+	 * PreferenceActivity etc).
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the value to add, must not be {@code null}
+	 * @return true if the set changed
+	 * @throws ClassCastException
+	 *             if the value of the key is not a set
+	 * @throws IllegalArgumentException
+	 *             before HONEYCOMB API
+	 * @throws NullPointerException
+	 *             if key or value is {@code null}
+	 */
+	public static boolean addToSet(Context ctx, String key, String value) {
+		return editSet(store(ctx), true, key, Collections.singleton(value));
+	}
+
+	/**
+	 * As {@link #addToSet(Context, String, String)} for all the values - the
+	 * set is written at most once.
+	 */
+	public static boolean addToSet(Context ctx, String key,
+			Collection<String> values) {
+		return editSet(store(ctx), true, key, values);
+	}
+
+	/**
+	 * Removes the value from the Set<String> of the key without rewriting the
+	 * whole set - see {@link #addToSet(Context, String, String)}.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the value to remove, must not be {@code null}
+	 * @return true if the set changed
+	 * @throws ClassCastException
+	 *             if the value of the key is not a set
+	 * @throws IllegalArgumentException
+	 *             before HONEYCOMB API
+	 * @throws NullPointerException
+	 *             if key or value is {@code null}
+	 */
+	public static boolean removeFromSet(Context ctx, String key, String value) {
+		return editSet(store(ctx), false, key, Collections.singleton(value));
+	}
+
+	/**
+	 * As {@link #removeFromSet(Context, String, String)} for all the values -
+	 * the set is written at most once.
+	 */
+	public static boolean removeFromSet(Context ctx, String key,
+			Collection<String> values) {
+		return editSet(store(ctx), false, key, values);
+	}
+
+	/**
+	 * Returns true if the Set<String> of the key contains the value - a hash
+	 * lookup, no copy of the set. See
+	 * {@link #addToSet(Context, String, String)}.
+	 *
+	 * @param ctx
+	 *            the context the Shared preferences belong to
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param value
+	 *            the value to look for, must not be {@code null}
+	 * @return true if the set of the key contains the value, false if not or
+	 *         if the key is not there
+	 * @throws ClassCastException
+	 *             if the value of the key is not a set
+	 * @throws IllegalArgumentException
+	 *             before HONEYCOMB API
+	 * @throws NullPointerException
+	 *             if key or value is {@code null}
+	 */
+	public static boolean setContains(Context ctx, String key, String value) {
+		return setContains(store(ctx), key, value);
+	}
+
+	private static boolean editSet(PrefsStore st, boolean add, String key,
+			Collection<String> values) {
+		checkSetKey(st, key);
+		for (String value : values) {
+			if (value == null)
+				throw new NullPointerException(
+					"Null set elements are not permitted");
+		}
+		return add ? st.sets.add(key, values) : st.sets.remove(key, values);
+	}
+
+	private static boolean setContains(PrefsStore st, String key, String value) {
+		checkSetKey(st, key);
+		if (value == null)
+			throw new NullPointerException("Null set elements are not permitted");
+		return st.sets.contains(key, value);
+	}
+
+	/**
+	 * Throws as the framework would if the key is not a set and makes sure a
+	 * value pending in coalescing mode, or queued behind an async commit, is
+	 * written first.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void checkSetKey(PrefsStore st, String key) {
+		if (key == null)
+			throw new NullPointerException("Null keys are not permitted");
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+			throw new IllegalArgumentException(
+				"You can add sets in the preferences only after API "
+					+ Build.VERSION_CODES.HONEYCOMB);
+		final PendingWrites pw = st.pending;
+		if (pw != null && pw.get(key) != null) pw.flush();
+		// set edits are not editors that could be queued - wait instead
+		st.awaitQueued();
+		if (st.sets.view(key) == null) st.prefs.getStringSet(key, null); // CCE
+	}
+
+	// =========================================================================
+	// Backup
+	// =========================================================================
+	/**
+	 * Writes all the preferences to the file in a compact typed binary format
+	 * - read it back with {@link #importFrom(Context, File, boolean)}. The
+	 * entries are streamed to the file straight from the copy of the
+	 * preferences get() keeps anyway, without building any other copy of them
+	 * (or a string of them) in memory - so writes made while exporting may or
+	 * may not make it to the file. Values pending in coalescing mode are
+	 * written first. The file is truncated if it exists.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param file
+	 *            the file to write to, must not be {@code null}
+	 * @return the number of entries written
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public static int exportTo(Context ctx, File file) throws IOException {
+		return exportTo(store(ctx), file);
+	}
+
+	private static int exportTo(PrefsStore st, File file) throws IOException {
+		st.flush();
+		st.sets.compactAll();
+		final Map<String, ?> entries = st.snapshot();
+		final int[] count = new int[1];
+		Writer.write(file, new OutputStreamAction() {
+
+			@Override
+			public void useStream(OutputStream stream) throws IOException {
+				count[0] = PrefsBackup.write(entries, stream);
+			}
+		}, false);
+		return count[0];
+	}
+
+	/**
+	 * Reads the preferences written by {@link #exportTo(Context, File)} and
+	 * commits them all in a single edit - so either all of them are written or
+	 * none is (if the file is corrupt or truncated). In a sharded store the
+	 * edit is committed a shard at a time, so a failed commit may leave some
+	 * shards imported and some not - see {@link #setShards(String, int)}.
+	 * The entries are put into the editor as they are read. Values pending in
+	 * coalescing mode for the imported keys are overwritten.
+	 *
+	 * @param ctx
+	 *            the context the SharedPreferences belong to
+	 * @param file
+	 *            the file to read, must not be {@code null}
+	 * @param replace
+	 *            if true the preferences are cleared first, otherwise the
+	 *            imported entries are added to the existing ones
+	 * @return the number of entries imported
+	 * @throws IOException
+	 *             if the file can't be read or is not a backup or the commit
+	 *             failed
+	 * @throws IllegalArgumentException
+	 *             if the backup contains sets and the API is before HONEYCOMB
+	 */
+	public static int importFrom(Context ctx, File file, boolean replace)
+			throws IOException {
+		return importFrom(store(ctx), file, replace);
+	}
+
+	private static int importFrom(PrefsStore st, File file,
+			final boolean replace) throws IOException {
+		final Editor ed = st.edit();
+		if (replace) ed.clear();
+		final long length = file.length();
+		final int count = Reader.read(file, new InputStreamAction<Integer>() {
+
+			@Override
+			public Integer useStream(InputStream stream) throws IOException {
+				return PrefsBackup.read(stream, length, ed);
+			}
+		});
+		// so they don't overwrite the imported values later
+		if (replace) {
+			final PendingWrites pw = st.pending;
+			if (pw != null) pw.discardAll();
+		} else st.flush();
+		if (!st.commit(ed)) throw new IOException("Failed to commit " + file);
+		return count;
+	}
+
+	// =========================================================================
+	// Named stores
+	// =========================================================================
+	// Each store is a separate SharedPreferences file (what
+	// Context#getSharedPreferences(name, MODE_PRIVATE) gives), cached on first
+	// use. Every write rewrites the whole file so keep small hot keys apart from
+	// big rarely written ones. Each store has its own snapshot and coalescing
+	// mode. The methods below are the same as the ones above except they take
+	// the name of the store - see there for the details.
+	/**
+	 * As {@link #get(Context, String, Object)} for the named store.
+	 *
+	 * @throws NullPointerException
+	 *             if store or key is {@code null}
+	 */
+	public static <T> T get(final Context ctx, final String store,
+			final String key, final T defaultValue) {
+		return get(store(ctx, store), key, defaultValue);
+	}
+
+	/**
+	 * As {@link #put(Context, String, Object)} for the named store.
+	 *
+	 * @throws NullPointerException
+	 *             if store or key is {@code null}
+	 */
+	public static <T> void put(final Context ctx, final String store,
+			final String key, final T value) {
+		put(store(ctx, store), key, value);
+	}
+
+	/**
+	 * As {@link #commit(Context, String, Object)} for the named store.
+	 *
+	 * @throws NullPointerException
+	 *             if store or key is {@code null}
+	 */
+	public static <T> boolean commit(final Context ctx, final String store,
+			final String key, final T value) {
+		return commit(store(ctx, store), key, value);
+	}
+
+	/** As {@link #commitAsync(Context, String, Object)} for the named store. */
+	public static <T> Future<Boolean> commitAsync(final Context ctx,
+			final String store, final String key, final T value) {
+		final PrefsStore st = store(ctx, store);
+		return st.commitAsync(commitEditor(st, key, value));
+	}
+
+	/** As {@link #clearAsync(Context)} for the named store. */
+	public static Future<Boolean> clearAsync(Context ctx, String store) {
+		final PrefsStore st = store(ctx, store);
+		return st.commitAsync(clearEditor(st));
+	}
+
+	/** As {@link #removeAsync(Context, String)} for the named store. */
+	public static Future<Boolean> removeAsync(Context ctx, String store,
+			String key) {
+		final PrefsStore st = store(ctx, store);
+		return st.commitAsync(removeEditor(st, key));
+	}
+
+	/**
+	 * As {@link #edit(Context)} for the named store.
+	 *
+	 * @throws NullPointerException
+	 *             if store is {@code null}
+	 */
+	public static Transaction edit(final Context ctx, final String store) {
+		return new Transaction(store(ctx, store));
+	}
+
+	/** As {@link #getInt(Context, String, int)} for the named store. */
+	public static int getInt(final Context ctx, final String store,
+			final String key, final int defaultValue) {
+		return getInt(store(ctx, store), key, defaultValue);
+	}
+
+	/** As {@link #getLong(Context, String, long)} for the named store. */
+	public static long getLong(final Context ctx, final String store,
+			final String key, final long defaultValue) {
+		return getLong(store(ctx, store), key, defaultValue);
+	}
+
+	/** As {@link #getFloat(Context, String, float)} for the named store. */
+	public static float getFloat(final Context ctx, final String store,
+			final String key, final float defaultValue) {
+		return getFloat(store(ctx, store), key, defaultValue);
+	}
+
+	/** As {@link #getBoolean(Context, String, boolean)} for the named store. */
+	public static boolean getBoolean(final Context ctx, final String store,
+			final String key, final boolean defaultValue) {
+		return getBoolean(store(ctx, store), key, defaultValue);
+	}
+
+	/** As {@link #put(Context, String, int)} for the named store. */
+	public static void put(final Context ctx, final String store,
+			final String key, final int value) {
+		put(store(ctx, store), key, value);
+	}
+
+	/** As {@link #put(Context, String, long)} for the named store. */
+	public static void put(final Context ctx, final String store,
+			final String key, final long value) {
+		put(store(ctx, store), key, value);
+	}
+
+	/** As {@link #put(Context, String, float)} for the named store. */
+	public static void put(final Context ctx, final String store,
+			final String key, final float value) {
+		put(store(ctx, store), key, value);
+	}
+
+	/** As {@link #put(Context, String, boolean)} for the named store. */
+	public static void put(final Context ctx, final String store,
+			final String key, final boolean value) {
+		put(store(ctx, store), key, value);
+	}
+
+	/** As {@link #contains(Context, String)} for the named store. */
+	public static boolean contains(Context ctx, String store, String key) {
+		return contains(store(ctx, store), key);
+	}
+
+	/** As {@link #getAll(Context)} for the named store. */
+	public static Map<String, ?> getAll(Context ctx, String store) {
+		return getAll(store(ctx, store));
+	}
+
+	/** As {@link #clear(Context)} for the named store. */
+	public static boolean clear(Context ctx, String store) {
+		return clear(store(ctx, store));
+	}
+
+	/** As {@link #remove(Context, String)} for the named store. */
+	public static boolean remove(Context ctx, String store, String key) {
+		return remove(store(ctx, store), key);
+	}
+
+	/**
+	 * As {@link #enableCoalescing(Context, long, int)} for the named store.
+	 */
+	public static void enableCoalescing(final Context ctx, final String store,
+			final long windowMillis, final int maxPending) {
+		enableCoalescing(ctx, store(ctx, store), windowMillis, maxPending);
+	}
+
+	/** As {@link #disableCoalescing(Context)} for the named store. */
+	public static void disableCoalescing(final Context ctx, final String store) {
+		disableCoalescing(store(ctx, store));
+	}
+
+	/** As {@link #flush(Context)} for the named store. */
+	public static void flush(final Context ctx, final String store) {
+		store(ctx, store).flush();
+	}
+
+	/** As {@link #getObject(Context, String, Codec)} for the named store. */
+	public static <T> T getObject(final Context ctx, final String store,
+			final String key, final Codec<T> codec) {
+		return getObject(store(ctx, store), key, codec);
+	}
+
+	/**
+	 * As {@link #putObject(Context, String, Object, Codec)} for the named
+	 * store.
+	 */
+	public static <T> void putObject(final Context ctx, final String store,
+			final String key, final T value, final Codec<T> codec) {
+		putObject(store(ctx, store), key, value, codec);
+	}
+
+	/** As {@link #addToSet(Context, String, String)} for the named store. */
+	public static boolean addToSet(Context ctx, String store, String key,
+			String value) {
+		return editSet(store(ctx, store), true, key, Collections
+			.singleton(value));
+	}
+
+	/** As {@link #addToSet(Context, String, Collection)} for the named store. */
+	public static boolean addToSet(Context ctx, String store, String key,
+			Collection<String> values) {
+		return editSet(store(ctx, store), true, key, values);
+	}
+
+	/**
+	 * As {@link #removeFromSet(Context, String, String)} for the named store.
+	 */
+	public static boolean removeFromSet(Context ctx, String store, String key,
+			String value) {
+		return editSet(store(ctx, store), false, key, Collections
+			.singleton(value));
+	}
+
+	/**
+	 * As {@link #removeFromSet(Context, String, Collection)} for the named
+	 * store.
+	 */
+	public static boolean removeFromSet(Context ctx, String store, String key,
+			Collection<String> values) {
+		return editSet(store(ctx, store), false, key, values);
+	}
+
+	/** As {@link #setContains(Context, String, String)} for the named store. */
+	public static boolean setContains(Context ctx, String store, String key,
+			String value) {
+		return setContains(store(ctx, store), key, value);
+	}
+
+	/** As {@link #exportTo(Context, File)} for the named store. */
+	public static int exportTo(Context ctx, String store, File file)
+			throws IOException {
+		return exportTo(store(ctx, store), file);
+	}
+
+	/** As {@link #importFrom(Context, File, boolean)} for the named store. */
+	public static int importFrom(Context ctx, String store, File file,
+			boolean replace) throws IOException {
+		return importFrom(store(ctx, store), file, replace);
+	}
+
+	/** As {@link #preload(Context)} for the named store. */
+	public static void preload(Context ctx, String store) {
+		preload(ctx, store, null);
+	}
+
+	/**
+	 * As {@link #preload(Context, PreloadListener)} for the named store. Call
+	 * it after {@link #setShards(String, int)} and
+	 * {@link #setBackend(String, PrefsBackend)} if you use them.
+	 */
+	public static void preload(Context ctx, String store, PreloadListener lis) {
+		if (store == null)
+			throw new NullPointerException("Null store names are not permitted");
+		preload(ctx, store, false, lis);
+	}
+
+	/**
+	 * As {@link #registerListener(Context, OnSharedPreferenceChangeListener)}
+	 * for the named store.
+	 */
+	public static void registerListener(Context ctx, String store,
+			OnSharedPreferenceChangeListener lis) {
+		if (lis == null) throw new NullPointerException("Null listener");
+		store(ctx, store).prefs.registerOnSharedPreferenceChangeListener(lis);
+	}
+
+	/**
+	 * As {@link #unregisterListener(Context, OnSharedPreferenceChangeListener)}
+	 * for the named store.
+	 */
+	public static void unregisterListener(Context ctx, String store,
+			OnSharedPreferenceChangeListener lis) {
+		unregisterListener(store(ctx, store), lis);
+	}
+
+	/**
+	 * As
+	 * {@link #registerListener(Context, OnSharedPreferenceChangeListener, String...)}
+	 * for the named store.
+	 */
+	public static void registerListener(Context ctx, String store,
+			OnSharedPreferenceChangeListener lis, String... keys) {
+		registerListener(store(ctx, store), null, lis, keys);
+	}
+
+	/**
+	 * As
+	 * {@link #registerListener(Context, Executor, OnSharedPreferenceChangeListener, String...)}
+	 * for the named store.
+	 */
+	public static void registerListener(Context ctx, String store,
+			Executor executor, OnSharedPreferenceChangeListener lis,
+			String... keys) {
+		if (executor == null) throw new NullPointerException("Null executor");
+		registerListener(store(ctx, store), executor, lis, keys);
+	}
+
+	/**
+	 * Spreads the keys of the named store over {@code shards} files. Android
+	 * rewrites the whole preferences file on every write - in a sharded store
+	 * a write only rewrites the files of the keys it changed, so with N shards
+	 * roughly 1/N of the data. Keys are assigned to shards by the hash of their
+	 * namespace - the part of the key before the first ':' - or of the whole key
+	 * if they contain no ':'. So keys named "sync:last", "sync:count" live in
+	 * the same file and are written together. Apart from that the store behaves
+	 * exactly as an unsharded one - getAll() merges the shards. The shards are
+	 * the files {@code store-0} to {@code store-(shards-1)}.
+	 *
+	 * Except for atomicity : a write changing keys of several shards - a
+	 * {@link Transaction}, a clear, an {@link #importFrom(Context, File,
+	 * boolean)} - is a write per shard, one after the other. If the process
+	 * dies in between, or the commit of a shard fails (commit() then returns
+	 * false, having written the others), some shards have the new values and
+	 * some the old ones. Keys that must change together should share a
+	 * namespace.
+	 *
+	 * Must be called before the store is first used in this process (say in
+	 * Application#onCreate()) and always with the same number of shards - the
+	 * keys are not moved if it changes, so they will be effectively lost. A
+	 * sharded store does not see the keys of an unsharded store of the same
+	 * name (and vice versa). The default preferences can't be sharded.
+	 *
+	 * @param store
+	 *            the name of the store, must not be {@code null}
+	 * @param shards
+	 *            the number of files, must be positive
+	 * @throws IllegalArgumentException
+	 *             if shards is not positive
+	 * @throws IllegalStateException
+	 *             if the store is already in use with a different number of
+	 *             shards
+	 * @throws NullPointerException
+	 *             if store is {@code null}
+	 */
+	public static void setShards(String store, int shards) {
+		if (store == null)
+			throw new NullPointerException("Null store names are not permitted");
+		if (shards <= 0)
+			throw new IllegalArgumentException("Illegal number of shards : "
+				+ shards);
+		synchronized (STORES) { // so no one opens the store meanwhile
+			final Integer current = SHARDS.get(store);
+			if (inUse(store)
+				&& (current == null ? 1 : current) != shards)
+				throw new IllegalStateException("Store " + store
+					+ " is already in use");
+			if (shards == 1) SHARDS.remove(store);
+			else SHARDS.put(store, shards);
+		}
+	}
+
+	/**
+	 * Sets where the values of the named store are kept - by default in the
+	 * framework's xml files ({@link PrefsBackend#XML}). For instance
+	 * {@link LogPreferences#BACKEND} keeps them in an append only log, where a
+	 * write appends a few bytes instead of rewriting the whole file. The rest
+	 * of the API works the same whatever the backend. Sharded stores (see
+	 * {@link #setShards(String, int)}) use the backend for each shard.
+	 *
+	 * Must be called before the store is first used in this process and
+	 * always with the same backend - existing values are not moved to the new
+	 * backend. The backend of the default preferences can't be changed.
+	 *
+	 * @param store
+	 *            the name of the store, must not be {@code null}
+	 * @param backend
+	 *            the backend, must not be {@code null}
+	 * @throws IllegalStateException
+	 *             if the store is already in use with another backend
+	 * @throws NullPointerException
+	 *             if store or backend is {@code null}
+	 */
+	public static void setBackend(String store, PrefsBackend backend) {
+		if (store == null)
+			throw new NullPointerException("Null store names are not permitted");
+		if (backend == null) throw new NullPointerException("Null backend");
+		synchronized (STORES) { // so no one opens the store meanwhile
+			if (inUse(store) && backend(store) != backend)
+				throw new IllegalStateException("Store " + store
+					+ " is already in use");
+			if (backend == PrefsBackend.XML) BACKENDS.remove(store);
+			else BACKENDS.put(store, backend);
+		}
+	}
+
+	/**
+	 * Returns the size on disk of the named store - for the default backend
+	 * the size of the xml file rewritten on every write (of all the shard
+	 * files for a sharded store). See {@link PrefsBackend#sizeOf(Context,
+	 * String)}.
+	 *
+	 * @param ctx
+	 *            a context belonging to the application
+	 * @param store
+	 *            the name of the store, must not be {@code null}
+	 * @return the length of the file in bytes or 0 if it is not (yet) written
+	 * @throws NullPointerException
+	 *             if store is {@code null}
+	 */
+	public static long sizeOf(Context ctx, String store) {
+		if (store == null)
+			throw new NullPointerException("Null store names are not permitted");
+		final PrefsBackend backend = backend(store);
+		final Integer shards = SHARDS.get(store);
+		if (shards == null) return backend.sizeOf(ctx, store);
+		long size = 0;
+		for (int i = 0; i < shards; ++i) {
+			size += backend.sizeOf(ctx, ShardedPreferences.shardName(store, i));
+		}
+		return size;
 	}
 
 	/**
@@ -470,4 +2279,115 @@ public final class AccessPreferences {
 		final Set<String> stringSet = (Set<String>) set;
 		return stringSet;
 	}
+
+	/**
+	 * A batch of edits on the preferences, obtained via
+	 * {@link AccessPreferences#edit(Context)}. Wraps a single
+	 * {@link android.content.SharedPreferences.Editor} so all the edits end up
+	 * in a single disk write - in a sharded store one per shard the edits
+	 * touch, which are not atomic together (see
+	 * {@link AccessPreferences#setShards(String, int)}). Not thread safe - as
+	 * the Editor it wraps.
+	 */
+	public static final class Transaction {
+
+		private final PrefsStore st;
+		private final Editor ed;
+
+		@SuppressLint("CommitPrefEdits")
+		private Transaction(PrefsStore st) {
+			this.st = st;
+			this.ed = st.edit();
+		}
+
+		/**
+		 * Adds a put to this transaction. Same rules as
+		 * {@link AccessPreferences#put(Context, String, Object)}.
+		 *
+		 * @param key
+		 *            the preference's key, must not be {@code null}
+		 * @param value
+		 *            an instance of String, Boolean, Integer, Long, Float or
+		 *            Set<String> (for API >= HONEYCOMB)
+		 * @return this transaction
+		 * @throws IllegalArgumentException
+		 *             if the value is not an instance of String, Boolean,
+		 *             Integer, Long, Float or Set<String> OR if you try to add
+		 *             a Set<String> _before_ HONEYCOMB API
+		 * @throws NullPointerException
+		 *             if key is {@code null}
+		 */
+		public <T> Transaction put(final String key, final T value) {
+			_put(ed, key, value);
+			return this;
+		}
+
+		/**
+		 * Adds a put of a typed key to this transaction.
+		 *
+		 * @param key
+		 *            the typed key, must not be {@code null}
+		 * @param value
+		 *            the value, may be null
+		 * @return this transaction
+		 * @throws IllegalArgumentException
+		 *             if the key belongs to another store
+		 * @throws NullPointerException
+		 *             if key is {@code null}
+		 */
+		public <T> Transaction put(final PrefKey<T> key, final T value) {
+			final String store = key.getStore();
+			if (store == null ? !st.isDefault : !store.equals(st.name))
+				throw new IllegalArgumentException("Key " + key
+					+ " does not belong to store " + st.name);
+			key.write(ed, value);
+			return this;
+		}
+
+		/**
+		 * Adds a remove to this transaction.
+		 *
+		 * @param key
+		 *            the preference's key, must not be {@code null}
+		 * @return this transaction
+		 * @throws NullPointerException
+		 *             if key is {@code null}
+		 */
+		public Transaction remove(final String key) {
+			if (key == null)
+				throw new NullPointerException("Null keys are not permitted");
+			ed.remove(key);
+			return this;
+		}
+
+		/**
+		 * Writes the batch - asynchronously in Gingerbread and above. See
+		 * {@link AccessPreferences#put(Context, String, Object)}.
+		 */
+		public void apply() {
+			st.flush(); // so they don't overwrite this batch later
+			st.apply(ed);
+		}
+
+		/**
+		 * Writes the batch synchronously.
+		 *
+		 * @return true if the commit succeeded, false if not
+		 */
+		public boolean commit() {
+			st.flush();
+			return st.commit(ed);
+		}
+
+		/**
+		 * Writes the batch on a background thread - see
+		 * {@link AccessPreferences#commitAsync(Context, String, Object)}.
+		 *
+		 * @return a future giving the result of the commit
+		 */
+		public Future<Boolean> commitAsync() {
+			st.flush();
+			return st.commitAsync(ed);
+		}
+	}
 }
@@ -0,0 +1,33 @@
+package gr.uoa.di.android.helpers;
+
+/**
+ * Converts objects to and from the strings they are stored as in the
+ * preferences - see {@link AccessPreferences#getObject(android.content.Context,
+ * String, Codec)}. Keep one instance per type (as a constant) - the decoded
+ * objects are cached per key and codec instance.
+ *
+ * @param <T>
+ *            the type of the objects
+ */
+public interface Codec<T> {
+
+	/**
+	 * Encodes the value.
+	 *
+	 * @param value
+	 *            the value, never null
+	 * @return the string to store, must not be null
+	 */
+	String encode(T value);
+
+	/**
+	 * Decodes a string returned by {@link #encode(Object)}.
+	 *
+	 * @param encoded
+	 *            the stored string, never null
+	 * @return the value
+	 * @throws IllegalArgumentException
+	 *             (or any RuntimeException) if the string can't be decoded
+	 */
+	T decode(String encoded);
+}
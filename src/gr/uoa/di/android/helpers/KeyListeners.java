@@ -0,0 +1,119 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * The listeners of a {@link PrefsStore} registered for specific keys, indexed
+ * by key - so a change wakes only the listeners of the key that changed
+ * instead of every listener registered with the framework. Fed by the single
+ * framework listener of the store. Registering and unregistering lock, the
+ * dispatch does not.
+ */
+final class KeyListeners {
+
+	private final ConcurrentMap<String, List<Registration>> byKey = new ConcurrentHashMap<String, List<Registration>>();
+
+	/** Registers lis for the keys - a key it is already registered for is skipped */
+	synchronized void register(OnSharedPreferenceChangeListener lis,
+			Executor executor, String... keys) {
+		final Registration reg = new Registration(lis, executor);
+		for (String key : keys) {
+			List<Registration> regs = byKey.get(key);
+			if (regs == null) {
+				regs = new CopyOnWriteArrayList<Registration>();
+				byKey.put(key, regs);
+			} else if (find(regs, lis) != null) continue;
+			regs.add(reg);
+		}
+	}
+
+	/** Unregisters lis from all the keys it is registered for */
+	synchronized void unregister(OnSharedPreferenceChangeListener lis) {
+		for (Map.Entry<String, List<Registration>> e : byKey.entrySet()) {
+			final List<Registration> regs = e.getValue();
+			final Registration reg = find(regs, lis);
+			if (reg == null) continue;
+			regs.remove(reg);
+			if (regs.isEmpty()) byKey.remove(e.getKey());
+		}
+	}
+
+	private static Registration find(List<Registration> regs,
+			OnSharedPreferenceChangeListener lis) {
+		for (Registration reg : regs) {
+			if (reg.lis == lis) return reg;
+		}
+		return null;
+	}
+
+	/**
+	 * Notifies the listeners of the key. A null key (the framework passes one
+	 * on clear() in recent APIs) notifies every listener once.
+	 */
+	void dispatch(SharedPreferences sp, String key) {
+		if (key != null) {
+			final List<Registration> regs = byKey.get(key);
+			if (regs == null) return;
+			for (Registration reg : regs) {
+				reg.deliver(sp, key);
+			}
+			return;
+		}
+		final Set<OnSharedPreferenceChangeListener> seen = new LinkedHashSet<OnSharedPreferenceChangeListener>();
+		for (List<Registration> regs : byKey.values()) {
+			for (Registration reg : regs) {
+				if (seen.add(reg.lis)) reg.deliver(sp, null);
+			}
+		}
+	}
+
+	/**
+	 * A listener and where to deliver to it. When delivered on an executor
+	 * changes of a key that come in before the previous change of the same
+	 * key was delivered are merged - the listener is called once.
+	 */
+	private static final class Registration {
+
+		final OnSharedPreferenceChangeListener lis;
+		private final Executor executor; // null : on the notifying thread
+		/** Keys with a delivery queued on the executor */
+		private final ConcurrentMap<String, Boolean> queued;
+
+		Registration(OnSharedPreferenceChangeListener lis, Executor executor) {
+			this.lis = lis;
+			this.executor = executor;
+			this.queued = executor == null ? null
+					: new ConcurrentHashMap<String, Boolean>();
+		}
+
+		void deliver(final SharedPreferences sp, final String key) {
+			if (executor == null) {
+				lis.onSharedPreferenceChanged(sp, key);
+				return;
+			}
+			// a null key can't go in the map - it is rare anyway
+			if (key != null && queued.putIfAbsent(key, Boolean.TRUE) != null)
+				return;
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					// remove first so a change while the listener runs is
+					// delivered again
+					if (key != null) queued.remove(key);
+					lis.onSharedPreferenceChanged(sp, key);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,800 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * SharedPreferences kept in an append only log of typed records in a memory
+ * mapped file, instead of an xml file which the framework rewrites as a whole
+ * on every write. A put appends a record, a remove appends a tombstone and an
+ * in memory index points to the latest record for each key - values are
+ * decoded from the log on first read. Once dead (overwritten or removed)
+ * records take more space than the live ones the log is compacted on a
+ * background thread - the live records are copied to a new file which then
+ * replaces the log. Loading is a single mmap plus a scan of the records. Each
+ * record carries a CRC32 so a record torn by a crash is dropped on the next
+ * load, along with anything after it.
+ *
+ * Differences from the framework's SharedPreferences :
+ * <ul>
+ * <li>commit() forces the changes to disk (msync) while apply() only writes to
+ * the mapping and leaves it to the OS.</li>
+ * <li>listeners are called synchronously, on the thread that wrote, not on the
+ * main thread.</li>
+ * <li>putting null removes the key (as the framework does in recent APIs).
+ * clear() does not notify the listeners.</li>
+ * <li>one process only - there is no MODE_MULTI_PROCESS.</li>
+ * </ul>
+ *
+ * Depends on nothing of Android except the SharedPreferences interface, so it
+ * can be used (and tested) on a plain JVM via {@link #open(File)}. Use it with
+ * AccessPreferences via
+ * {@code AccessPreferences.setBackend(store, LogPreferences.BACKEND)}.
+ */
+public final class LogPreferences implements SharedPreferences {
+
+	/** Keeps the logs in {@code files/prefs/} in internal storage */
+	public static final PrefsBackend BACKEND = new PrefsBackend() {
+
+		@Override
+		public SharedPreferences open(Context ctx, String name) {
+			final File file = file(ctx, name);
+			try {
+				return LogPreferences.open(file);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't open " + file, e);
+			}
+		}
+
+		@Override
+		public long sizeOf(Context ctx, String name) {
+			return file(ctx, name).length();
+		}
+
+		private File file(Context ctx, String name) {
+			return new File(new File(ctx.getFilesDir(), DIR), name + SUFFIX);
+		}
+	};
+	private static final String DIR = "prefs";
+	private static final String SUFFIX = ".log";
+	private static final String CHARSET = "UTF-8";
+	private static final int MAGIC = 0x41504c31; // APL1
+	private static final int HEADER = 4;
+	/** int length + int crc */
+	private static final int RECORD_HEADER = 8;
+	private static final int PAGE = 4096;
+	private static final int MIN_CAPACITY = 16 * PAGE;
+	/** Don't bother compacting logs with less dead bytes than this */
+	private static final int MIN_DEAD_TO_COMPACT = 16 * PAGE;
+	// record types
+	private static final byte STRING = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte INTEGER = 3;
+	private static final byte LONG = 4;
+	private static final byte FLOAT = 5;
+	private static final byte STRING_SET = 6;
+	private static final byte REMOVE = 7;
+	private static final byte CLEAR = 8;
+	/** One instance per file, as the framework does */
+	private static final Map<String, LogPreferences> OPEN = new HashMap<String, LogPreferences>();
+	private static final ExecutorService COMPACTOR = Executors
+		.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "LogPreferences-compact");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	/** The compactions queued or running - for awaitCompactions() */
+	private static final AtomicInteger COMPACTIONS = new AtomicInteger();
+	private final File file;
+	private final Map<String, Record> index = new HashMap<String, Record>();
+	private final Map<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+	// guarded by this
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	/** Where the next record goes */
+	private int end;
+	private int liveBytes;
+	private int deadBytes;
+	private boolean compactionPending;
+
+	private LogPreferences(File file) throws IOException {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * Returns the preferences kept in the given file - creating it if needed.
+	 * The same instance is returned for the same file.
+	 *
+	 * @param file
+	 *            the log file
+	 * @return the preferences
+	 * @throws IOException
+	 *             if the file can't be created or read or is not a log
+	 */
+	public static LogPreferences open(File file) throws IOException {
+		final String path = file.getCanonicalPath();
+		synchronized (OPEN) {
+			LogPreferences result = OPEN.get(path);
+			if (result == null) {
+				final File dir = file.getParentFile();
+				if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Can not create folder " + dir);
+				result = new LogPreferences(file);
+				OPEN.put(path, result);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Waits till no compaction is queued or running - the ones queued by a
+	 * compaction for the records appended while it copied included. Package
+	 * private for the tests.
+	 */
+	static void awaitCompactions() throws InterruptedException {
+		while (COMPACTIONS.get() > 0) {
+			try {
+				COMPACTOR.submit(new Runnable() {
+
+					@Override
+					public void run() {}
+				}).get();
+			} catch (ExecutionException e) {
+				throw new AssertionError(e); // an empty task
+			}
+		}
+	}
+
+	// =========================================================================
+	// SharedPreferences
+	// =========================================================================
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		final Map<String, Object> all = new HashMap<String, Object>();
+		for (Map.Entry<String, Record> e : index.entrySet()) {
+			all.put(e.getKey(), value(e.getValue()));
+		}
+		return all;
+	}
+
+	@Override
+	public synchronized String getString(String key, String defValue) {
+		final String v = (String) value(key);
+		return v != null ? v : defValue;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public synchronized Set<String> getStringSet(String key,
+			Set<String> defValues) {
+		final Set<String> v = (Set<String>) value(key);
+		return v != null ? v : defValues;
+	}
+
+	@Override
+	public synchronized int getInt(String key, int defValue) {
+		final Integer v = (Integer) value(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized long getLong(String key, long defValue) {
+		final Long v = (Long) value(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized float getFloat(String key, float defValue) {
+		final Float v = (Float) value(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		final Boolean v = (Boolean) value(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new LogEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(
+			OnSharedPreferenceChangeListener listener) {
+		synchronized (listeners) {
+			listeners.put(listener, this);
+		}
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(
+			OnSharedPreferenceChangeListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	// =========================================================================
+	// The log
+	// =========================================================================
+	/** Maps the file and builds the index - dropping a torn tail if any */
+	private void load() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		final long length = raf.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException(file + " is too big");
+		map(Math.max(MIN_CAPACITY, roundUp((int) length)));
+		if (length == 0) {
+			map.putInt(0, MAGIC);
+			end = HEADER;
+			return;
+		}
+		if (map.getInt(0) != MAGIC) throw new IOException(file + " is not a log");
+		int pos = HEADER;
+		int len = 0;
+		final CRC32 crc = new CRC32();
+		while (pos + RECORD_HEADER <= length) {
+			len = map.getInt(pos);
+			if (len <= 0 || pos + RECORD_HEADER + len > length) break;
+			if (crc(crc, pos + RECORD_HEADER, len) != map.getInt(pos + 4)) break;
+			replay(pos, RECORD_HEADER + len);
+			pos += RECORD_HEADER + len;
+			len = 0;
+		}
+		end = pos;
+		if (len != 0) {
+			// zero what is left of a torn record so it won't be mistaken for
+			// a record after the next append
+			final long tornEnd = len < 0 ? length : Math.min(length, (long) end
+				+ RECORD_HEADER + len);
+			for (int i = end; i < tornEnd; ++i) {
+				map.put(i, (byte) 0);
+			}
+		}
+	}
+
+	/** Updates the index for the record read at offset while loading */
+	private void replay(int offset, int length) {
+		final byte type = map.get(offset + RECORD_HEADER);
+		if (type == CLEAR) {
+			deadBytes += liveBytes + length;
+			liveBytes = 0;
+			index.clear();
+			return;
+		}
+		final String key = key(offset);
+		if (type == REMOVE) {
+			final Record old = index.remove(key);
+			if (old != null) kill(old);
+			deadBytes += length;
+		} else {
+			final Record old = index.put(key, new Record(offset, length));
+			if (old != null) kill(old);
+			liveBytes += length;
+		}
+	}
+
+	private void kill(Record rec) {
+		liveBytes -= rec.length;
+		deadBytes += rec.length;
+	}
+
+	/**
+	 * Encodes the body of a record - value must be null for REMOVE and CLEAR.
+	 * Does not touch the log.
+	 */
+	private static byte[] encode(byte type, String key, Object value)
+			throws UnsupportedEncodingException {
+		final byte[] keyBytes = key == null ? new byte[0] : bytes(key);
+		if (keyBytes.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Key too long : " + key);
+		final ByteBuffer body = ByteBuffer.allocate(1 + 2 + keyBytes.length
+			+ valueLength(type, value));
+		body.put(type).putShort((short) keyBytes.length).put(keyBytes);
+		switch (type) {
+		case STRING:
+			putBytes(body, bytes((String) value));
+			break;
+		case BOOLEAN:
+			body.put((byte) ((Boolean) value ? 1 : 0));
+			break;
+		case INTEGER:
+			body.putInt((Integer) value);
+			break;
+		case LONG:
+			body.putLong((Long) value);
+			break;
+		case FLOAT:
+			body.putFloat((Float) value);
+			break;
+		case STRING_SET:
+			final Set<?> set = (Set<?>) value;
+			body.putInt(set.size());
+			for (Object s : set) {
+				putBytes(body, bytes((String) s));
+			}
+			break;
+		}
+		return body.array();
+	}
+
+	/**
+	 * Appends a record with the given body - the caller must have made room
+	 * for it (plus a zero int after it so the log stays terminated). Returns
+	 * the new record.
+	 */
+	private Record append(byte[] body, Object value) {
+		final int len = body.length;
+		final CRC32 crc = new CRC32();
+		crc.update(body);
+		final int offset = end;
+		map.position(offset + RECORD_HEADER);
+		map.put(body);
+		map.putInt(offset + 4, (int) crc.getValue());
+		map.putInt(offset, len); // last - a zero length means end of log
+		end += RECORD_HEADER + len;
+		PrefsStats.recordBytes(RECORD_HEADER + len);
+		final Record rec = new Record(offset, RECORD_HEADER + len);
+		rec.value = value;
+		return rec;
+	}
+
+	private static int valueLength(byte type, Object value)
+			throws UnsupportedEncodingException {
+		switch (type) {
+		case STRING:
+			return 4 + bytes((String) value).length;
+		case BOOLEAN:
+			return 1;
+		case INTEGER:
+		case FLOAT:
+			return 4;
+		case LONG:
+			return 8;
+		case STRING_SET:
+			int length = 4;
+			for (Object s : (Set<?>) value) {
+				if (!(s instanceof String))
+					throw new ClassCastException("The set for key contains "
+						+ s + " which is not a String");
+				length += 4 + bytes((String) s).length;
+			}
+			return length;
+		default: // REMOVE, CLEAR
+			return 0;
+		}
+	}
+
+	private static byte typeOf(Object value) {
+		if (value instanceof String) return STRING;
+		if (value instanceof Boolean) return BOOLEAN;
+		if (value instanceof Integer) return INTEGER;
+		if (value instanceof Long) return LONG;
+		if (value instanceof Float) return FLOAT;
+		if (value instanceof Set) return STRING_SET;
+		throw new IllegalArgumentException("The given value : " + value
+			+ " cannot be persisted");
+	}
+
+	private Object value(String key) {
+		final Record rec = index.get(key);
+		return rec == null ? null : value(rec);
+	}
+
+	/** Decodes the value of the record - once, then it is cached */
+	private Object value(Record rec) {
+		if (rec.value != null) return rec.value;
+		final ByteBuffer buf = map.duplicate();
+		buf.position(rec.offset + RECORD_HEADER);
+		final byte type = buf.get();
+		final short keyLength = buf.getShort();
+		buf.position(buf.position() + keyLength); // skip the key
+		switch (type) {
+		case STRING:
+			rec.value = getString(buf);
+			break;
+		case BOOLEAN:
+			rec.value = buf.get() != 0;
+			break;
+		case INTEGER:
+			rec.value = buf.getInt();
+			break;
+		case LONG:
+			rec.value = buf.getLong();
+			break;
+		case FLOAT:
+			rec.value = buf.getFloat();
+			break;
+		case STRING_SET:
+			final int size = buf.getInt();
+			final Set<String> set = new HashSet<String>(size * 2);
+			for (int i = 0; i < size; ++i) {
+				set.add(getString(buf));
+			}
+			rec.value = Collections.unmodifiableSet(set);
+			break;
+		default:
+			throw new IllegalStateException("Corrupted log " + file
+				+ " at offset " + rec.offset);
+		}
+		return rec.value;
+	}
+
+	private String key(int offset) {
+		final ByteBuffer buf = map.duplicate();
+		buf.position(offset + RECORD_HEADER + 1);
+		final byte[] bytes = new byte[buf.getShort()];
+		buf.get(bytes);
+		return string(bytes);
+	}
+
+	/**
+	 * Applies the edits - clear first, as the framework does. Returns the keys
+	 * that changed. All the records are encoded and room is made for them
+	 * before the first is appended, so the batch is applied whole or not at
+	 * all - an exception leaves the log and the index as they were.
+	 */
+	private synchronized List<String> write(boolean clear,
+			Map<String, Object> edits, boolean force) throws IOException {
+		final boolean clearing = clear && !index.isEmpty();
+		final byte[] clearBody = clearing ? encode(CLEAR, null, null) : null;
+		int total = clearing ? RECORD_HEADER + clearBody.length : 0;
+		final List<String> changed = new ArrayList<String>();
+		final List<byte[]> bodies = new ArrayList<byte[]>();
+		for (Map.Entry<String, Object> e : edits.entrySet()) {
+			final String key = e.getKey();
+			final Object value = e.getValue();
+			final Record old = clearing ? null : index.get(key);
+			final byte[] body;
+			if (value == null) {
+				if (old == null) continue;
+				body = encode(REMOVE, key, null);
+			} else {
+				if (old != null && value.equals(value(old))) continue;
+				body = encode(typeOf(value), key, value);
+			}
+			changed.add(key);
+			bodies.add(body);
+			total += RECORD_HEADER + body.length;
+		}
+		// the records plus a zero int after them so the log stays terminated
+		ensureCapacity(end + total + 4);
+		if (clearing) {
+			final Record rec = append(clearBody, null);
+			deadBytes += liveBytes + rec.length;
+			liveBytes = 0;
+			index.clear();
+		}
+		for (int i = 0; i < changed.size(); ++i) {
+			final String key = changed.get(i);
+			final Object value = edits.get(key);
+			final Record old = index.get(key);
+			final Record rec = append(bodies.get(i), value);
+			if (value == null) {
+				deadBytes += rec.length;
+				kill(old);
+				index.remove(key);
+			} else {
+				liveBytes += rec.length;
+				if (old != null) kill(old);
+				index.put(key, rec);
+			}
+		}
+		if (force) map.force();
+		compactIfNeeded();
+		return changed;
+	}
+
+	/** Queues a compaction if too much of the log is dead - holding the lock */
+	private void compactIfNeeded() {
+		if (!compactionPending && deadBytes > MIN_DEAD_TO_COMPACT
+			&& deadBytes > liveBytes) {
+			compactionPending = true;
+			COMPACTIONS.incrementAndGet();
+			COMPACTOR.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						compact(); // may queue the next one
+					} finally {
+						COMPACTIONS.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Copies the live records to a new file which replaces the log. The lock
+	 * is held only to list the live records and, once they are copied and
+	 * forced to disk, to copy the records appended meanwhile and swap the
+	 * files - so writers are not blocked by the bulk of the copy or the
+	 * fsync. The records appended meanwhile are copied as they are (removes
+	 * and clears included) so replaying the new log gives the current index.
+	 * Records are never modified once appended so the copy needs no lock.
+	 */
+	private void compact() {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final List<Record> live;
+		final ByteBuffer src;
+		final int copied; // the end of the log when the live records were listed
+		synchronized (this) {
+			live = new ArrayList<Record>(index.values());
+			src = map.duplicate(); // valid even if remapped meanwhile
+			copied = end;
+		}
+		boolean compacted = false;
+		try {
+			final Map<Record, Integer> offsets = new HashMap<Record, Integer>();
+			final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.setLength(0);
+				final FileChannel channel = out.getChannel();
+				final ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC).flip();
+				write(channel, header);
+				int pos = HEADER;
+				for (Record rec : live) { // only this thread moves records
+					src.limit(rec.offset + rec.length).position(rec.offset);
+					write(channel, src);
+					offsets.put(rec, pos);
+					pos += rec.length;
+				}
+				channel.force(true);
+				synchronized (this) {
+					final ByteBuffer tail = map.duplicate();
+					tail.limit(end).position(copied);
+					final int length = pos + tail.remaining();
+					if (tail.hasRemaining()) {
+						write(channel, tail);
+						channel.force(true);
+					}
+					out.close();
+					if (!tmp.renameTo(file))
+						throw new IOException("Can't rename " + tmp + " to "
+							+ file);
+					raf.close();
+					raf = new RandomAccessFile(file, "rw");
+					map(Math.max(MIN_CAPACITY, roundUp(length + length / 2)));
+					for (Record rec : index.values()) {
+						final Integer moved = offsets.get(rec);
+						rec.offset = moved != null ? moved : rec.offset - copied
+							+ pos;
+					}
+					end = length;
+					// whatever is not live - records killed while copying
+					deadBytes = end - HEADER - liveBytes;
+					compacted = true;
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// the old log is intact - try again on a next write
+			tmp.delete();
+		} finally {
+			synchronized (this) {
+				compactionPending = false;
+				// the records appended while copying may be mostly dead - not
+				// after a failure though, it would likely fail again at once
+				if (compacted) compactIfNeeded();
+			}
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buf)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private void ensureCapacity(int needed) throws IOException {
+		if (needed <= map.capacity()) return;
+		// the old mapping is released when collected - can't unmap in Java
+		map(roundUp(Math.max(needed, map.capacity() * 2)));
+	}
+
+	private void map(int capacity) throws IOException {
+		map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private static int roundUp(int size) {
+		return (size + PAGE - 1) / PAGE * PAGE;
+	}
+
+	private int crc(CRC32 crc, int offset, int length) {
+		crc.reset();
+		final ByteBuffer buf = map.duplicate();
+		buf.position(offset);
+		final byte[] bytes = new byte[length];
+		buf.get(bytes);
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	private void notifyListeners(List<String> keys) {
+		if (keys.isEmpty()) return;
+		final List<OnSharedPreferenceChangeListener> copy;
+		synchronized (listeners) {
+			if (listeners.isEmpty()) return;
+			copy = new ArrayList<OnSharedPreferenceChangeListener>(
+				listeners.keySet());
+		}
+		for (String key : keys) {
+			for (OnSharedPreferenceChangeListener lis : copy) {
+				lis.onSharedPreferenceChanged(this, key);
+			}
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private static void putBytes(ByteBuffer buf, byte[] bytes) {
+		buf.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		final byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return string(bytes);
+	}
+
+	private static byte[] bytes(String s) throws UnsupportedEncodingException {
+		return s.getBytes(CHARSET);
+	}
+
+	private static String string(byte[] bytes) {
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always there
+		}
+	}
+
+	/** Where the latest value of a key lives in the log */
+	private static final class Record {
+
+		int offset; // changes on compaction
+		final int length; // header included
+		Object value; // decoded lazily
+
+		Record(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final class LogEditor implements Editor {
+
+		private final Map<String, Object> edits = new HashMap<String, Object>();
+		private boolean clear;
+
+		@Override
+		public Editor putString(String key, String value) {
+			synchronized (this) {
+				edits.put(key, value);
+			}
+			return this;
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			synchronized (this) {
+				edits.put(key, values == null ? null : Collections
+					.unmodifiableSet(new HashSet<String>(values)));
+			}
+			return this;
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			synchronized (this) {
+				edits.put(key, value);
+			}
+			return this;
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			synchronized (this) {
+				edits.put(key, value);
+			}
+			return this;
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			synchronized (this) {
+				edits.put(key, value);
+			}
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			synchronized (this) {
+				edits.put(key, value);
+			}
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key) {
+			synchronized (this) {
+				edits.put(key, null);
+			}
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			synchronized (this) {
+				clear = true;
+			}
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			return write(true);
+		}
+
+		@Override
+		public void apply() {
+			write(false);
+		}
+
+		private boolean write(boolean force) {
+			final List<String> changed;
+			synchronized (this) {
+				try {
+					changed = LogPreferences.this.write(clear, edits, force);
+				} catch (IOException e) {
+					return false;
+				} finally {
+					clear = false;
+					edits.clear();
+				}
+			}
+			notifyListeners(changed);
+			return true;
+		}
+	}
+}
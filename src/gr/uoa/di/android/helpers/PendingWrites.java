@@ -0,0 +1,201 @@
+package gr.uoa.di.android.helpers;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences.Editor;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Buffer of puts waiting to be written to the preferences - used by
+ * {@link AccessPreferences} in coalescing mode. Puts to the same key are merged
+ * (last one wins) and written together in a single apply() once the window
+ * elapses or the buffer fills up, or when the application goes to the
+ * background (API >= ICE_CREAM_SANDWICH). Reads must look here first.
+ * Writes that supersede pending values (commit(), remove(), clear()) must
+ * discard them first - which waits for a flush in progress, so the flush
+ * can't write its copy of a value after them.
+ */
+final class PendingWrites {
+
+	/** Stands for a null value, as ConcurrentHashMap won't take nulls */
+	static final Object NULL = new Object();
+	private final ConcurrentMap<String, Object> buffer = new ConcurrentHashMap<String, Object>();
+	private final PrefsStore store;
+	private final Context appCtx;
+	private final long windowMillis;
+	private final int maxPending;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	/** A flush was requested and has not started yet */
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final ScheduledExecutorService flusher = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "AccessPreferences-flush-"
+					+ store.name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			scheduled.set(false);
+			flush();
+		}
+	};
+	private final Runnable requestedFlushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			flushRequested.set(false); // puts from now on may request again
+			flush();
+		}
+	};
+	// ComponentCallbacks2 - not declared as such to keep pre ICS verifiers happy
+	private final Object backgroundFlusher;
+	private volatile boolean closed;
+
+	/**
+	 * @param ctx
+	 *            used to flush when the application goes to the background -
+	 *            may be null (no such flush) for tests
+	 */
+	PendingWrites(Context ctx, PrefsStore store, long windowMillis,
+			int maxPending) {
+		this.appCtx = ctx == null ? null : ctx.getApplicationContext();
+		this.store = store;
+		this.windowMillis = windowMillis;
+		this.maxPending = maxPending;
+		if (appCtx != null && Build.VERSION.SDK_INT
+			>= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			backgroundFlusher = registerBackgroundFlusher();
+		} else backgroundFlusher = null;
+	}
+
+	/**
+	 * Buffers the value (which must already be checked to be persistable).
+	 * Will schedule a flush in windowMillis if none is scheduled or request
+	 * one right away if the buffer is full.
+	 */
+	void put(String key, Object value) {
+		buffer.put(key, value == null ? NULL : value);
+		if (closed) {
+			// raced with close() - write it myself
+			flush();
+		} else if (buffer.size() >= maxPending) {
+			requestFlush();
+		} else if (scheduled.compareAndSet(false, true)) {
+			try {
+				flusher.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				flush(); // closed meanwhile
+			}
+		}
+	}
+
+	/**
+	 * Returns the pending value for the key, {@link #NULL} for a pending null
+	 * value or null if nothing is pending for this key.
+	 */
+	Object get(String key) {
+		return buffer.get(key);
+	}
+
+	/**
+	 * Drops whatever is pending for key - it is being removed or committed.
+	 * Waits for a flush in progress, which may hold a copy of the value - its
+	 * write is then done (or queued) before the caller's.
+	 */
+	synchronized void discard(String key) {
+		buffer.remove(key);
+	}
+
+	/** Drops everything pending - the preferences are being cleared */
+	synchronized void discardAll() {
+		buffer.clear();
+	}
+
+	/**
+	 * Writes all the pending values in a single apply(). When this returns
+	 * the values are in the in memory map of the preferences, so it is safe to
+	 * read them from there.
+	 */
+	synchronized void flush() {
+		if (buffer.isEmpty()) return;
+		final Editor ed = store.edit();
+		final Map<String, Object> flushed = new HashMap<String, Object>(buffer);
+		for (Map.Entry<String, Object> e : flushed.entrySet()) {
+			final Object value = e.getValue();
+			AccessPreferences._put(ed, e.getKey(), value == NULL ? null : value);
+		}
+		store.apply(ed);
+		// only now remove them - so readers see them either here or in prefs.
+		// If a key was put again meanwhile it stays for the next flush
+		for (Map.Entry<String, Object> e : flushed.entrySet()) {
+			buffer.remove(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Flushes on the flusher thread - or right here if it is shut down. No op
+	 * if a requested flush has not started yet - it will write this put too.
+	 */
+	private void requestFlush() {
+		if (!flushRequested.compareAndSet(false, true)) return;
+		try {
+			flusher.execute(requestedFlushTask);
+		} catch (RejectedExecutionException e) {
+			flushRequested.set(false);
+			flush();
+		}
+	}
+
+	/** Flushes and stops accepting new values */
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	void close() {
+		closed = true;
+		flush();
+		flusher.shutdown();
+		if (backgroundFlusher != null)
+			appCtx.unregisterComponentCallbacks((ComponentCallbacks2) backgroundFlusher);
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private ComponentCallbacks2 registerBackgroundFlusher() {
+		final ComponentCallbacks2 callbacks = new ComponentCallbacks2() {
+
+			@Override
+			public void onTrimMemory(int level) {
+				// UI_HIDDEN is delivered when the app goes to the background
+				if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+					requestFlush();
+			}
+
+			@Override
+			public void onLowMemory() {
+				requestFlush();
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {}
+		};
+		appCtx.registerComponentCallbacks(callbacks);
+		return callbacks;
+	}
+}
@@ -0,0 +1,310 @@
+package gr.uoa.di.android.helpers;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+
+import java.util.Set;
+
+/**
+ * A typed preference key - the key string, its default value and the getter
+ * and setter of {@link SharedPreferences} matching its type, resolved once,
+ * when the key is defined. Use with {@link AccessPreferences#get(
+ * android.content.Context, PrefKey)} and friends. Define your keys as
+ * constants :
+ *
+ * <pre>
+ * static final PrefKey&lt;Long&gt; LAST_SYNC = PrefKey.ofLong(&quot;last_sync&quot;, 0);
+ * // ...
+ * long lastSync = AccessPreferences.get(ctx, LAST_SYNC);
+ * AccessPreferences.put(ctx, LAST_SYNC, System.currentTimeMillis());
+ * </pre>
+ *
+ * Notice that {@code ofLong("last_sync", 0)} stores a Long - unlike
+ * {@code AccessPreferences.put(ctx, "last_sync", 0)} which stores an Integer
+ * (see {@link AccessPreferences#put(android.content.Context, String, Object)}).
+ * The generic {@link #of(String, Class, Object)} checks the default against
+ * the declared type so this kind of mistake is caught when the key is defined
+ * instead of when it is read.
+ *
+ * @param <T>
+ *            the type of the value - one of String, Boolean, Integer, Long,
+ *            Float or Set<String>
+ */
+public final class PrefKey<T> {
+
+	private final String key;
+	private final T defaultValue;
+	private final Accessor<T> accessor;
+	private final String store; // null for the default preferences
+
+	private PrefKey(String key, T defaultValue, Accessor<T> accessor) {
+		this(key, defaultValue, accessor, null);
+	}
+
+	private PrefKey(String key, T defaultValue, Accessor<T> accessor,
+			String store) {
+		if (key == null)
+			throw new NullPointerException("Null keys are not permitted");
+		this.key = key;
+		this.defaultValue = defaultValue;
+		this.accessor = accessor;
+		this.store = store;
+	}
+
+	public static PrefKey<String> ofString(String key, String defaultValue) {
+		return new PrefKey<String>(key, defaultValue, STRING);
+	}
+
+	public static PrefKey<Boolean> ofBoolean(String key, boolean defaultValue) {
+		return new PrefKey<Boolean>(key, defaultValue, BOOLEAN);
+	}
+
+	public static PrefKey<Integer> ofInt(String key, int defaultValue) {
+		return new PrefKey<Integer>(key, defaultValue, INTEGER);
+	}
+
+	public static PrefKey<Long> ofLong(String key, long defaultValue) {
+		return new PrefKey<Long>(key, defaultValue, LONG);
+	}
+
+	public static PrefKey<Float> ofFloat(String key, float defaultValue) {
+		return new PrefKey<Float>(key, defaultValue, FLOAT);
+	}
+
+	/**
+	 * Defines a Set<String> key.
+	 *
+	 * @throws IllegalArgumentException
+	 *             before HONEYCOMB API
+	 */
+	public static PrefKey<Set<String>> ofStringSet(String key,
+			Set<String> defaultValue) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			throw new IllegalArgumentException(
+				"You can add sets in the preferences only after API "
+					+ Build.VERSION_CODES.HONEYCOMB);
+		}
+		return new PrefKey<Set<String>>(key, defaultValue, STRING_SET);
+	}
+
+	/**
+	 * Defines a key of the given type. The default value (if not null) must be
+	 * an instance of exactly this type - so {@code of("k", Long.class, 0)}
+	 * (through raw types or reflection) fails here and not on first get().
+	 *
+	 * @param key
+	 *            the preference's key, must not be {@code null}
+	 * @param type
+	 *            one of String, Boolean, Integer, Long, Float or Set
+	 * @param defaultValue
+	 *            the default value, may be null
+	 * @return the new key
+	 * @throws IllegalArgumentException
+	 *             if the type is not one of the types persisted in the
+	 *             preferences (including Double) or if the default value is
+	 *             not of this type or if the type is Set and the API is before
+	 *             HONEYCOMB
+	 * @throws NullPointerException
+	 *             if key or type is {@code null}
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PrefKey<T> of(String key, Class<T> type, T defaultValue) {
+		if (defaultValue != null && !type.isInstance(defaultValue))
+			throw new IllegalArgumentException("Default value : "
+				+ defaultValue + " (a " + defaultValue.getClass().getName()
+				+ ") for key : " + key + " is not a " + type.getName());
+		if (type == String.class)
+			return (PrefKey<T>) ofString(key, (String) defaultValue);
+		final Accessor<?> accessor;
+		if (type == Boolean.class) accessor = BOOLEAN;
+		else if (type == Integer.class) accessor = INTEGER;
+		else if (type == Long.class) accessor = LONG;
+		else if (type == Float.class) accessor = FLOAT;
+		else if (type == Set.class)
+			return (PrefKey<T>) ofStringSet(key, (Set<String>) defaultValue);
+		else throw new IllegalArgumentException(type
+			+ " cannot be persisted in SharedPreferences");
+		return new PrefKey<T>(key, defaultValue, (Accessor<T>) accessor);
+	}
+
+	/**
+	 * Returns a key like this one that lives in the named store (see
+	 * {@link AccessPreferences#get(android.content.Context, String, String, Object)}
+	 * ) instead of the default preferences :
+	 *
+	 * <pre>
+	 * static final PrefKey&lt;Integer&gt; LAUNCHES = PrefKey.ofInt(&quot;launches&quot;, 0)
+	 * 	.inStore(&quot;counters&quot;);
+	 * </pre>
+	 *
+	 * @param name
+	 *            the name of the store, must not be {@code null}
+	 * @return the new key
+	 * @throws NullPointerException
+	 *             if name is {@code null}
+	 */
+	public PrefKey<T> inStore(String name) {
+		if (name == null)
+			throw new NullPointerException("Null store names are not permitted");
+		return new PrefKey<T>(key, defaultValue, accessor, name);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public T getDefault() {
+		return defaultValue;
+	}
+
+	/** The name of the store of this key, null for the default one */
+	public String getStore() {
+		return store;
+	}
+
+	/** The type of the value - Set for Set<String> keys */
+	public Class<?> getType() {
+		return accessor.type;
+	}
+
+	// =========================================================================
+	// Package API - used by AccessPreferences
+	// =========================================================================
+	T read(SharedPreferences prefs) {
+		return accessor.read(prefs, key, defaultValue);
+	}
+
+	/** Writes the value - a null value is written as AccessPreferences does */
+	void write(Editor ed, T value) {
+		if (value == null) ed.putString(key, null);
+		else accessor.write(ed, key, value);
+	}
+
+	/**
+	 * Casts a value stored for this key (still pending in coalescing mode) -
+	 * throwing a ClassCastException as the framework would if it is not of
+	 * this key's type.
+	 */
+	@SuppressWarnings("unchecked")
+	T cast(Object value) {
+		if (!accessor.type.isInstance(value))
+			throw new ClassCastException("Value : " + value
+				+ " stored for key : " + key + " is not a "
+				+ accessor.type.getSimpleName());
+		return (T) value;
+	}
+
+	@Override
+	public String toString() {
+		return (store == null ? "" : store + "/") + key + " ("
+			+ accessor.type.getSimpleName() + ", default : " + defaultValue
+			+ ")";
+	}
+
+	// =========================================================================
+	// Accessors - one per type, null defaults are boxed primitives' business
+	// =========================================================================
+	private static abstract class Accessor<T> {
+
+		final Class<?> type;
+
+		Accessor(Class<?> type) {
+			this.type = type;
+		}
+
+		abstract T read(SharedPreferences prefs, String key, T defaultValue);
+
+		abstract void write(Editor ed, String key, T value);
+	}
+
+	private static final Accessor<String> STRING = new Accessor<String>(
+		String.class) {
+
+		@Override
+		String read(SharedPreferences prefs, String key, String defaultValue) {
+			return prefs.getString(key, defaultValue);
+		}
+
+		@Override
+		void write(Editor ed, String key, String value) {
+			ed.putString(key, value);
+		}
+	};
+	// for boxed primitives a null default can't be passed to the framework -
+	// check if the key is there (the framework would return the default
+	// anyway)
+	private static final Accessor<Boolean> BOOLEAN = new Accessor<Boolean>(
+		Boolean.class) {
+
+		@Override
+		Boolean read(SharedPreferences prefs, String key, Boolean defaultValue) {
+			if (defaultValue == null && !prefs.contains(key)) return null;
+			return prefs.getBoolean(key,
+				defaultValue == null ? false : defaultValue);
+		}
+
+		@Override
+		void write(Editor ed, String key, Boolean value) {
+			ed.putBoolean(key, value);
+		}
+	};
+	private static final Accessor<Integer> INTEGER = new Accessor<Integer>(
+		Integer.class) {
+
+		@Override
+		Integer read(SharedPreferences prefs, String key, Integer defaultValue) {
+			if (defaultValue == null && !prefs.contains(key)) return null;
+			return prefs.getInt(key, defaultValue == null ? 0 : defaultValue);
+		}
+
+		@Override
+		void write(Editor ed, String key, Integer value) {
+			ed.putInt(key, value);
+		}
+	};
+	private static final Accessor<Long> LONG = new Accessor<Long>(Long.class) {
+
+		@Override
+		Long read(SharedPreferences prefs, String key, Long defaultValue) {
+			if (defaultValue == null && !prefs.contains(key)) return null;
+			return prefs.getLong(key, defaultValue == null ? 0L : defaultValue);
+		}
+
+		@Override
+		void write(Editor ed, String key, Long value) {
+			ed.putLong(key, value);
+		}
+	};
+	private static final Accessor<Float> FLOAT = new Accessor<Float>(
+		Float.class) {
+
+		@Override
+		Float read(SharedPreferences prefs, String key, Float defaultValue) {
+			if (defaultValue == null && !prefs.contains(key)) return null;
+			return prefs.getFloat(key, defaultValue == null ? 0F : defaultValue);
+		}
+
+		@Override
+		void write(Editor ed, String key, Float value) {
+			ed.putFloat(key, value);
+		}
+	};
+	private static final Accessor<Set<String>> STRING_SET = new Accessor<Set<String>>(
+		Set.class) {
+
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		@Override
+		Set<String> read(SharedPreferences prefs, String key,
+				Set<String> defaultValue) {
+			return prefs.getStringSet(key, defaultValue);
+		}
+
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		@Override
+		void write(Editor ed, String key, Set<String> value) {
+			ed.putStringSet(key, value);
+		}
+	};
+}
@@ -0,0 +1,57 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * Where the values of a named store of {@link AccessPreferences} live - see
+ * {@link AccessPreferences#setBackend(String, PrefsBackend)}. The default is
+ * the xml files of the framework ({@link #XML}), {@link LogPreferences#BACKEND}
+ * is an append only log.
+ */
+public interface PrefsBackend {
+
+	/**
+	 * Returns the preferences named {@code name}. Called once per name and
+	 * process by AccessPreferences.
+	 *
+	 * @param ctx
+	 *            a context belonging to the application
+	 * @param name
+	 *            the name of the store (or of a shard of a sharded store)
+	 * @return the preferences
+	 */
+	SharedPreferences open(Context ctx, String name);
+
+	/**
+	 * Returns the size on disk of the preferences named {@code name}, 0 if
+	 * they are not (yet) persisted.
+	 *
+	 * @param ctx
+	 *            a context belonging to the application
+	 * @param name
+	 *            the name of the store (or of a shard of a sharded store)
+	 * @return the size in bytes
+	 */
+	long sizeOf(Context ctx, String name);
+
+	/** The framework's SharedPreferences - one xml file per name */
+	PrefsBackend XML = new PrefsBackend() {
+
+		@Override
+		public SharedPreferences open(Context ctx, String name) {
+			return ctx.getSharedPreferences(name, Context.MODE_PRIVATE);
+		}
+
+		// relies on the framework keeping the files in shared_prefs/ in the
+		// application's data directory
+		@Override
+		public long sizeOf(Context ctx, String name) {
+			final File dir = new File(ctx.getFilesDir().getParentFile(),
+				"shared_prefs");
+			return new File(dir, name + ".xml").length();
+		}
+	};
+}
@@ -0,0 +1,254 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.SharedPreferences.Editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The binary format of {@link AccessPreferences#exportTo(android.content.Context,
+ * java.io.File)} - a header followed by one typed record per entry and an end
+ * marker. Records are written as the entries are walked and applied to the
+ * editor as they are read, so neither side builds an intermediate copy of the
+ * preferences. Strings are length prefixed UTF-8 (no 64K limit as in
+ * writeUTF()).
+ *
+ * <pre>
+ * file   : MAGIC(int) VERSION(byte) record* END(byte)
+ * record : type(byte) key(string) value
+ * string : length(int) UTF-8 bytes
+ * value  : string | boolean(byte) | int | long | float
+ *          | size(int) string* (for sets)
+ * </pre>
+ *
+ * Lengths and set sizes are checked against the bytes left in the backup
+ * before anything is allocated for them, so a corrupt or hostile file fails
+ * with an IOException instead of an OutOfMemoryError.
+ */
+final class PrefsBackup {
+
+	private static final int MAGIC = 0x41505242; // APRB
+	private static final byte VERSION = 1;
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8192;
+	// record types
+	private static final byte END = 0;
+	private static final byte STRING = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte INTEGER = 3;
+	private static final byte LONG = 4;
+	private static final byte FLOAT = 5;
+	private static final byte STRING_SET = 6;
+
+	private PrefsBackup() {}
+
+	/**
+	 * Writes the entries to the stream (which is flushed, not closed). Null
+	 * keys and values are skipped - the framework does not store them anyway.
+	 * Returns the number of entries written.
+	 */
+	static int write(Map<String, ?> entries, OutputStream stream)
+			throws IOException {
+		final DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(stream, BUFFER_SIZE));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		int count = 0;
+		for (Map.Entry<String, ?> e : entries.entrySet()) {
+			final String key = e.getKey();
+			final Object value = e.getValue();
+			if (key == null || value == null) continue;
+			if (value instanceof String) {
+				out.writeByte(STRING);
+				writeString(out, key);
+				writeString(out, (String) value);
+			} else if (value instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				writeString(out, key);
+				out.writeBoolean((Boolean) value);
+			} else if (value instanceof Integer) {
+				out.writeByte(INTEGER);
+				writeString(out, key);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				writeString(out, key);
+				out.writeLong((Long) value);
+			} else if (value instanceof Float) {
+				out.writeByte(FLOAT);
+				writeString(out, key);
+				out.writeFloat((Float) value);
+			} else if (value instanceof Set) {
+				final Set<?> set = (Set<?>) value;
+				out.writeByte(STRING_SET);
+				writeString(out, key);
+				out.writeInt(set.size());
+				for (Object s : set) {
+					writeString(out, (String) s);
+				}
+			} else throw new IllegalArgumentException("The value : " + value
+				+ " for key : " + key + " cannot be persisted");
+			++count;
+		}
+		out.writeByte(END);
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Reads the entries from the stream (which is not closed) into the editor.
+	 * Returns the number of entries read. No more than length bytes are read
+	 * - a backup that claims more than that is rejected as corrupt. On error
+	 * the editor is left half filled - don't commit it.
+	 *
+	 * @throws IOException
+	 *             if the stream is not in this format or is truncated or
+	 *             corrupt
+	 */
+	static int read(InputStream stream, long length, Editor ed)
+			throws IOException {
+		final Bounded in = new Bounded(new BufferedInputStream(stream,
+			BUFFER_SIZE), length);
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a preferences backup");
+		final byte version = in.readByte();
+		if (version != VERSION)
+			throw new IOException("Unknown backup version : " + version);
+		int count = 0;
+		for (byte type; (type = in.readByte()) != END; ++count) {
+			final String key = readString(in);
+			final Object value;
+			switch (type) {
+			case STRING:
+				value = readString(in);
+				break;
+			case BOOLEAN:
+				value = in.readBoolean();
+				break;
+			case INTEGER:
+				value = in.readInt();
+				break;
+			case LONG:
+				value = in.readLong();
+				break;
+			case FLOAT:
+				value = in.readFloat();
+				break;
+			case STRING_SET:
+				// each string takes at least its length field
+				final int size = readLength(in, 4);
+				final Set<String> set = new HashSet<String>(size * 2);
+				for (int i = 0; i < size; ++i) {
+					set.add(readString(in));
+				}
+				value = set;
+				break;
+			default:
+				throw new IOException("Corrupted backup - record type : " + type);
+			}
+			// same checks as put() - sets before HONEYCOMB throw here
+			AccessPreferences._put(ed, key, value);
+		}
+		return count;
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		final byte[] bytes = s.getBytes(CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(Bounded in) throws IOException {
+		final byte[] bytes = new byte[readLength(in, 1)];
+		in.readFully(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Reads a length (or size) and checks that length items of unit bytes
+	 * each fit in what is left of the backup.
+	 */
+	private static int readLength(Bounded in, int unit) throws IOException {
+		final int length = in.readInt();
+		if (length < 0 || (long) length * unit > in.remaining())
+			throw new IOException("Corrupted backup - length : " + length
+				+ " with " + in.remaining() + " bytes left");
+		return length;
+	}
+
+	/**
+	 * A DataInputStream that reads at most the given number of bytes and
+	 * keeps count of what is left - it sits above the buffer so the count is
+	 * exact.
+	 */
+	private static final class Bounded extends DataInputStream {
+
+		private final Counter counter;
+
+		Bounded(InputStream in, long limit) {
+			this(new Counter(in, limit));
+		}
+
+		private Bounded(Counter counter) {
+			super(counter);
+			this.counter = counter;
+		}
+
+		long remaining() {
+			return counter.remaining;
+		}
+	}
+
+	private static final class Counter extends FilterInputStream {
+
+		long remaining;
+
+		Counter(InputStream in, long limit) {
+			super(in);
+			remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			final int b = in.read();
+			if (b >= 0) --remaining;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			final int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final long skipped = in.skip(Math.min(n, remaining));
+			if (skipped > 0) remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package gr.uoa.di.android.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optional instrumentation of {@link AccessPreferences} - counts and latency
+ * histograms per operation and the bytes written by the backends that know
+ * them ({@link LogPreferences}). Off by default. When off the only cost is a
+ * read of a static field per operation, so it can stay in release builds and
+ * be turned on from a debug menu :
+ *
+ * <pre>
+ * PrefsStats.enable();
+ * // ...
+ * PrefsStats.Snapshot s = PrefsStats.snapshot();
+ * Log.d(TAG, &quot;gets : &quot; + s.count(PrefsStats.Op.GET) + &quot;, p90 : &quot;
+ * 	+ s.percentileNanos(PrefsStats.Op.GET, 0.9) + &quot; ns&quot;);
+ * </pre>
+ *
+ * Latencies are kept in power of 2 buckets - bucket i counts the calls that
+ * took [2^i, 2^(i+1)) nanoseconds - so percentiles are upper bounds within a
+ * factor of 2. disable() drops the counters, enable() starts afresh.
+ */
+public final class PrefsStats {
+
+	/** The operations counted */
+	public enum Op {
+		/** all the get methods - getObject(), contains() and getAll() too */
+		GET,
+		/** all the put methods - buffered ones included */
+		PUT,
+		/** Editor.apply() calls - one per put when not coalescing */
+		APPLY,
+		/** Editor.commit() calls - including the ones of clear and remove */
+		COMMIT,
+		CLEAR,
+		REMOVE,
+		/**
+		 * getAll() copies of the preferences made to answer null default gets
+		 * - on first use and after a change that can't be followed key by key
+		 * (a clear or a raw editor)
+		 */
+		SNAPSHOT
+	}
+
+	/** Covers up to 2^40 ns (18 minutes) - the last bucket takes the rest */
+	public static final int BUCKETS = 40;
+	private static final Op[] OPS = Op.values();
+	/** Null when disabled - the single read on the hot path */
+	private static volatile PrefsStats active;
+	private final AtomicLongArray histograms = new AtomicLongArray(OPS.length
+		* BUCKETS);
+	private final AtomicLongArray totalNanos = new AtomicLongArray(OPS.length);
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private PrefsStats() {}
+
+	/** Starts counting - from zero */
+	public static void enable() {
+		active = new PrefsStats();
+	}
+
+	/** Stops counting - snapshots taken before remain valid */
+	public static void disable() {
+		active = null;
+	}
+
+	public static boolean isEnabled() {
+		return active != null;
+	}
+
+	/**
+	 * Returns a copy of the counters - all zeroes if disabled. The counters of
+	 * different operations are not copied atomically.
+	 */
+	public static Snapshot snapshot() {
+		final PrefsStats stats = active;
+		final long[] histograms = new long[OPS.length * BUCKETS];
+		final long[] totals = new long[OPS.length];
+		long bytes = 0;
+		if (stats != null) {
+			for (int i = 0; i < histograms.length; ++i) {
+				histograms[i] = stats.histograms.get(i);
+			}
+			for (int i = 0; i < totals.length; ++i) {
+				totals[i] = stats.totalNanos.get(i);
+			}
+			bytes = stats.bytesWritten.get();
+		}
+		return new Snapshot(histograms, totals, bytes);
+	}
+
+	// =========================================================================
+	// Package API - the recording side
+	// =========================================================================
+	/**
+	 * Call before an operation and pass the result to {@link #end(Op, long)}
+	 * after it - System.nanoTime() if enabled, 0 (not timed) otherwise
+	 */
+	static long start() {
+		return active == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Records an operation timed by {@link #start()} - if it was timed and
+	 * the counters were not disabled meanwhile
+	 */
+	static void end(Op op, long start) {
+		if (start == 0) return;
+		final PrefsStats stats = active;
+		if (stats != null) stats.record(op, start);
+	}
+
+	/** Records an operation started at start (System.nanoTime()) */
+	private void record(Op op, long start) {
+		final long nanos = System.nanoTime() - start;
+		histograms.incrementAndGet(op.ordinal() * BUCKETS + bucket(nanos));
+		totalNanos.addAndGet(op.ordinal(), nanos);
+	}
+
+	/** Records bytes written to disk, if enabled */
+	static void recordBytes(long bytes) {
+		final PrefsStats stats = active;
+		if (stats != null) stats.bytesWritten.addAndGet(bytes);
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos <= 0) return 0;
+		final int log2 = 63 - Long.numberOfLeadingZeros(nanos);
+		return log2 < BUCKETS ? log2 : BUCKETS - 1;
+	}
+
+	/** An immutable copy of the counters */
+	public static final class Snapshot {
+
+		private final long[] histograms;
+		private final long[] totalNanos;
+		private final long bytesWritten;
+
+		Snapshot(long[] histograms, long[] totalNanos, long bytesWritten) {
+			this.histograms = histograms;
+			this.totalNanos = totalNanos;
+			this.bytesWritten = bytesWritten;
+		}
+
+		/** How many times the operation was called */
+		public long count(Op op) {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				count += histograms[op.ordinal() * BUCKETS + i];
+			}
+			return count;
+		}
+
+		/** The total time spent in the operation */
+		public long totalNanos(Op op) {
+			return totalNanos[op.ordinal()];
+		}
+
+		/**
+		 * The latency histogram of the operation - element i is the number of
+		 * calls that took [2^i, 2^(i+1)) ns.
+		 *
+		 * @return a new array of {@link PrefsStats#BUCKETS} elements
+		 */
+		public long[] histogram(Op op) {
+			final long[] result = new long[BUCKETS];
+			System.arraycopy(histograms, op.ordinal() * BUCKETS, result, 0,
+				BUCKETS);
+			return result;
+		}
+
+		/**
+		 * An upper bound (within a factor of 2) of the latency below which the
+		 * given fraction of the calls fall - 0 if there were no calls.
+		 *
+		 * @param fraction
+		 *            in [0, 1] - 0.5 for the median
+		 * @throws IllegalArgumentException
+		 *             if fraction is not in [0, 1]
+		 */
+		public long percentileNanos(Op op, double fraction) {
+			if (!(fraction >= 0 && fraction <= 1))
+				throw new IllegalArgumentException("Illegal fraction : "
+					+ fraction);
+			final long count = count(op);
+			if (count == 0) return 0;
+			final long target = Math.max(1, (long) Math.ceil(count * fraction));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += histograms[op.ordinal() * BUCKETS + i];
+				if (seen >= target) return 1L << (i + 1);
+			}
+			return 1L << BUCKETS; // not reached
+		}
+
+		/**
+		 * Bytes written to disk by the backends that report them (the log of
+		 * {@link LogPreferences}) - the framework's xml files are not counted.
+		 */
+		public long bytesWritten() {
+			return bytesWritten;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("PrefsStats[");
+			for (Op op : OPS) {
+				final long count = count(op);
+				if (count == 0) continue;
+				sb.append(op).append(" : ").append(count).append(" calls, ")
+					.append(totalNanos(op) / count).append(" ns avg, ")
+					.append(percentileNanos(op, 0.99)).append(" ns p99; ");
+			}
+			return sb.append("bytes written : ").append(bytesWritten)
+				.append(']').toString();
+		}
+	}
+}
@@ -0,0 +1,549 @@
+package gr.uoa.di.android.helpers;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Build;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state {@link AccessPreferences} keeps for a preferences file - the
+ * SharedPreferences instance, the snapshot of its values used for null
+ * default gets and the buffer of pending writes in coalescing mode. One per
+ * file, cached by AccessPreferences.
+ */
+final class PrefsStore {
+
+	private static final long IO_KEEP_ALIVE_SECONDS = 30;
+	/** The types a preference may have - as read by {@link #read} */
+	private static final Class<?>[] TYPES = { String.class, Integer.class,
+			Long.class, Float.class, Boolean.class, Set.class };
+	/** Returned by {@link #read} for a null value or a missing key */
+	private static final Object NULL = new Object();
+	final String name;
+	final SharedPreferences prefs;
+	/** If this is the store of the default preferences, however opened */
+	final boolean isDefault;
+	/**
+	 * Copy of the preferences map used to answer null default gets without
+	 * calling getAll() (which copies the whole map under the SharedPreferences
+	 * lock) on every call. Built by getAll() on first use and then updated a
+	 * key at a time - after our writes, for the keys their editor changed
+	 * (see {@link #edit()}), after everyone's via the listener. Dropped, to
+	 * be built again on next use, on changes that can't be followed key by
+	 * key - a clear() or an editor not made by edit(). Null when dropped -
+	 * guarded by snapshotLock, which orders the updates.
+	 */
+	private ConcurrentMap<String, Object> mirror;
+	/** Unmodifiable view of mirror - null when dropped */
+	private volatile Map<String, ?> snapshot;
+	private final Object snapshotLock = new Object();
+	/** Non null while in coalescing mode */
+	volatile PendingWrites pending;
+	/**
+	 * Runs the async commits - one thread at most, so they run in order, which
+	 * dies when idle. Created on first use, guarded by this.
+	 */
+	private ExecutorService io;
+	/** The thread of io, if alive - it runs its writes directly */
+	private volatile Thread ioThread;
+	/**
+	 * The writes submitted to io and not yet done. While there are any, the
+	 * other writes of the store are submitted to io too - so a put() after a
+	 * commitAsync() of the same key is not overwritten when the commit runs.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+	/**
+	 * Objects decoded by getObject() by key - each with the string it was
+	 * decoded from. Dropped when the key changes.
+	 */
+	private final ConcurrentMap<String, Decoded> decoded = new ConcurrentHashMap<String, Decoded>();
+	/** Set<String> keys edited an element at a time */
+	final SetJournals sets;
+	/** Listeners registered for specific keys */
+	final KeyListeners keyListeners = new KeyListeners();
+	// the framework keeps its listeners in a WeakHashMap so I must keep a
+	// strong reference to this one
+	private final OnSharedPreferenceChangeListener invalidator = new OnSharedPreferenceChangeListener() {
+
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+			// before the listeners so they see the new value
+			if (key == null) invalidate(); // cleared - API 30+
+			else refresh(key, null);
+			forget(sp, key);
+			keyListeners.dispatch(sp, key);
+		}
+	};
+
+	/**
+	 * @param setsDir
+	 *            where the journals of the sets edited an element at a time
+	 *            are kept (see {@link SetJournals})
+	 */
+	PrefsStore(String name, SharedPreferences prefs, File setsDir) {
+		this(name, prefs, setsDir, false);
+	}
+
+	/**
+	 * @param isDefault
+	 *            if the preferences are the default ones (the file
+	 *            PreferenceManager uses) - the store of typed keys that name
+	 *            no store
+	 */
+	PrefsStore(String name, SharedPreferences prefs, File setsDir,
+			boolean isDefault) {
+		this.name = name;
+		this.prefs = prefs;
+		this.isDefault = isDefault;
+		this.sets = new SetJournals(this, setsDir);
+		// catch changes made behind my back (PreferenceActivity etc) - my own
+		// writes update the snapshot directly as the listener may be
+		// posted to the main thread. Also the one framework listener behind
+		// the key listeners
+		prefs.registerOnSharedPreferenceChangeListener(invalidator);
+	}
+
+	/**
+	 * Returns an unmodifiable view of the preferences which is guaranteed to
+	 * reflect all the changes made before this call. The view is shared
+	 * between callers and kept up to date key by key, so lookups cost a
+	 * single hash lookup and a write costs a lookup per key it changed - the
+	 * whole map is only copied (via getAll()) on first use and after a change
+	 * that can't be followed key by key. Being live, iterating it while the
+	 * preferences change may or may not show the changes.
+	 */
+	Map<String, ?> snapshot() {
+		final Map<String, ?> result = snapshot;
+		if (result != null) return result;
+		synchronized (snapshotLock) {
+			if (snapshot == null) {
+				final long start = PrefsStats.start();
+				final Map<String, ?> all = prefs.getAll();
+				mirror = new ConcurrentHashMap<String, Object>(all.size());
+				for (Map.Entry<String, ?> e : all.entrySet()) {
+					// older versions may hold null values - ConcurrentHashMap
+					// takes none and a get returns null for absent keys anyway
+					final Object value = e.getValue();
+					if (value != null) mirror.put(e.getKey(), value);
+				}
+				snapshot = Collections.unmodifiableMap(mirror);
+				PrefsStats.end(PrefsStats.Op.SNAPSHOT, start);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Returns an editor of the preferences that records the keys it changes,
+	 * so once written the snapshot is updated for those keys only. Editors
+	 * from prefs.edit() work too but drop the whole snapshot.
+	 */
+	Editor edit() {
+		return new TrackingEditor(prefs.edit());
+	}
+
+	/** Drops the snapshot - it is built again on next use */
+	private void invalidate() {
+		synchronized (snapshotLock) {
+			mirror = null;
+			snapshot = null;
+		}
+	}
+
+	/** Updates the snapshot after the editor was written */
+	private void written(Editor ed) {
+		if (!(ed instanceof TrackingEditor)) {
+			invalidate();
+			return;
+		}
+		final Map<String, Class<?>> changed = ((TrackingEditor) ed).drain();
+		if (changed == null) {
+			invalidate(); // cleared - the other keys are gone too
+			return;
+		}
+		for (Map.Entry<String, Class<?>> e : changed.entrySet()) {
+			refresh(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Copies the current value of the key into the snapshot, reading it with
+	 * the getter of type - or of the value the snapshot has if type is null -
+	 * then with the others if that fails. A key holding a null value (older
+	 * versions allow it) is left out, as in {@link #snapshot()}.
+	 * Each update reads the preferences after the write that triggered it and
+	 * the updates are serialized, so the last one sees the last write.
+	 */
+	private void refresh(String key, Class<?> type) {
+		synchronized (snapshotLock) {
+			if (mirror == null) return; // the next getAll() will see it
+			if (!prefs.contains(key)) {
+				mirror.remove(key);
+				return;
+			}
+			if (type == null) {
+				final Object old = mirror.get(key);
+				if (old != null) type = old.getClass();
+			}
+			Object value = read(key, type);
+			// a new key or a new type, written behind my back - try them all
+			for (int i = 0; value == null && i < TYPES.length; ++i) {
+				if (TYPES[i] != type) value = read(key, TYPES[i]);
+			}
+			if (value == NULL) mirror.remove(key); // or removed meanwhile
+			else if (value == null) invalidate(); // a type I don't know
+			else mirror.put(key, value);
+		}
+	}
+
+	/**
+	 * The value of the key if it is of type, null if not or not known, NULL
+	 * if the key holds a null value or is gone. The getters of primitives
+	 * return the default for those - so a default is read again with another
+	 * default to tell a 0 (false) from a null.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private Object read(String key, Class<?> type) {
+		try {
+			final Object value;
+			if (type == String.class) value = prefs.getString(key, null);
+			else if (type == Integer.class) {
+				final int i = prefs.getInt(key, 0);
+				value = i != 0 || prefs.getInt(key, 1) == 0 ? i : null;
+			} else if (type == Long.class) {
+				final long l = prefs.getLong(key, 0);
+				value = l != 0 || prefs.getLong(key, 1) == 0 ? l : null;
+			} else if (type == Float.class) {
+				final float f = prefs.getFloat(key, 0);
+				value = f != 0 || prefs.getFloat(key, 1) == 0 ? f : null;
+			} else if (type == Boolean.class) {
+				final boolean b = prefs.getBoolean(key, false);
+				value = b || !prefs.getBoolean(key, true) ? b : null;
+			} else if (type != null && Set.class.isAssignableFrom(type))
+				value = prefs.getStringSet(key, null);
+			else return null;
+			return value == null ? NULL : value;
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Calls {@link android.content.SharedPreferences.Editor#apply()} in
+	 * Gingerbread and above, commit() before that. If async writes are queued
+	 * the editor is queued behind them and this returns at once - the values
+	 * are visible when it runs.
+	 */
+	void apply(final Editor ed) {
+		if (queue(ed, false) != null) return;
+		final long start = PrefsStats.start();
+		try {
+			sets.load(); // so the journals see the base they were written on
+			applyOnly(ed);
+			sets.sync();
+		} finally {
+			PrefsStats.end(PrefsStats.Op.APPLY, start);
+		}
+	}
+
+	/**
+	 * apply() without loading or checking the set journals - for the writes
+	 * of the journals themselves. Those hold the lock of a journal, while
+	 * {@link SetJournals#sync()} takes the lock of every journal in turn.
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	void applyOnly(final Editor ed) {
+		if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+			ed.apply();
+		else ed.commit();
+		written(ed); // apply() has updated the in memory map
+	}
+
+	/**
+	 * Commits the editor - after the async writes queued, if any, on their
+	 * thread
+	 */
+	boolean commit(final Editor ed) {
+		final Future<Boolean> queuedCommit = queue(ed, true);
+		if (queuedCommit != null) return await(queuedCommit);
+		final long start = PrefsStats.start();
+		try {
+			sets.load();
+			final boolean result = ed.commit();
+			written(ed);
+			sets.sync();
+			return result;
+		} finally {
+			PrefsStats.end(PrefsStats.Op.COMMIT, start);
+		}
+	}
+
+	/**
+	 * Commits the editor on this store's I/O thread - in the order this is
+	 * called. The writes of the store that follow queue behind it.
+	 */
+	Future<Boolean> commitAsync(final Editor ed) {
+		return submit(ed, true);
+	}
+
+	/** Waits till the async writes queued so far are done */
+	void awaitQueued() {
+		if (queued.get() == 0 || Thread.currentThread() == ioThread) return;
+		await(io().submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return true;
+			}
+		}));
+	}
+
+	/**
+	 * Runs the task on this store's I/O thread, after the writes queued there
+	 * - without holding up the writes that follow, as the async commits do
+	 */
+	Future<Boolean> onIoThread(final Callable<Boolean> task) {
+		return io().submit(task);
+	}
+
+	/**
+	 * Submits the write to io if async writes are queued there, so it can't
+	 * overtake them - returns null if it may run on the calling thread
+	 */
+	private Future<Boolean> queue(final Editor ed, final boolean commit) {
+		if (queued.get() == 0 || Thread.currentThread() == ioThread)
+			return null;
+		return submit(ed, commit);
+	}
+
+	private Future<Boolean> submit(final Editor ed, final boolean commit) {
+		queued.incrementAndGet();
+		return io().submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				try { // on the io thread, so they won't be queued again
+					if (commit) return commit(ed);
+					apply(ed);
+					return true;
+				} finally {
+					queued.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/** Waits for the write, uninterruptibly - it will run anyway */
+	static Boolean await(final Future<Boolean> write) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return write.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new IllegalStateException(cause); // no checked ones
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized ExecutorService io() {
+		if (io == null) {
+			// no core threads so the thread goes away when idle - with an
+			// unbounded queue at most one thread is started
+			io = new ThreadPoolExecutor(0, 1, IO_KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread thread = new Thread(r,
+							"AccessPreferences-io-" + name);
+						thread.setDaemon(true);
+						ioThread = thread; // the previous one died idle
+						return thread;
+					}
+				});
+		}
+		return io;
+	}
+
+	/**
+	 * Returns the object cached for the key if it was decoded from this very
+	 * string instance by this codec, null otherwise. The framework hands out
+	 * the instance it holds, so an unchanged value is recognized by a
+	 * reference comparison - a change not yet notified is not missed.
+	 */
+	Object decoded(String key, String encoded, Codec<?> codec) {
+		final Decoded d = decoded.get(key);
+		return d != null && d.encoded == encoded && d.codec == codec ? d.value
+				: null;
+	}
+
+	void cache(String key, String encoded, Codec<?> codec, Object value) {
+		decoded.put(key, new Decoded(encoded, codec, value));
+	}
+
+	/** Drops the object decoded for the key unless the key still has its value */
+	private void forget(SharedPreferences sp, String key) {
+		if (key == null) { // cleared
+			decoded.clear();
+			return;
+		}
+		final Decoded d = decoded.get(key);
+		if (d == null) return;
+		String current;
+		try {
+			current = sp.getString(key, null);
+		} catch (ClassCastException e) {
+			current = null; // not a string anymore
+		}
+		// our own putObject() cached the value it wrote - keep it
+		if (current != d.encoded) decoded.remove(key, d);
+	}
+
+	/** Writes whatever is pending in coalescing mode */
+	void flush() {
+		final PendingWrites pw = pending;
+		if (pw != null) pw.flush();
+	}
+
+	private static final class Decoded {
+
+		final String encoded;
+		final Codec<?> codec;
+		final Object value;
+
+		Decoded(String encoded, Codec<?> codec, Object value) {
+			this.encoded = encoded;
+			this.codec = codec;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Records the keys changed through the editor it wraps - with the type
+	 * written, null if removed - or that it was cleared
+	 */
+	private static final class TrackingEditor implements Editor {
+
+		private final Editor ed;
+		// guarded by this
+		private Map<String, Class<?>> changed = new HashMap<String, Class<?>>();
+		private boolean cleared;
+
+		TrackingEditor(Editor ed) {
+			this.ed = ed;
+		}
+
+		/**
+		 * Returns the keys changed since the last call, null if the editor was
+		 * cleared - the editor being written, as the framework's one it
+		 * starts over
+		 */
+		synchronized Map<String, Class<?>> drain() {
+			final Map<String, Class<?>> result = cleared ? null : changed;
+			changed = new HashMap<String, Class<?>>();
+			cleared = false;
+			return result;
+		}
+
+		private synchronized void changed(String key, Class<?> type) {
+			changed.put(key, type);
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			ed.putString(key, value);
+			changed(key, String.class);
+			return this;
+		}
+
+		@Override
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		public Editor putStringSet(String key, Set<String> values) {
+			ed.putStringSet(key, values);
+			changed(key, Set.class);
+			return this;
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			ed.putInt(key, value);
+			changed(key, Integer.class);
+			return this;
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			ed.putLong(key, value);
+			changed(key, Long.class);
+			return this;
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			ed.putFloat(key, value);
+			changed(key, Float.class);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			ed.putBoolean(key, value);
+			changed(key, Boolean.class);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key) {
+			ed.remove(key);
+			changed(key, null);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor clear() {
+			ed.clear();
+			cleared = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			return ed.commit();
+		}
+
+		@Override
+		@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+		public void apply() {
+			ed.apply();
+		}
+	}
+}
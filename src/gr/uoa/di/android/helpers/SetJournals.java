@@ -0,0 +1,435 @@
+package gr.uoa.di.android.helpers;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+/**
+ * The Set<String> preferences of a {@link PrefsStore} that are edited an
+ * element at a time - see {@link AccessPreferences#addToSet(
+ * android.content.Context, String, String)}. Each such key has a hash set
+ * in memory, built from the set in the preferences (the base) plus a journal
+ * file of the adds and removes made since - so adding an element appends a
+ * few bytes to the journal instead of rewriting the whole set and the whole
+ * preferences file. Once the journal gets as big as the set it is folded into
+ * the preferences (one apply()) and deleted. Replaying the journal on a base
+ * that already has (some of) its changes gives the same set, so a crash
+ * between the write and the delete is harmless - and so are records appended
+ * while a fold is being written, which are kept in the journal.
+ *
+ * A journal is only valid on top of the base it was written on - so when the
+ * set in the preferences is replaced (put(), remove(), clear(), ...) the
+ * journal is dropped. The journals are loaded before the first write to the
+ * store in the process and checked (via the identity of the set instance the
+ * framework holds) after every write and on every access to their key - so
+ * writes bypassing AccessPreferences (a raw editor, a PreferenceActivity)
+ * are seen too. Folding a journal is an apply(), so the folded set is at once
+ * in the preferences in memory - but the journal is only deleted once the
+ * apply is on disk : a commit() of an empty editor, on the store's I/O
+ * thread, returns after the writes applied before it and then the journal
+ * is deleted (if no records were appended meanwhile - else on a later fold).
+ * Until then a restart replays the journal on whichever base made it to
+ * disk.
+ *
+ * Journals are kept in {@code files/prefs-sets/<store>/}, one per key. All the
+ * methods are thread safe.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+final class SetJournals {
+
+	private static final String SUFFIX = ".journal";
+	private static final String CHARSET = "UTF-8";
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	/** Don't fold journals with less records than that */
+	private static final int MIN_RECORDS_TO_COMPACT = 256;
+	private final PrefsStore store;
+	private final File dir;
+	private final ConcurrentMap<String, Journal> journals = new ConcurrentHashMap<String, Journal>();
+	private volatile boolean loaded;
+
+	SetJournals(PrefsStore store, File dir) {
+		this.store = store;
+		this.dir = dir;
+	}
+
+	/** Loads the journals left by previous runs - once, before any write */
+	void load() {
+		if (loaded) return;
+		synchronized (this) {
+			if (loaded) return;
+			final String[] names = dir.list();
+			if (names != null) {
+				for (String name : names) {
+					if (!name.endsWith(SUFFIX)) continue;
+					final String key = key(name);
+					if (key == null) continue; // not mine
+					final Journal j = new Journal(key, new File(dir, name));
+					j.init(); // before the base may change
+					journals.put(key, j);
+				}
+			}
+			loaded = true;
+		}
+	}
+
+	/** Drops the journals whose base was replaced - after every write */
+	void sync() {
+		if (journals.isEmpty()) return;
+		for (Journal j : journals.values()) {
+			j.sync();
+		}
+	}
+
+	/**
+	 * Returns the current set for the key if it is edited via a journal, null
+	 * otherwise. The set returned is an unmodifiable live view - the adds and
+	 * removes that follow show through it (iterating it is weakly consistent,
+	 * as for a ConcurrentHashMap) while a put() or remove() of the key leaves
+	 * it with the old elements.
+	 */
+	Set<String> view(String key) {
+		load();
+		if (journals.isEmpty()) return null; // the usual case
+		final Journal j = journals.get(key);
+		return j == null ? null : j.view();
+	}
+
+	/** The map with the sets edited via journals replaced by their current value */
+	Map<String, ?> overlay(Map<String, ?> all) {
+		load();
+		if (journals.isEmpty()) return all;
+		final Map<String, Object> result = new HashMap<String, Object>(all);
+		for (Journal j : journals.values()) {
+			final Set<String> view = j.view();
+			if (view != null) result.put(j.key, view);
+		}
+		return result;
+	}
+
+	/**
+	 * Folds all the journals into the preferences - returns once the folds
+	 * are on disk and the journals deleted
+	 */
+	void compactAll() {
+		load();
+		Future<Boolean> last = null;
+		for (Journal j : journals.values()) {
+			final Future<Boolean> fold = j.compact();
+			if (fold != null) last = fold;
+		}
+		// the I/O thread runs them in order
+		if (last != null) PrefsStore.await(last);
+	}
+
+	boolean add(String key, Collection<String> values) {
+		return journal(key).edit(ADD, values);
+	}
+
+	boolean remove(String key, Collection<String> values) {
+		return journal(key).edit(REMOVE, values);
+	}
+
+	boolean contains(String key, String value) {
+		return journal(key).contains(value);
+	}
+
+	private Journal journal(String key) {
+		load();
+		Journal j = journals.get(key);
+		if (j == null) {
+			final Journal created = new Journal(key, new File(dir, name(key)));
+			j = journals.putIfAbsent(key, created);
+			if (j == null) j = created;
+		}
+		return j;
+	}
+
+	// key <-> file name - hex of the UTF-8 bytes so any key is a valid name
+	private static String name(String key) {
+		final byte[] bytes = bytes(key);
+		final StringBuilder sb = new StringBuilder(bytes.length * 2
+			+ SUFFIX.length());
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.append(SUFFIX).toString();
+	}
+
+	private static String key(String name) {
+		final int length = name.length() - SUFFIX.length();
+		if (length % 2 != 0) return null;
+		final byte[] bytes = new byte[length / 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			final int hi = Character.digit(name.charAt(2 * i), 16);
+			final int lo = Character.digit(name.charAt(2 * i + 1), 16);
+			if (hi < 0 || lo < 0) return null;
+			bytes[i] = (byte) ((hi << 4) | lo);
+		}
+		return string(bytes);
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always there
+		}
+	}
+
+	private static String string(byte[] bytes) {
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private final class Journal {
+
+		final String key;
+		private final File file;
+		// guarded by this
+		/**
+		 * Null until loaded - on first use. Written under the lock, read by
+		 * view() callers without it, hence concurrent.
+		 */
+		private Set<String> set;
+		/** The instance in the preferences the journal applies to */
+		private Set<String> base;
+		private DataOutputStream out;
+		/** The records in the file */
+		private int records;
+		/**
+		 * The records of the file already in the set on disk - kept as
+		 * records were appended while the fold was written
+		 */
+		private int foldedRecords;
+		/** Unmodifiable view of set */
+		private Set<String> view;
+		/** A fold was applied and its journal is not yet deleted */
+		private boolean folding;
+		/**
+		 * Bumped on every fold and whenever the file starts over - a fold
+		 * written to disk deletes the journal only if it is still current
+		 */
+		private int generation;
+
+		Journal(String key, File file) {
+			this.key = key;
+			this.file = file;
+		}
+
+		/** Builds the set from the base and the journal, if any */
+		private void load() {
+			if (set != null) return;
+			base = base();
+			reset(base);
+			if (!file.exists()) return;
+			long good = 0; // bytes of whole records
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+				while (true) {
+					final byte op = in.readByte();
+					final byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					if (op == ADD) set.add(string(bytes));
+					else if (op == REMOVE) set.remove(string(bytes));
+					else break; // corrupted
+					++records;
+					good += 1 + 4 + bytes.length;
+				}
+			} catch (EOFException e) {
+				// end of journal - or a record torn by a crash
+			} catch (IOException e) {
+				// keep what I read
+			} catch (RuntimeException e) {
+				// a corrupted length (OutOfMemoryError is not caught, though)
+			} finally {
+				if (in != null) try {
+					in.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+			// drop a torn record - or appends would go after it and be lost
+			if (good < file.length()) truncate(good);
+		}
+
+		private void truncate(long length) {
+			try {
+				final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(length);
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				file.delete(); // start over on the base - changes are lost
+			}
+		}
+
+		synchronized void init() {
+			load();
+		}
+
+		private Set<String> base() {
+			try {
+				return store.prefs.getStringSet(key, null);
+			} catch (ClassCastException e) {
+				return null; // not a set anymore
+			}
+		}
+
+		/**
+		 * Drops the journal if the base was replaced - by a write of
+		 * AccessPreferences or one bypassing it
+		 */
+		synchronized void sync() {
+			load();
+			final Set<String> current = base();
+			if (current == base) return;
+			close();
+			file.delete();
+			base = current;
+			reset(current);
+			if (current == null) journals.remove(key, this);
+		}
+
+		/** Starts over from the base - with no records */
+		private void reset(Set<String> from) {
+			set = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			if (from != null) set.addAll(from);
+			view = Collections.unmodifiableSet(set);
+			records = foldedRecords = 0;
+			folding = false;
+			++generation;
+		}
+
+		synchronized Set<String> view() {
+			sync();
+			return base == null ? null : view; // null if the key is not there
+		}
+
+		synchronized boolean contains(String value) {
+			sync();
+			return set.contains(value);
+		}
+
+		synchronized boolean edit(byte op, Collection<String> values) {
+			sync(); // don't journal changes to a set replaced meanwhile
+			boolean changed = false, failed = false;
+			for (String value : values) {
+				if (!(op == ADD ? set.add(value) : set.remove(value))) continue;
+				changed = true;
+				if (base != null && !failed) failed = !append(op, value);
+			}
+			if (!changed) return false;
+			// a new key goes to the preferences at once - so it can be told
+			// when it is removed. If the journal can't be written write the
+			// whole set instead. One fold on its way to disk at a time
+			if (base == null || failed || !folding
+				&& records - foldedRecords >= Math.max(MIN_RECORDS_TO_COMPACT,
+					set.size())) compact();
+			return true;
+		}
+
+		private boolean append(byte op, String value) {
+			try {
+				if (out == null) {
+					dir.mkdirs();
+					out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(file, true)));
+				}
+				final byte[] bytes = bytes(value);
+				out.writeByte(op);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				out.flush(); // to the OS - survives the process, as apply()
+				++records;
+				return true;
+			} catch (IOException e) {
+				close();
+				return false;
+			}
+		}
+
+		/**
+		 * Writes the set to the preferences and deletes the journal once that
+		 * is on disk - returns the future of the deletion, null if there was
+		 * nothing to fold
+		 */
+		synchronized Future<Boolean> compact() {
+			load();
+			if (base != null && records == 0 && out == null && !file.exists())
+				return null;
+			final Set<String> copy = new HashSet<String>(set);
+			store.applyOnly(store.edit().putStringSet(key, copy));
+			base = base();
+			folding = true;
+			final int fold = ++generation;
+			final int folded = records;
+			return store.onIoThread(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					// the framework writes in order - once a commit returns
+					// the applies before it are on disk
+					final boolean written = store.prefs.edit().commit();
+					folded(fold, folded, written);
+					return written;
+				}
+			});
+		}
+
+		/**
+		 * The fold was written, or failed to - deletes the journal unless it
+		 * moved on. A failed fold is retried by the edits that follow.
+		 */
+		synchronized void folded(int fold, int folded, boolean written) {
+			if (fold != generation) return; // dropped or folded again
+			folding = false;
+			if (!written) return;
+			foldedRecords = folded;
+			if (records != folded) return; // appended meanwhile - kept
+			close();
+			file.delete();
+			records = foldedRecords = 0;
+		}
+
+		private void close() {
+			if (out == null) return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+			out = null;
+		}
+	}
+}
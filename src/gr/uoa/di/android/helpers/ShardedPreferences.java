@@ -0,0 +1,205 @@
+package gr.uoa.di.android.helpers;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SharedPreferences spread over a number of files (shards) - each key lives in
+ * one of them, picked by the hash of its namespace (the part of the key before
+ * {@link #NAMESPACE_SEPARATOR}) or of the whole key if it has none. As the
+ * framework rewrites the whole file on every write, a write here only rewrites
+ * the shards of the keys it touches. The shard a key lives in depends on the
+ * number of shards, so this number must never change for a given store.
+ *
+ * Listeners are registered with all the shards - so the SharedPreferences
+ * passed to them is the shard the key lives in, not this instance. An edit
+ * of keys in several shards is a write per shard - not atomic.
+ */
+final class ShardedPreferences implements SharedPreferences {
+
+	static final char NAMESPACE_SEPARATOR = ':';
+	private final SharedPreferences[] shards;
+
+	ShardedPreferences(Context ctx, String name, int count,
+			PrefsBackend backend) {
+		shards = new SharedPreferences[count];
+		for (int i = 0; i < count; ++i) {
+			shards[i] = backend.open(ctx, shardName(name, i));
+		}
+	}
+
+	/** The name of the file of the i-th shard of the named store */
+	static String shardName(String name, int i) {
+		return name + "-" + i;
+	}
+
+	/** The index of the shard key lives in */
+	static int shardOf(String key, int count) {
+		final int sep = key.indexOf(NAMESPACE_SEPARATOR);
+		// String.hashCode() is specified so this is stable across runs
+		final int hash = (sep < 0 ? key : key.substring(0, sep)).hashCode();
+		return (hash & Integer.MAX_VALUE) % count;
+	}
+
+	private SharedPreferences shard(String key) {
+		return shards[shardOf(key, shards.length)];
+	}
+
+	@Override
+	public Map<String, ?> getAll() {
+		final Map<String, Object> all = new HashMap<String, Object>();
+		for (SharedPreferences shard : shards) {
+			all.putAll(shard.getAll());
+		}
+		return all;
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		return shard(key).getString(key, defValue);
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	@Override
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		return shard(key).getStringSet(key, defValues);
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		return shard(key).getInt(key, defValue);
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		return shard(key).getLong(key, defValue);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		return shard(key).getFloat(key, defValue);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		return shard(key).getBoolean(key, defValue);
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return shard(key).contains(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new ShardedEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(
+			OnSharedPreferenceChangeListener listener) {
+		for (SharedPreferences shard : shards) {
+			shard.registerOnSharedPreferenceChangeListener(listener);
+		}
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(
+			OnSharedPreferenceChangeListener listener) {
+		for (SharedPreferences shard : shards) {
+			shard.unregisterOnSharedPreferenceChangeListener(listener);
+		}
+	}
+
+	/**
+	 * Routes each edit to an editor of the key's shard - created on first use
+	 * so commit() and apply() only write the shards that were edited. Those
+	 * are written one after the other, so an edit spanning shards is not
+	 * atomic - commit() goes on after a shard fails and returns false.
+	 */
+	private final class ShardedEditor implements Editor {
+
+		private final Editor[] editors = new Editor[shards.length];
+
+		private Editor editor(String key) {
+			final int i = shardOf(key, shards.length);
+			if (editors[i] == null) editors[i] = shards[i].edit();
+			return editors[i];
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			editor(key).putString(key, value);
+			return this;
+		}
+
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			editor(key).putStringSet(key, values);
+			return this;
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			editor(key).putInt(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			editor(key).putLong(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			editor(key).putFloat(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			editor(key).putBoolean(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key) {
+			editor(key).remove(key);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			for (int i = 0; i < shards.length; ++i) {
+				if (editors[i] == null) editors[i] = shards[i].edit();
+				editors[i].clear();
+			}
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			boolean result = true;
+			for (Editor ed : editors) {
+				if (ed != null) result &= ed.commit();
+			}
+			return result;
+		}
+
+		@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+		@Override
+		public void apply() {
+			for (Editor ed : editors) {
+				if (ed != null) ed.apply();
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file kept open for appending - see {@link Writer#appender(File)}. Instead
+ * of opening, buffering, writing and closing the file on every call, as
+ * {@link Writer#append(File, byte[])} does, appends are copied into a buffer
+ * that is written to the file in one call (a group commit) :
+ * <ul>
+ * <li>when flushBytes bytes are buffered - 0 to write each append as soon as
+ * the file is not being written</li>
+ * <li>flushMillis ms after the first byte was buffered, if not written before
+ * - 0 for no timer</li>
+ * <li>on {@link #flush()}, {@link #sync()} and {@link #close()}</li>
+ * </ul>
+ * While a thread writes a batch the others keep appending to a second buffer,
+ * and the writing thread writes what they appended before it returns - so
+ * with many threads appending a write carries many appends. If sync is true
+ * each write is followed by a fsync (data only) - else the data is in the OS
+ * when written, so it survives the process but not the device crashing.
+ *
+ * Thread safe. An IO error is sticky - every call after it throws.
+ */
+public final class Appender implements Closeable {
+
+	private static final int MIN_BUFFER_SIZE = 8192;
+	/** Fires the flushMillis flushes of all appenders */
+	private static ScheduledThreadPoolExecutor timer; // guarded by class
+	private final File file;
+	private final FileChannel channel;
+	/** Write when that many bytes are buffered - at least 1 */
+	private final int threshold;
+	private final long flushMillis;
+	private final boolean sync;
+	// guarded by this
+	private ByteBuffer current;
+	/** The buffer being written is taken out - null till it is given back */
+	private ByteBuffer spare;
+	private boolean writing;
+	private boolean scheduled;
+	private boolean closed;
+	private IOException failure;
+
+	Appender(final File file, final int flushBytes, final long flushMillis,
+			final boolean sync) throws IOException {
+		if (flushBytes < 0)
+			throw new IllegalArgumentException("Illegal flushBytes : "
+				+ flushBytes);
+		if (flushMillis < 0)
+			throw new IllegalArgumentException("Illegal flushMillis : "
+				+ flushMillis);
+		this.file = file;
+		this.threshold = Math.max(flushBytes, 1);
+		this.flushMillis = flushMillis;
+		this.sync = sync;
+		final int size = Math.max(flushBytes, MIN_BUFFER_SIZE);
+		current = ByteBuffer.allocate(size);
+		spare = ByteBuffer.allocate(size);
+		// closed with the channel
+		channel = new FileOutputStream(file, true).getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Appends the bytes. Returns once they are buffered - or written, if this
+	 * append fills the buffer past flushBytes. Blocks while the buffer is full
+	 * and another thread writes.
+	 *
+	 * @throws IOException
+	 *             if closed, or the write or a previous one failed
+	 */
+	public void append(final byte[] bytes) throws IOException {
+		append(bytes, 0, bytes.length);
+	}
+
+	/** Appends length bytes of the array starting at offset */
+	public void append(final byte[] bytes, final int offset, final int length)
+			throws IOException {
+		if (offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IndexOutOfBoundsException("Offset : " + offset
+				+ ", length : " + length + ", array length : " + bytes.length);
+		final ByteBuffer batch;
+		ByteBuffer extra = null;
+		synchronized (this) {
+			check();
+			while (writing && current.remaining() < length) {
+				await();
+				check();
+			}
+			if (current.remaining() >= length) {
+				final boolean wasEmpty = current.position() == 0;
+				current.put(bytes, offset, length);
+				if (writing || current.position() < threshold) {
+					if (wasEmpty) schedule();
+					return; // the writing thread will pick it up if writing
+				}
+			} else extra = ByteBuffer.wrap(bytes, offset, length); // too big
+			batch = take();
+		}
+		write(batch, extra);
+	}
+
+	/**
+	 * Writes to the file all the bytes appended before this call
+	 *
+	 * @throws IOException
+	 *             if closed, or the write or a previous one failed
+	 */
+	public void flush() throws IOException {
+		final ByteBuffer batch;
+		synchronized (this) {
+			check();
+			while (writing) {
+				await();
+				check();
+			}
+			if (current.position() == 0) return;
+			batch = take();
+		}
+		write(batch, null);
+	}
+
+	/**
+	 * Flushes and forces the file's data to the disk - on demand durability
+	 * when sync is false
+	 */
+	public void sync() throws IOException {
+		flush();
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (failure == null) failure = e;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Flushes and closes the file - threads blocked in append() and later
+	 * calls throw. Idempotent.
+	 *
+	 * @throws IOException
+	 *             if the last write or a previous one failed - the bytes
+	 *             still buffered are lost then. The file is closed anyway
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			ByteBuffer batch = null;
+			synchronized (this) {
+				while (writing) {
+					await();
+				}
+				if (failure == null && current.position() > 0) batch = take();
+			}
+			if (batch != null) write(batch, null);
+			synchronized (this) {
+				if (failure != null)
+					throw (IOException) new IOException("Appender failed : "
+						+ file).initCause(failure);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** Takes out the current buffer to write it - holding the lock */
+	private ByteBuffer take() {
+		final ByteBuffer batch = current;
+		current = spare;
+		spare = null;
+		writing = true;
+		return batch;
+	}
+
+	/**
+	 * Writes the batch (and extra, if not null) then whatever was appended
+	 * meanwhile, if enough - not holding the lock
+	 */
+	private void write(ByteBuffer batch, ByteBuffer extra) throws IOException {
+		while (true) {
+			IOException error = null;
+			try {
+				batch.flip();
+				if (extra == null) {
+					while (batch.hasRemaining()) {
+						channel.write(batch);
+					}
+				} else {
+					final ByteBuffer[] buffers = { batch, extra };
+					while (extra.hasRemaining()) {
+						channel.write(buffers);
+					}
+				}
+				if (sync) channel.force(false);
+			} catch (IOException e) {
+				error = e;
+			}
+			synchronized (this) {
+				batch.clear();
+				spare = batch;
+				if (error != null && failure == null) failure = error;
+				if (failure == null && !closed
+					&& current.position() >= threshold) {
+					batch = take(); // group commit - go on writing
+					extra = null;
+					continue;
+				}
+				writing = false;
+				notifyAll();
+			}
+			if (error != null) throw error;
+			return;
+		}
+	}
+
+	private void check() throws IOException {
+		if (closed) throw new IOException("Appender closed : " + file);
+		if (failure != null)
+			throw (IOException) new IOException("Appender failed : " + file)
+				.initCause(failure);
+	}
+
+	private void await() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting to append to : " + file);
+		}
+	}
+
+	/** Schedules a flush in flushMillis - holding the lock */
+	private void schedule() {
+		if (flushMillis == 0 || scheduled) return;
+		scheduled = true;
+		timer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (Appender.this) {
+					scheduled = false;
+					if (closed || failure != null) return;
+				}
+				try {
+					flush();
+				} catch (IOException e) {
+					// sticky - thrown by the next call
+				}
+			}
+		}, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "Appender-flush");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+}
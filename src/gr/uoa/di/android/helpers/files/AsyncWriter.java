@@ -0,0 +1,309 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends records to a file from a background thread - see
+ * {@link Writer#asyncWriter(File, int, Overflow)}. The producers copy their
+ * records into a ring buffer allocated once and return - they never wait for
+ * the disk (unless the buffer is full and the {@link Overflow} policy is
+ * BLOCK). A single thread takes all the records in the buffer at once and
+ * appends them with one write - the slower the disk the bigger the writes.
+ *
+ * Records are written whole and in the order they were appended. Records
+ * still in the buffer are lost if the process dies - call {@link #flush()} to
+ * wait for them to be written and {@link #close()} when done. Thread safe.
+ */
+public final class AsyncWriter implements Closeable {
+
+	/** What append() does when the buffer has no room for the record */
+	public enum Overflow {
+		/** wait till the writer thread makes room */
+		BLOCK,
+		/** drop the oldest records in the buffer till there is room */
+		DROP_OLDEST,
+		/** drop the record appended - append() returns false */
+		DROP_NEWEST
+	}
+
+	/** Each record in the ring is prefixed by its length */
+	private static final int HEADER = 4;
+	private final File file;
+	private final FileChannel channel;
+	private final Overflow overflow;
+	private final byte[] ring;
+	/** Where the writer thread copies the records to - used by it alone */
+	private final byte[] batch;
+	private final Thread thread;
+	// guarded by this
+	private int head; // the index of the oldest record
+	private int size; // bytes in the ring, headers included
+	private int records;
+	private boolean writing;
+	private boolean closed;
+	private long dropped;
+	private long written;
+	private IOException failure;
+
+	AsyncWriter(final File file, final int capacity, final Overflow overflow)
+			throws IOException {
+		if (capacity <= HEADER)
+			throw new IllegalArgumentException("Illegal capacity : " + capacity);
+		if (overflow == null)
+			throw new NullPointerException("Null overflow policy");
+		this.file = file;
+		this.overflow = overflow;
+		ring = new byte[capacity];
+		batch = new byte[capacity];
+		// closed with the channel
+		channel = new FileOutputStream(file, true).getChannel();
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "AsyncWriter-" + file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Queues the bytes for writing
+	 *
+	 * @return false if the record was dropped (DROP_NEWEST), true otherwise
+	 * @throws IOException
+	 *             if closed or a write failed
+	 * @throws IllegalArgumentException
+	 *             if the record can't fit in the buffer even when empty
+	 */
+	public boolean append(final byte[] bytes) throws IOException {
+		return append(bytes, 0, bytes.length);
+	}
+
+	/** Queues length bytes of the array starting at offset */
+	public boolean append(final byte[] bytes, final int offset,
+			final int length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IndexOutOfBoundsException("Offset : " + offset
+				+ ", length : " + length + ", array length : " + bytes.length);
+		final int needed = HEADER + length;
+		if (needed > ring.length)
+			throw new IllegalArgumentException("Record of " + length
+				+ " bytes does not fit in a buffer of " + ring.length);
+		synchronized (this) {
+			check();
+			while (ring.length - size < needed) {
+				switch (overflow) {
+				case DROP_NEWEST:
+					++dropped;
+					return false;
+				case DROP_OLDEST:
+					dropOldest();
+					break;
+				case BLOCK:
+					await();
+					check();
+					break;
+				}
+			}
+			final int tail = (head + size) % ring.length;
+			putInt(tail, length);
+			put(bytes, offset, (tail + HEADER) % ring.length, length);
+			size += needed;
+			if (++records == 1) notifyAll(); // the writer thread may wait
+			return true;
+		}
+	}
+
+	/**
+	 * Waits till the records appended before this call are written
+	 *
+	 * @throws IOException
+	 *             if closed, a write failed or interrupted
+	 */
+	public synchronized void flush() throws IOException {
+		check();
+		while (records > 0 || writing) {
+			await();
+			check();
+		}
+	}
+
+	/**
+	 * Writes the records in the buffer, stops the writer thread and closes the
+	 * file - threads blocked in append() and later calls throw. Idempotent.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		synchronized (this) {
+			if (failure != null)
+				throw (IOException) new IOException("Write failed : " + file)
+					.initCause(failure);
+		}
+	}
+
+	// =========================================================================
+	// Counters
+	// =========================================================================
+	/** The number of records waiting to be written */
+	public synchronized int queueDepth() {
+		return records;
+	}
+
+	/** The bytes in the buffer - the records and their length headers */
+	public synchronized int queuedBytes() {
+		return size;
+	}
+
+	public int capacity() {
+		return ring.length;
+	}
+
+	/** The number of records dropped because the buffer was full */
+	public synchronized long dropped() {
+		return dropped;
+	}
+
+	/** The number of records written */
+	public synchronized long written() {
+		return written;
+	}
+
+	// =========================================================================
+	// Writer thread
+	// =========================================================================
+	private void drain() {
+		try {
+			while (true) {
+				final int count, length;
+				synchronized (this) {
+					while (records == 0 && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// only close() stops me
+						}
+					}
+					if (records == 0) return; // closed
+					count = records;
+					length = take();
+					writing = true;
+					notifyAll(); // room for blocked appenders
+				}
+				IOException error = null;
+				try {
+					final ByteBuffer buffer = ByteBuffer.wrap(batch, 0, length);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				synchronized (this) {
+					writing = false;
+					if (error == null) written += count;
+					else failure = error;
+					notifyAll();
+					if (error != null) return;
+				}
+			}
+		} finally {
+			FileUtils.close(channel);
+		}
+	}
+
+	/** Copies all the records in the ring to batch, without headers */
+	private int take() {
+		int length = 0;
+		while (records > 0) {
+			final int n = getInt(head);
+			get((head + HEADER) % ring.length, length, n);
+			length += n;
+			advance(HEADER + n);
+		}
+		return length;
+	}
+
+	private void dropOldest() {
+		advance(HEADER + getInt(head));
+		++dropped;
+		notifyAll(); // flush() may wait for this record
+	}
+
+	private void advance(final int bytes) {
+		head = (head + bytes) % ring.length;
+		size -= bytes;
+		--records;
+	}
+
+	// =========================================================================
+	// Ring helpers - wrap around the end of the array
+	// =========================================================================
+	private void put(final byte[] src, final int offset, final int at,
+			final int length) {
+		final int first = Math.min(length, ring.length - at);
+		System.arraycopy(src, offset, ring, at, first);
+		System.arraycopy(src, offset + first, ring, 0, length - first);
+	}
+
+	private void get(final int at, final int offset, final int length) {
+		final int first = Math.min(length, ring.length - at);
+		System.arraycopy(ring, at, batch, offset, first);
+		System.arraycopy(ring, 0, batch, offset + first, length - first);
+	}
+
+	private void putInt(final int at, final int value) {
+		for (int i = 0; i < HEADER; ++i) {
+			ring[(at + i) % ring.length] = (byte) (value >>> (24 - 8 * i));
+		}
+	}
+
+	private int getInt(final int at) {
+		int value = 0;
+		for (int i = 0; i < HEADER; ++i) {
+			value = (value << 8) | (ring[(at + i) % ring.length] & 0xff);
+		}
+		return value;
+	}
+
+	private void check() throws IOException {
+		if (closed) throw new IOException("AsyncWriter closed : " + file);
+		if (failure != null)
+			throw (IOException) new IOException("Write failed : " + file)
+				.initCause(failure);
+	}
+
+	private void await() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for : " + file);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.IOException;
+
+/**
+ * A chunk action for {@link Reader#readChunks(java.io.File, int, ChunkAction)}
+ * - called with each chunk of the file as it is read. The array is reused for
+ * the next chunk, so the action must copy what it wants to keep.
+ */
+public interface ChunkAction {
+
+	/**
+	 * @param chunk
+	 *            the buffer holding the chunk, from index 0
+	 * @param length
+	 *            the number of bytes in the chunk - always greater than 0
+	 * @return true to go on reading, false to stop
+	 */
+	boolean useChunk(byte[] chunk, int length) throws IOException;
+}
@@ -0,0 +1,97 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decoders cached per thread and per charset name - Charset.forName() and
+ * newDecoder() cost more than decoding a small file. A decoder is taken out
+ * of the cache while in use and given back after, so a decode nested in
+ * another (a LineAction that reads a file) gets a decoder of its own.
+ */
+final class Decoders {
+
+	private static final ThreadLocal<Map<String, Decoder>> CACHE = new ThreadLocal<Map<String, Decoder>>() {
+
+		@Override
+		protected Map<String, Decoder> initialValue() {
+			return new HashMap<String, Decoder>();
+		}
+	};
+
+	private Decoders() {}
+
+	/** A decoder for the charset named csName, reset - give() it back */
+	static Decoder take(final String csName) {
+		final Decoder cached = CACHE.get().remove(csName);
+		if (cached == null) return new Decoder(Charset.forName(csName));
+		cached.decoder.reset();
+		return cached;
+	}
+
+	static void give(final String csName, final Decoder decoder) {
+		CACHE.get().put(csName, decoder);
+	}
+
+	/** Decodes the bytes to a string using a cached decoder */
+	static String decode(final byte[] bytes, final String csName)
+			throws CharacterCodingException {
+		final Decoder decoder = take(csName);
+		try {
+			return decoder.decode(bytes);
+		} finally {
+			give(csName, decoder);
+		}
+	}
+
+	static final class Decoder {
+
+		/** What the String constructors put in place of malformed input */
+		private static final char REPLACEMENT = '\uFFFD';
+		final CharsetDecoder decoder;
+		private final String name;
+		/**
+		 * The charset is US-ASCII or UTF-8 - which the String constructors
+		 * decode fastest - or ISO-8859-1, which maps the bytes to the chars
+		 * 0-255 and has no malformed input
+		 */
+		private final boolean platform, latin1;
+
+		Decoder(final Charset cs) {
+			decoder = cs.newDecoder();
+			name = cs.name();
+			latin1 = "ISO-8859-1".equals(name);
+			platform = "US-ASCII".equals(name) || "UTF-8".equals(name);
+		}
+
+		/**
+		 * Decodes the bytes. US-ASCII and UTF-8 are decoded by the String
+		 * constructor - which checks for ASCII and inflates the bytes with
+		 * vectorized intrinsics on the VMs that have them, and skips the
+		 * decoder's char buffer and its copy to a string. The constructor
+		 * replaces malformed input instead of throwing, so its result is only
+		 * kept if it has no U+FFFD - otherwise the decoder has the final say.
+		 * Telling that is free for an all ASCII string (stored as bytes on
+		 * the VMs with compact strings), a scan otherwise.
+		 */
+		@SuppressWarnings("deprecation")
+		String decode(final byte[] bytes) throws CharacterCodingException {
+			// the high byte of each char is 0
+			if (latin1) return new String(bytes, 0, 0, bytes.length);
+			if (platform) {
+				try {
+					final String fast = new String(bytes, name);
+					if (fast.indexOf(REPLACEMENT) < 0) return fast;
+				} catch (UnsupportedEncodingException e) {
+					// can't be - I have the charset. Let the decoder do it
+				}
+			}
+			return decoder.decode(ByteBuffer.wrap(bytes)).toString();
+		}
+	}
+}
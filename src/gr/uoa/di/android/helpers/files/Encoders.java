@@ -0,0 +1,104 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoders cached per thread and per charset name, each with a direct buffer
+ * it encodes into - so a string of up to BUFFER_SIZE bytes is written to a
+ * channel without a byte array per write (as String.getBytes() allocates) or
+ * a copy from the heap to a native buffer in the channel. Taken out of the
+ * cache while in use, as in {@link Decoders}.
+ */
+final class Encoders {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final ThreadLocal<Map<String, Encoder>> CACHE = new ThreadLocal<Map<String, Encoder>>() {
+
+		@Override
+		protected Map<String, Encoder> initialValue() {
+			return new HashMap<String, Encoder>();
+		}
+	};
+
+	private Encoders() {}
+
+	/**
+	 * An encoder for the charset named csName, reset - give() it back
+	 *
+	 * @throws UnsupportedEncodingException
+	 *             if the charset is not supported - as String.getBytes()
+	 */
+	static Encoder take(final String csName)
+			throws UnsupportedEncodingException {
+		final Encoder cached = CACHE.get().remove(csName);
+		if (cached != null) {
+			cached.encoder.reset();
+			return cached;
+		}
+		try {
+			return new Encoder(Charset.forName(csName));
+		} catch (IllegalCharsetNameException e) {
+			throw new UnsupportedEncodingException(csName);
+		} catch (UnsupportedCharsetException e) {
+			throw new UnsupportedEncodingException(csName);
+		}
+	}
+
+	static void give(final String csName, final Encoder encoder) {
+		CACHE.get().put(csName, encoder);
+	}
+
+	static final class Encoder {
+
+		final CharsetEncoder encoder;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Encoder(final Charset cs) {
+			// replace what can't be encoded - as String.getBytes() does
+			encoder = cs.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		/**
+		 * Encodes data and writes it to the channel in a single write - so
+		 * appends of other threads or processes to an O_APPEND file won't end
+		 * up in the middle of it. Data that does not fit in the direct buffer
+		 * is encoded with getBytes() instead - a string of more than
+		 * BUFFER_SIZE bytes allocates its bytes, as before.
+		 */
+		void write(final CharSequence data, final WritableByteChannel channel)
+				throws IOException {
+			if (data.length() <= BUFFER_SIZE) { // else it can't fit
+				buffer.clear();
+				if (encoder.encode(CharBuffer.wrap(data), buffer, true)
+					.isUnderflow() && encoder.flush(buffer).isUnderflow()) {
+					buffer.flip();
+					write(buffer, channel);
+					return;
+				}
+			}
+			// getBytes() replaces what can't be encoded, as the encoder does
+			write(ByteBuffer.wrap(data.toString().getBytes(
+				encoder.charset().name())), channel);
+		}
+
+		private static void write(final ByteBuffer bytes,
+				final WritableByteChannel channel) throws IOException {
+			while (bytes.hasRemaining()) { // once for files, bar errors
+				channel.write(bytes);
+			}
+		}
+	}
+}
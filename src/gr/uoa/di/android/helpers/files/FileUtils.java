@@ -5,7 +5,11 @@ import android.util.Log;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
 
@@ -114,6 +118,70 @@ public final class FileUtils {
 		}
 	}
 
+	/**
+	 * Forces the entries of the directory to the disk (fsync) - so a file
+	 * created or renamed in it survives a crash. Java 6 can't open a
+	 * directory, so this is best effort : via android.system.Os on Android
+	 * 5+, FileChannel.open() on Java 7+ (and Android 8+).
+	 *
+	 * @return false if the platform would not let me open the directory -
+	 *         nothing was forced
+	 * @throws IOException
+	 *             if the directory was opened but the fsync failed
+	 */
+	static boolean syncDir(final File directory) throws IOException {
+		try { // Android
+			final Class<?> os = Class.forName("android.system.Os");
+			final int readOnly = Class.forName("android.system.OsConstants")
+				.getField("O_RDONLY").getInt(null);
+			final Object fd;
+			try {
+				fd = os.getMethod("open", String.class, int.class, int.class)
+					.invoke(null, directory.getPath(), readOnly, 0);
+			} catch (InvocationTargetException e) {
+				return false;
+			}
+			try {
+				os.getMethod("fsync", FileDescriptor.class).invoke(null, fd);
+			} catch (InvocationTargetException e) {
+				throw (IOException) new IOException("Can not sync "
+					+ directory).initCause(e.getCause());
+			} finally {
+				os.getMethod("close", FileDescriptor.class).invoke(null, fd);
+			}
+			return true;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			// not on Android 5+
+		}
+		try { // Java 7+
+			final Class<?> option = Class.forName("java.nio.file.OpenOption");
+			final Object options = Array.newInstance(option, 1);
+			Array.set(options, 0, Class.forName(
+				"java.nio.file.StandardOpenOption").getField("READ").get(null));
+			final FileChannel channel;
+			try {
+				channel = (FileChannel) FileChannel.class.getMethod("open",
+					Class.forName("java.nio.file.Path"), options.getClass())
+					.invoke(null, File.class.getMethod("toPath")
+						.invoke(directory), options);
+			} catch (InvocationTargetException e) {
+				return false; // Windows won't open a directory
+			}
+			try {
+				channel.force(true);
+			} finally {
+				close(channel);
+			}
+			return true;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			return false; // Java 6 or old Android
+		}
+	}
+
 	// =========================================================================
 	// Helpers
 	// =========================================================================
@@ -132,7 +200,7 @@ public final class FileUtils {
 	 * @throws IllegalArgumentException
 	 *             if the directory does not exist or is not a directory
 	 */
-	private static long sizeOfDirectory(File directory) {
+	static long sizeOfDirectory(File directory) {
 		final File[] files = directory.listFiles();
 		if (files == null) { // null maybe if security restricted
 			String message = null;
@@ -0,0 +1,16 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A read action for the execute around methods of {@link Reader} - the stream
+ * is opened and closed by Reader, the action must not close it.
+ *
+ * @param <T>
+ *            the type of the result of the action
+ */
+public interface InputStreamAction<T> {
+
+	T useStream(InputStream stream) throws IOException;
+}
@@ -0,0 +1,20 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.IOException;
+
+/**
+ * A line action for {@link Reader#readLines(java.io.File, String, LineAction)}
+ * - called with each line of the file as it is decoded. The line is a view of
+ * a buffer that is reused for the next line, so the action must call
+ * toString() on what it wants to keep.
+ */
+public interface LineAction {
+
+	/**
+	 * @param line
+	 *            the line without its terminator - valid till the action
+	 *            returns
+	 * @return true to go on reading, false to stop
+	 */
+	boolean useLine(CharSequence line) throws IOException;
+}
@@ -0,0 +1,202 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * A file mapped read only in memory - see {@link Reader#map(java.io.File)}.
+ * The file is mapped in segments of {@link #SEGMENT_SIZE} bytes (the last one
+ * may be shorter) as a buffer can't be longer than 2GB - {@link #get(long)}
+ * and {@link #chars(long, int)} hide the segments. Pages are loaded by the OS
+ * on first access and are not on the heap, so files much bigger than the heap
+ * can be read.
+ *
+ * The mapping normally lives till the buffers are garbage collected - which
+ * may be never for a long lived process that does not allocate much.
+ * {@link #close()} unmaps at once, where the platform lets me (Android and
+ * OpenJDK do). Accessing any of the buffers or char sequences returned after
+ * close() may crash the process, so don't close while another thread reads.
+ *
+ * Thread safe for reading - the buffers returned by {@link #segment(int)} are
+ * shared though, so threads must use absolute gets or duplicate() them.
+ */
+public final class MappedFile implements Closeable {
+
+	private static final int SEGMENT_SHIFT = 30;
+	/** 1GB - a power of 2 so finding the segment of a position is a shift */
+	public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private final long length;
+	private volatile MappedByteBuffer[] segments;
+
+	MappedFile(final MappedByteBuffer[] segments, final long length) {
+		this.segments = segments;
+		this.length = length;
+	}
+
+	/** The length of the file when it was mapped */
+	public long length() {
+		return length;
+	}
+
+	public int segmentCount() {
+		return segments().length;
+	}
+
+	/**
+	 * The i-th segment - it covers [i * SEGMENT_SIZE, i * SEGMENT_SIZE +
+	 * capacity) of the file. For files up to 1GB segment(0) is the whole file.
+	 * The buffer is read only and shared - duplicate() it to move its position
+	 * independently.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if there is no such segment
+	 * @throws IllegalStateException
+	 *             if closed
+	 */
+	public MappedByteBuffer segment(final int i) {
+		return segments()[i];
+	}
+
+	/**
+	 * The byte at the given position of the file. Each call checks the
+	 * bounds and whether the file was closed - for a scan of the whole file
+	 * loop over the {@link #segment(int)} buffers instead, several times
+	 * faster.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if position is not in [0, length())
+	 * @throws IllegalStateException
+	 *             if closed
+	 */
+	public byte get(final long position) {
+		if (position < 0 || position >= length)
+			throw new IndexOutOfBoundsException("Position : " + position
+				+ ", length : " + length);
+		return segments()[(int) (position >>> SEGMENT_SHIFT)]
+			.get((int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * A char sequence view of the whole file - no bytes are copied or decoded.
+	 * See {@link #chars(long, int)}.
+	 *
+	 * @throws IllegalStateException
+	 *             if the file is longer than Integer.MAX_VALUE bytes - use
+	 *             chars(long, int) for windows of it
+	 */
+	public CharSequence chars() {
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalStateException("File too long for a single "
+				+ "CharSequence : " + length + " bytes");
+		return chars(0, (int) length);
+	}
+
+	/**
+	 * A char sequence view of length bytes of the file starting at start - no
+	 * bytes are copied or decoded, each byte is read as a char (ISO-8859-1)
+	 * when asked for. This is the file's text for ASCII content. For UTF-8
+	 * content the ASCII characters (delimiters, keys, digits) are still right
+	 * - so you can search it, e.g. with a regex Matcher, and decode only the
+	 * ranges found. Only toString() copies.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if the range is not within the file
+	 */
+	public CharSequence chars(final long start, final int length) {
+		// not start + length > this.length, which overflows for huge starts
+		if (start < 0 || length < 0 || start > this.length - length)
+			throw new IndexOutOfBoundsException("Start : " + start
+				+ ", length : " + length + ", file length : " + this.length);
+		return new ByteChars(start, length);
+	}
+
+	/**
+	 * Unmaps the file - or leaves it to the garbage collector if the platform
+	 * does not let me. The file must not be accessed after that. Idempotent.
+	 */
+	@Override
+	public void close() {
+		final MappedByteBuffer[] unmapped;
+		synchronized (this) {
+			unmapped = segments;
+			segments = null;
+		}
+		if (unmapped == null) return;
+		for (MappedByteBuffer buffer : unmapped) {
+			unmap(buffer);
+		}
+	}
+
+	private MappedByteBuffer[] segments() {
+		final MappedByteBuffer[] result = segments;
+		if (result == null) throw new IllegalStateException("Closed");
+		return result;
+	}
+
+	/** Best effort - there is no public API for it */
+	private static void unmap(final ByteBuffer buffer) {
+		try { // Android
+			Class.forName("java.nio.NioUtils")
+				.getMethod("freeDirectBuffer", ByteBuffer.class)
+				.invoke(null, buffer);
+			return;
+		} catch (Exception e) {
+			// not on Android
+		}
+		try { // OpenJDK 9+
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			final Method invokeCleaner = unsafeClass.getMethod(
+				"invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	private final class ByteChars implements CharSequence {
+
+		private final long start;
+		private final int length;
+
+		ByteChars(final long start, final int length) {
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(final int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException("Index : " + index
+					+ ", length : " + length);
+			return (char) (get(start + index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(final int from, final int to) {
+			if (from < 0 || from > to || to > length)
+				throw new IndexOutOfBoundsException("From : " + from
+					+ ", to : " + to + ", length : " + length);
+			return new ByteChars(start + from, to - from);
+		}
+
+		@Override
+		public String toString() {
+			final char[] chars = new char[length];
+			for (int i = 0; i < length; ++i) {
+				chars[i] = (char) (get(start + i) & 0xff);
+			}
+			return new String(chars);
+		}
+	}
+}
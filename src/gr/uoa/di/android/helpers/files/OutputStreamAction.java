@@ -0,0 +1,13 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A write action for the execute around methods of {@link Writer} - the
+ * stream is opened and closed by Writer, the action must not close it.
+ */
+public interface OutputStreamAction {
+
+	void useStream(OutputStream stream) throws IOException;
+}
@@ -1,14 +1,24 @@
 package gr.uoa.di.android.helpers.files;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 
 public final class Reader {
 
+	private static final int BUFFER_SIZE = 8192;
+	/** Some VMs reserve header words in an array */
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
 	private Reader() {}
 
 	// =========================================================================
@@ -16,44 +26,309 @@ public final class Reader {
 	// =========================================================================
 	public static String read(final String filename, final String csName)
 			throws IOException {
-		final Charset cs = Charset.forName(csName);
-		final byte[] ba = readFile(filename, new InputStreamAction());
-		return cs.newDecoder().decode(ByteBuffer.wrap(ba)).toString();
+		// the decoder is cached per thread - and ASCII content is not decoded
+		return Decoders.decode(readAll(filename), csName);
 	}
 
 	public static byte[] read(final String filename) throws IOException {
-		return readFile(filename, new InputStreamAction());
+		return readAll(filename);
 	}
 
-	private static byte[] readFile(final String filename,
-			final InputStreamAction action) throws IOException {
-		InputStream stream = new FileInputStream(filename);
+	/**
+	 * Reads the file with the given action - for data that is consumed
+	 * piecemeal and should not be read in a byte array first. The stream is
+	 * not buffered and is closed when the action returns (or throws).
+	 *
+	 * @param file
+	 *            the file to read
+	 * @param action
+	 *            the read action
+	 * @return what the action returns
+	 * @throws IOException
+	 *             if the file cannot be opened for reading
+	 *             (FileNotFoundException) or if an IO error occurs during the
+	 *             action
+	 */
+	public static <T> T read(final File file, final InputStreamAction<T> action)
+			throws IOException {
+		return readFile(file.getPath(), action);
+	}
+
+	// =========================================================================
+	// Streaming - bounded memory whatever the size of the file
+	// =========================================================================
+	/**
+	 * Reads the file in chunks of chunkSize bytes, passing each to the action
+	 * as soon as it is read - all chunks but the last are full. A single array
+	 * is used for all the chunks. The file is closed when this returns (or
+	 * throws).
+	 *
+	 * @param file
+	 *            the file to read
+	 * @param chunkSize
+	 *            the size of the chunks, and of the buffer
+	 * @param action
+	 *            the chunk action - may stop the read by returning false
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             if the file cannot be opened for reading
+	 *             (FileNotFoundException) or if an IO error occurs during the
+	 *             read or the action
+	 * @throws IllegalArgumentException
+	 *             if chunkSize is not positive
+	 */
+	public static long readChunks(final File file, final int chunkSize,
+			final ChunkAction action) throws IOException {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Illegal chunk size : "
+				+ chunkSize);
+		return readFile(file.getPath(), new InputStreamAction<Long>() {
+
+			@Override
+			public Long useStream(final InputStream stream) throws IOException {
+				final byte[] chunk = new byte[chunkSize];
+				long total = 0;
+				while (true) {
+					int length = 0, read = 0;
+					while (length < chunkSize
+						&& (read = stream.read(chunk, length, chunkSize
+							- length)) >= 0) {
+						length += read;
+					}
+					if (length > 0) {
+						total += length;
+						if (!action.useChunk(chunk, length)) break;
+					}
+					if (read < 0) break;
+				}
+				return total;
+			}
+		});
+	}
+
+	/**
+	 * Reads the file line by line, passing each line to the action as soon as
+	 * it is decoded. Lines end in "\n", "\r" or "\r\n" - as in
+	 * BufferedReader.readLine(). Bytes are read into a single 8K buffer and
+	 * decoded into a single 8K char buffer; the line passed is a builder
+	 * reused for all lines, so memory is bounded by the length of the longest
+	 * line. The file is closed when this returns (or throws).
+	 *
+	 * @param file
+	 *            the file to read
+	 * @param csName
+	 *            the name of the charset of the file
+	 * @param action
+	 *            the line action - may stop the read by returning false
+	 * @return the number of lines passed to the action
+	 * @throws IOException
+	 *             if the file cannot be opened for reading
+	 *             (FileNotFoundException), if an IO error occurs during the
+	 *             read or the action or if the file is not valid in the
+	 *             charset (CharacterCodingException)
+	 */
+	public static long readLines(final File file, final String csName,
+			final LineAction action) throws IOException {
+		final Decoders.Decoder decoder = Decoders.take(csName);
 		try {
-			return action.useStream(stream);
+			return readFile(file.getPath(), new InputStreamAction<Long>() {
+
+				@Override
+				public Long useStream(final InputStream stream)
+						throws IOException {
+					return new LineSplitter(decoder.decoder, action)
+						.split(stream);
+				}
+			});
 		} finally {
-			FileIO.close(stream);
+			Decoders.give(csName, decoder);
 		}
 	}
-}
-
-class InputStreamAction {
 
+	// =========================================================================
+	// Memory mapped files - for files too big to be read on the heap
+	// =========================================================================
 	/**
-	 * Based on code by Skeet for reading a file to a string :
-	 * http://stackoverflow.com/a/326531/281545
+	 * Maps the file read only in memory - nothing is read till accessed, and
+	 * then by the OS, one page at a time, outside the heap. For big files
+	 * that are parsed rather than kept - a whole 300MB file read with
+	 * {@link #read(String)} needs 300MB of heap. Files over 1GB are mapped in
+	 * segments, see {@link MappedFile}. The file must not be truncated while
+	 * mapped - accessing the missing pages crashes the process. Close the
+	 * MappedFile when done to unmap it at once.
 	 *
-	 * @param stream
-	 * @return
+	 * @param file
+	 *            the file to map
+	 * @return the mapped file
 	 * @throws IOException
+	 *             if the file cannot be opened for reading
+	 *             (FileNotFoundException) or mapped
+	 */
+	public static MappedFile map(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+			final long size = MappedFile.SEGMENT_SIZE;
+			// an empty file gets an empty segment
+			final int count = (int) Math.max((length + size - 1) / size, 1);
+			final MappedByteBuffer[] segments = new MappedByteBuffer[count];
+			for (int i = 0; i < segments.length; ++i) {
+				final long start = i * size;
+				segments[i] = channel.map(MapMode.READ_ONLY, start, Math.min(
+					size, length - start));
+			}
+			return new MappedFile(segments, length);
+		} finally {
+			FileUtils.close(raf); // the mappings stay valid
+		}
+	}
+
+	// =========================================================================
+	// Private execute around methods
+	// =========================================================================
+	private static <T> T readFile(final String filename,
+			final InputStreamAction<T> action) throws IOException {
+		InputStream stream = new FileInputStream(filename);
+		try {
+			return action.useStream(stream);
+		} finally {
+			FileUtils.close(stream);
+		}
+	}
+
+	/**
+	 * Reads the whole file in a byte array sized from the file's length and
+	 * filled straight from its channel - no intermediate buffers, no copy at
+	 * the end. Files whose length is not known in advance (0 for most files
+	 * under /proc) or changes while reading are read in a growing array, as
+	 * with a ByteArrayOutputStream.
 	 */
-	byte[] useStream(final InputStream stream) throws IOException {
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		final int length = 8192;
-		byte[] buffer = new byte[length];
-		int read;
-		while ((read = stream.read(buffer, 0, length)) > 0) {
-			baos.write(buffer, 0, read);
-		}
-		return baos.toByteArray();
+	private static byte[] readAll(final String filename) throws IOException {
+		final FileInputStream stream = new FileInputStream(filename);
+		try {
+			return readAll(stream.getChannel()); // closed with the stream
+		} finally {
+			FileUtils.close(stream);
+		}
+	}
+
+	/** Package private for the tests */
+	static byte[] readAll(final FileChannel channel) throws IOException {
+		final long size = channel.size() - channel.position();
+		if (size > MAX_ARRAY_LENGTH)
+			throw new IOException("File too large to read in memory : " + size
+				+ " bytes");
+		byte[] bytes = new byte[size > 0 ? (int) size : BUFFER_SIZE];
+		ByteBuffer next = null; // reused by all the probes of this read
+		int length = 0;
+		while ((length = fill(channel, bytes, length)) == bytes.length) {
+			// full - the usual case is that the file ends here, which costs a
+			// read of one byte to tell
+			if (next == null) next = ByteBuffer.allocate(1);
+			else next.clear();
+			if (channel.read(next) < 0) return bytes;
+			if (bytes.length == MAX_ARRAY_LENGTH)
+				throw new IOException("File too large to read in memory");
+			final byte[] grown = new byte[(int) Math.min(2L * bytes.length,
+				MAX_ARRAY_LENGTH)];
+			System.arraycopy(bytes, 0, grown, 0, length);
+			grown[length++] = next.get(0);
+			bytes = grown;
+		}
+		// the file was shorter than its length said, or of unknown length
+		final byte[] result = new byte[length];
+		System.arraycopy(bytes, 0, result, 0, length);
+		return result;
+	}
+
+	/** Reads into bytes from offset till bytes are full or the end of file */
+	private static int fill(final FileChannel channel, final byte[] bytes,
+			final int offset) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, bytes.length
+			- offset);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) break;
+		}
+		return buffer.position();
+	}
+
+	/** Decodes a stream and splits it in lines - see readLines() */
+	private static final class LineSplitter {
+
+		private final CharsetDecoder decoder;
+		private final LineAction action;
+		private final StringBuilder line = new StringBuilder();
+		/** The last char seen was a '\r' - a '\n' following it is skipped */
+		private boolean afterCR;
+		private long lines;
+
+		LineSplitter(final CharsetDecoder decoder, final LineAction action) {
+			this.decoder = decoder;
+			this.action = action;
+		}
+
+		long split(final InputStream stream) throws IOException {
+			final byte[] bytes = new byte[BUFFER_SIZE];
+			final ByteBuffer in = ByteBuffer.wrap(bytes);
+			final CharBuffer out = CharBuffer.allocate(BUFFER_SIZE);
+			boolean eof = false;
+			while (!eof) {
+				// in holds the bytes of a char split between reads, if any
+				final int read = stream.read(bytes, in.position(),
+					in.remaining());
+				eof = read < 0;
+				if (!eof) in.position(in.position() + read);
+				in.flip();
+				CoderResult result;
+				do {
+					result = decoder.decode(in, out, eof);
+					if (result.isError()) result.throwException();
+					if (!split(out)) return lines;
+				} while (result.isOverflow());
+				in.compact();
+			}
+			CoderResult result;
+			do {
+				result = decoder.flush(out);
+				if (!split(out)) return lines;
+			} while (result.isOverflow());
+			if (line.length() > 0) emit(); // the last line had no terminator
+			return lines;
+		}
+
+		/** Splits the chars decoded in out - returns false to stop */
+		private boolean split(final CharBuffer out) throws IOException {
+			out.flip();
+			final char[] chars = out.array();
+			final int end = out.limit();
+			int start = 0;
+			for (int i = 0; i < end; ++i) {
+				final char c = chars[i];
+				if (c != '\n' && c != '\r') continue;
+				if (c == '\n' && afterCR && i == start) { // "\r\n"
+					afterCR = false;
+					start = i + 1;
+					continue;
+				}
+				line.append(chars, start, i - start);
+				if (!emit()) return false;
+				afterCR = c == '\r';
+				start = i + 1;
+			}
+			if (start < end) {
+				line.append(chars, start, end - start);
+				afterCR = false;
+			}
+			out.clear();
+			return true;
+		}
+
+		private boolean emit() throws IOException {
+			++lines;
+			final boolean more = action.useLine(line);
+			line.setLength(0);
+			return more;
+		}
 	}
 }
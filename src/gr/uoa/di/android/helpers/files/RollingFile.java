@@ -0,0 +1,264 @@
+package gr.uoa.di.android.helpers.files;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A log file split in segments - see {@link Writer#rollingFile(File, long,
+ * long, long)}. Appends go to the active segment, {@code <name>.<millis>} in
+ * the directory of the file, where millis is when the segment was started (so
+ * segments sort by name). The active segment is closed and a new one started
+ * when it would grow past maxSegmentBytes or, on the first append after it,
+ * when it is maxSegmentMillis old. A closed segment is gzipped to
+ * {@code <name>.<millis>.gz} on a background thread - so it can be uploaded
+ * or read as is - then the oldest segments are deleted while the size of the
+ * directory is over maxTotalBytes. Appends never wait for those. Segments
+ * left uncompressed by a previous run are compressed when the file is opened.
+ *
+ * The size cap counts all the files in the directory, so give each rolling
+ * file a directory of its own. Thread safe.
+ */
+public final class RollingFile implements Closeable {
+
+	private static final String GZ = ".gz";
+	private static final String TMP = ".tmp";
+	private static final int BUFFER_SIZE = 8192;
+	/** The compressions and deletions of all the rolling files */
+	private static ExecutorService background; // guarded by class
+	private final File dir;
+	private final String name;
+	private final long maxSegmentBytes;
+	private final long maxSegmentMillis;
+	private final long maxTotalBytes;
+	// guarded by this
+	private Appender active;
+	private long activeBytes;
+	private long activeStart;
+	private boolean closed;
+
+	RollingFile(final File file, final long maxSegmentBytes,
+			final long maxSegmentMillis, final long maxTotalBytes)
+			throws IOException {
+		if (maxSegmentBytes <= 0)
+			throw new IllegalArgumentException("Illegal maxSegmentBytes : "
+				+ maxSegmentBytes);
+		if (maxSegmentMillis < 0)
+			throw new IllegalArgumentException("Illegal maxSegmentMillis : "
+				+ maxSegmentMillis);
+		if (maxTotalBytes < 0)
+			throw new IllegalArgumentException("Illegal maxTotalBytes : "
+				+ maxTotalBytes);
+		this.dir = file.getAbsoluteFile().getParentFile();
+		this.name = file.getName();
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxSegmentMillis = maxSegmentMillis;
+		this.maxTotalBytes = maxTotalBytes;
+		if (!FileUtils.createDir(dir))
+			throw new IOException("Can not create folder " + dir);
+		// leftovers of a previous run - the last active segment included
+		for (File segment : segments()) {
+			final String n = segment.getName();
+			if (n.endsWith(TMP)) segment.delete(); // compression interrupted
+			else if (!n.endsWith(GZ)) compress(segment);
+		}
+		open(System.currentTimeMillis());
+	}
+
+	/** The directory of the segments */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Appends the bytes to the active segment - starting a new one first if
+	 * needed. A record is never split between segments, so a segment may be
+	 * longer than maxSegmentBytes if a single record is.
+	 *
+	 * @throws IOException
+	 *             if closed or the write failed
+	 */
+	public synchronized void append(final byte[] bytes) throws IOException {
+		if (closed) throw new IOException("RollingFile closed : " + name);
+		final long now = System.currentTimeMillis();
+		final boolean full = activeBytes + bytes.length > maxSegmentBytes;
+		final boolean old = maxSegmentMillis > 0
+			&& now - activeStart >= maxSegmentMillis;
+		if (activeBytes > 0 && (full || old)) roll(now);
+		active.append(bytes);
+		activeBytes += bytes.length;
+	}
+
+	/** Appends the string encoded in the given charset */
+	public void append(final String data, final String charsetName)
+			throws IOException {
+		append(data.getBytes(charsetName));
+	}
+
+	/**
+	 * Closes the active segment and starts a new one - say before uploading
+	 * the segments. Does nothing if the active segment is empty.
+	 */
+	public synchronized void roll() throws IOException {
+		if (closed) throw new IOException("RollingFile closed : " + name);
+		if (activeBytes > 0) roll(System.currentTimeMillis());
+	}
+
+	/**
+	 * The segments, oldest first - the last is the active one. The ones
+	 * ending in .gz are complete, the rest may be written or compressed.
+	 */
+	public List<File> segments() {
+		final List<File> segments = new ArrayList<File>();
+		for (File f : FileUtils.listFiles(dir)) {
+			if (f.getName().startsWith(name + ".") && f.isFile())
+				segments.add(f);
+		}
+		Collections.sort(segments); // by name - by start time
+		return segments;
+	}
+
+	/**
+	 * Closes the active segment - it is compressed in the background. Does
+	 * not wait for the compressions.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		active.close();
+		if (activeBytes > 0) compress(active.getFile());
+		else active.getFile().delete();
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private void roll(long now) throws IOException {
+		final Appender old = active;
+		// the new segment first - if it can't be opened the old one stays
+		// active, and if the old one fails to close the new one is active
+		// already. Two segments started in the same millisecond would have
+		// one name
+		open(Math.max(now, activeStart + 1));
+		try {
+			old.close();
+		} finally {
+			compress(old.getFile()); // whatever made it to the file
+		}
+	}
+
+	private void open(final long start) throws IOException {
+		active = new Appender(new File(dir, name + "."
+			+ String.format(Locale.US, "%013d", start)), 0, 0, false);
+		activeStart = start;
+		activeBytes = 0;
+	}
+
+	private void compress(final File segment) {
+		background().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					gzip(segment);
+				} catch (IOException e) {
+					// keep it uncompressed
+				}
+				enforceCap();
+			}
+		});
+	}
+
+	/** Deletes the oldest segments while the directory is over the cap */
+	private void enforceCap() {
+		if (maxTotalBytes == 0) return;
+		long size = FileUtils.sizeOfDirectory(dir);
+		if (size <= maxTotalBytes) return;
+		final File current;
+		synchronized (this) {
+			// null if run before the constructor opened the first segment
+			current = active == null ? null : active.getFile();
+		}
+		for (File segment : segments()) {
+			if (size <= maxTotalBytes) return;
+			if (segment.equals(current)) return; // the newest
+			final long length = segment.length();
+			if (segment.delete()) size -= length;
+		}
+	}
+
+	/** Writes segment.gz, then deletes segment */
+	private static void gzip(final File segment) throws IOException {
+		final File tmp = new File(segment.getPath() + GZ + TMP);
+		try {
+			Writer.write(tmp, new OutputStreamAction() {
+
+				@Override
+				public void useStream(final OutputStream stream)
+						throws IOException {
+					final GZIPOutputStream gz = new GZIPOutputStream(
+						new BufferedOutputStream(stream, BUFFER_SIZE));
+					try {
+						Reader.read(segment, new InputStreamAction<Void>() {
+
+							@Override
+							public Void useStream(final InputStream in)
+									throws IOException {
+								final byte[] buffer = new byte[BUFFER_SIZE];
+								for (int read; (read = in.read(buffer)) >= 0;) {
+									gz.write(buffer, 0, read);
+								}
+								return null;
+							}
+						});
+						gz.finish();
+						gz.flush();
+					} finally {
+						// ends the Deflater, whose native memory is not
+						// freed till then (the stream is closed again by
+						// write())
+						FileUtils.close(gz);
+					}
+				}
+			}, false);
+			if (!tmp.renameTo(new File(segment.getPath() + GZ)))
+				throw new IOException("Can not rename " + tmp);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		segment.delete();
+	}
+
+	private static synchronized ExecutorService background() {
+		if (background == null) {
+			background = new ThreadPoolExecutor(0, 1,
+				30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread t = new Thread(r, "RollingFile-compress");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+		}
+		return background;
+	}
+}
@@ -7,6 +7,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 /**
  * Class for writing to files. Uses the <a href=
@@ -30,6 +33,13 @@ public final class Writer {
 	 * Notice that if the encoding is not suitable for the given string the
 	 * string will be corrupted
 	 *
+	 * The string is written with a single write, so concurrent appends to the
+	 * file don't interleave with it. Strings that encode to up to 8K bytes
+	 * are encoded into a cached buffer - no byte array is allocated. The file
+	 * is still opened on every call, which costs a FileOutputStream (with its
+	 * descriptor and channel) per call - use {@link #appender(File)} to keep
+	 * it open for frequent appends.
+	 *
 	 * @param file
 	 *            the File instance to write to
 	 * @param data
@@ -45,8 +55,18 @@ public final class Writer {
 	public static void append(final File file, final String data,
 			final String charsetName) throws UnsupportedEncodingException,
 			IOException {
-		final byte[] bytes = data.getBytes(charsetName);
-		_write(file, bytes, APPEND);
+		// encoded straight into a cached buffer - no byte array per append
+		final Encoders.Encoder encoder = Encoders.take(charsetName);
+		try {
+			final FileOutputStream stream = new FileOutputStream(file, APPEND);
+			try {
+				encoder.write(data, stream.getChannel());
+			} finally {
+				FileUtils.close(stream);
+			}
+		} finally {
+			Encoders.give(charsetName, encoder);
+		}
 	}
 
 	/**
@@ -65,6 +85,320 @@ public final class Writer {
 		_write(file, bytes, APPEND);
 	}
 
+	/**
+	 * Appends to file the given records with a single open and, as far as the
+	 * OS allows, a single (gather) write - the records are not copied in one
+	 * array. That saves the file open per record of a loop of append() but
+	 * not necessarily the copy : the VM may copy each heap buffer of the
+	 * gather to a native one, at a cost per buffer, so for many small records
+	 * (100 bytes) copying them in one array and appending it is faster. Will
+	 * create the file if not existent.
+	 *
+	 * @param file
+	 *            the File instance to write to
+	 * @param records
+	 *            the records to be written, in order
+	 * @param framed
+	 *            if true each record is preceded by its length as a 4 byte
+	 *            big endian int (as DataOutputStream.writeInt() writes it) so
+	 *            the records can be told apart when read
+	 * @return the number of bytes written, the length prefixes included
+	 * @throws IOException
+	 *             if the file cannot be opened for writing
+	 *             (FileNotFoundException) or if an error occurs during the
+	 *             write operation
+	 */
+	public static long appendAll(final File file, final List<byte[]> records,
+			final boolean framed) throws IOException {
+		final ByteBuffer[] buffers = new ByteBuffer[records.size()];
+		int i = 0;
+		for (byte[] record : records) {
+			buffers[i++] = ByteBuffer.wrap(record);
+		}
+		return appendAll(file, buffers, framed);
+	}
+
+	/**
+	 * Appends to file the remaining bytes of the given buffers - see
+	 * {@link #appendAll(File, List, boolean)}. The buffers' positions are
+	 * advanced past the bytes written, as with a channel write.
+	 */
+	public static long appendAll(final File file, final ByteBuffer[] records,
+			final boolean framed) throws IOException {
+		final ByteBuffer[] buffers;
+		if (framed) {
+			// one buffer for all the prefixes - each a view of 4 bytes. Direct
+			// so the VM needn't copy it to a native buffer 4 bytes at a time
+			final ByteBuffer prefixes = ByteBuffer
+				.allocateDirect(4 * records.length);
+			buffers = new ByteBuffer[2 * records.length];
+			for (ByteBuffer record : records) {
+				prefixes.putInt(record.remaining());
+			}
+			for (int i = 0; i < records.length; ++i) {
+				prefixes.limit(4 * i + 4);
+				prefixes.position(4 * i);
+				buffers[2 * i] = prefixes.slice();
+				buffers[2 * i + 1] = records[i];
+			}
+		} else buffers = records;
+		final FileOutputStream stream = new FileOutputStream(file, APPEND);
+		try {
+			return gather(stream.getChannel(), buffers);
+		} finally {
+			FileUtils.close(stream);
+		}
+	}
+
+	/**
+	 * Writes to file whatever the action writes to the stream it is given -
+	 * for data that is produced piecemeal and should not be gathered in a
+	 * byte array first. The stream is not buffered and is closed when the
+	 * action returns (or throws). Will create the file if not existent.
+	 *
+	 * @param file
+	 *            the File instance to write to
+	 * @param action
+	 *            the write action
+	 * @param append
+	 *            if true it will append to the file - otherwise the file will
+	 *            be truncated if it exists
+	 * @throws IOException
+	 *             if the file cannot be opened for writing
+	 *             (FileNotFoundException) or if an IO error occurs during the
+	 *             action
+	 */
+	public static void write(final File file, final OutputStreamAction action,
+			final boolean append) throws IOException {
+		writeToFile(file, action, append);
+	}
+
+	// =========================================================================
+	// Atomic writes - the file has either its old or its new contents
+	// =========================================================================
+	/**
+	 * How sure a write is to have reached the disk when the method returns -
+	 * each level costs more latency than the previous
+	 */
+	public enum Durability {
+		/**
+		 * Leave it to the OS - the new contents survive the process but may
+		 * not survive the device crashing (or losing power)
+		 */
+		NONE,
+		/**
+		 * Force the file's data to the disk before the rename (fdatasync) - on
+		 * a crash the file has its old or its new contents, never a mix or
+		 * zeroes
+		 */
+		DATA,
+		/**
+		 * Force the file's data and metadata to the disk (fsync) before the
+		 * rename and the directory after it - so once the method returns the
+		 * file has its new contents even after a crash. Where the platform
+		 * won't open a directory (before Android 5 and Java 7) only the file
+		 * is forced : the rename itself may then be lost on a crash, which
+		 * leaves the old contents - it is not made durable by the filesystem
+		 * (ext4's auto_da_alloc only orders the data before the rename)
+		 */
+		FULL
+	}
+
+	/**
+	 * Replaces the contents of the file with the given bytes atomically - see
+	 * {@link #writeAtomically(File, OutputStreamAction, Durability)}.
+	 */
+	public static void writeAtomically(final File file, final byte[] bytes,
+			final Durability durability) throws IOException {
+		writeAtomically(file, new OutputStreamAction() {
+
+			@Override
+			public void useStream(final OutputStream stream) throws IOException {
+				stream.write(bytes); // a single write - no need to buffer
+			}
+		}, durability);
+	}
+
+	/**
+	 * Replaces the contents of the file with the given string atomically -
+	 * see {@link #writeAtomically(File, OutputStreamAction, Durability)}.
+	 * Notice that if the encoding is not suitable for the given string the
+	 * string will be corrupted
+	 *
+	 * @throws UnsupportedEncodingException
+	 *             if the encoding given is not supported by the JVM
+	 */
+	public static void writeAtomically(final File file, final String data,
+			final String charsetName, final Durability durability)
+			throws UnsupportedEncodingException, IOException {
+		writeAtomically(file, data.getBytes(charsetName), durability);
+	}
+
+	/**
+	 * Replaces the contents of the file with whatever the action writes,
+	 * atomically - the action writes to {@code <file>.tmp}, which is forced to
+	 * the disk as durability says, closed and renamed over the file. If the
+	 * action throws, or the process dies, the file keeps its old contents
+	 * (the temp file is deleted, or overwritten on the next write). Unlike
+	 * {@link #write(File, OutputStreamAction, boolean)} which truncates the
+	 * file and leaves it half written on a crash. The stream is not buffered.
+	 * Will create the file if not existent. Concurrent atomic writes of the
+	 * same file must be serialized by the caller.
+	 *
+	 * @param file
+	 *            the File instance to write to
+	 * @param action
+	 *            the write action
+	 * @param durability
+	 *            how to force the new contents to the disk
+	 * @throws IOException
+	 *             if the temp file cannot be opened for writing
+	 *             (FileNotFoundException), written, forced, closed or renamed
+	 *             - or, for FULL durability, if the directory could not be
+	 *             forced after the rename
+	 */
+	public static void writeAtomically(final File file,
+			final OutputStreamAction action, final Durability durability)
+			throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		boolean done = false;
+		try {
+			final FileOutputStream stream = new FileOutputStream(tmp);
+			boolean written = false;
+			try {
+				action.useStream(stream);
+				switch (durability) {
+				case NONE:
+					break;
+				case DATA:
+					stream.getChannel().force(false);
+					break;
+				case FULL:
+					stream.getFD().sync();
+					break;
+				}
+				written = true;
+			} finally {
+				if (!written) FileUtils.close(stream);
+			}
+			stream.close(); // a failed close may have lost data - throws
+			if (!tmp.renameTo(file))
+				throw new IOException("Can not rename " + tmp + " to " + file);
+			done = true;
+		} finally {
+			if (!done) tmp.delete();
+		}
+		// the rename is an entry in the directory - best effort
+		if (durability == Durability.FULL)
+			FileUtils.syncDir(file.getAbsoluteFile().getParentFile());
+	}
+
+	// =========================================================================
+	// Appenders - keep the file open for frequent appends
+	// =========================================================================
+	/**
+	 * Opens the file for appending and keeps it open - for frequent appends
+	 * (logging) where opening and closing the file on every append costs more
+	 * than the write. Each append is written as soon as possible, appends from
+	 * many threads are written together. Will create the file if not
+	 * existent. Close the appender when done.
+	 *
+	 * @param file
+	 *            the File instance to append to
+	 * @return the appender
+	 * @throws IOException
+	 *             if the file cannot be opened for writing
+	 *             (FileNotFoundException)
+	 */
+	public static Appender appender(final File file) throws IOException {
+		return new Appender(file, 0, 0, false);
+	}
+
+	/**
+	 * Opens the file for appending and keeps it open, buffering appends - see
+	 * {@link Appender} for the policies. Will create the file if not existent.
+	 *
+	 * @param file
+	 *            the File instance to append to
+	 * @param flushBytes
+	 *            write when that many bytes are buffered - 0 to write as soon
+	 *            as possible
+	 * @param flushMillis
+	 *            write no later than that many milliseconds after a byte was
+	 *            buffered - 0 to wait for flushBytes (or flush())
+	 * @param sync
+	 *            if true each write is forced to the disk before the appender
+	 *            goes on
+	 * @return the appender
+	 * @throws IOException
+	 *             if the file cannot be opened for writing
+	 *             (FileNotFoundException)
+	 * @throws IllegalArgumentException
+	 *             if flushBytes or flushMillis are negative
+	 */
+	public static Appender appender(final File file, final int flushBytes,
+			final long flushMillis, final boolean sync) throws IOException {
+		return new Appender(file, flushBytes, flushMillis, sync);
+	}
+
+	/**
+	 * Opens the file for appending from a background thread - append() copies
+	 * the record in a buffer of capacity bytes and returns, so producers don't
+	 * wait on the disk. See {@link AsyncWriter}. Will create the file if not
+	 * existent. Close the writer when done.
+	 *
+	 * @param file
+	 *            the File instance to append to
+	 * @param capacity
+	 *            the size of the buffer in bytes - each record takes 4 bytes
+	 *            more than its length
+	 * @param overflow
+	 *            what to do when a record does not fit in the buffer
+	 * @return the writer
+	 * @throws IOException
+	 *             if the file cannot be opened for writing
+	 *             (FileNotFoundException)
+	 * @throws IllegalArgumentException
+	 *             if capacity is too small
+	 */
+	public static AsyncWriter asyncWriter(final File file, final int capacity,
+			final AsyncWriter.Overflow overflow) throws IOException {
+		return new AsyncWriter(file, capacity, overflow);
+	}
+
+	/**
+	 * Opens a log file that is split in segments of bounded size and age, the
+	 * closed ones gzipped in the background and the oldest deleted to keep the
+	 * directory under a size cap - see {@link RollingFile}. The file (as
+	 * returned by {@link ExternalStorage#fileExternalPublicStorage(String,
+	 * String, String)} for instance) gives the directory and the prefix of the
+	 * segments' names. Close the rolling file when done.
+	 *
+	 * @param file
+	 *            the File instance whose directory holds the segments and
+	 *            whose name prefixes theirs
+	 * @param maxSegmentBytes
+	 *            start a new segment before the active one grows past that
+	 * @param maxSegmentMillis
+	 *            start a new segment once the active one is that old - 0 for
+	 *            no time limit
+	 * @param maxTotalBytes
+	 *            delete the oldest segments while the directory is bigger
+	 *            than that - 0 for no cap
+	 * @return the rolling file
+	 * @throws IOException
+	 *             if the directory or the first segment can't be created
+	 * @throws IllegalArgumentException
+	 *             if maxSegmentBytes is not positive or the other limits are
+	 *             negative
+	 */
+	public static RollingFile rollingFile(final File file,
+			final long maxSegmentBytes, final long maxSegmentMillis,
+			final long maxTotalBytes) throws IOException {
+		return new RollingFile(file, maxSegmentBytes, maxSegmentMillis,
+			maxTotalBytes);
+	}
+
 	// @formatter:off
 	/**
 	 * Writes to file the given string. Will create the file if not existent. If
@@ -256,6 +590,23 @@ public final class Writer {
 		}, append);
 	}
 
+	/**
+	 * Writes all the buffers - a gather write may stop short, at most at
+	 * IOV_MAX buffers on Linux
+	 */
+	private static long gather(final FileChannel channel,
+			final ByteBuffer[] buffers) throws IOException {
+		long written = 0;
+		int first = 0;
+		while (true) {
+			while (first < buffers.length && !buffers[first].hasRemaining()) {
+				++first;
+			}
+			if (first == buffers.length) return written;
+			written += channel.write(buffers, first, buffers.length - first);
+		}
+	}
+
 	/**
 	 * Writes to file and closes it. Will create the file if not existent.
 	 *
@@ -282,8 +633,3 @@ public final class Writer {
 		}
 	}
 }
-
-interface OutputStreamAction {
-
-	void useStream(OutputStream stream) throws IOException;
-}
@@ -0,0 +1,109 @@
+package gr.uoa.di.android.helpers;
+
+import java.io.File;
+
+/**
+ * The primitive accessors of AccessPreferences against the generic get() and
+ * put() - time and bytes allocated per call. Values are kept out of the
+ * range of the Integer cache so the generic calls really box. Runs on
+ * MemoryPrefs through the named store methods, with the store cached as the
+ * test tree has no Context.
+ */
+public final class AccessPreferencesBenchmark {
+
+	private static final String STORE = "bench";
+	private static final int ITERATIONS = 2000000;
+
+	private AccessPreferencesBenchmark() {}
+
+	public static void main(String[] args) throws Exception {
+		final MemoryPrefs prefs = new MemoryPrefs();
+		AccessPreferences.cache(new PrefsStore(STORE, prefs, new File(System
+			.getProperty("java.io.tmpdir"), "AccessPreferencesBenchmark")));
+		prefs.edit().putInt("int", 1 << 20).putLong("long", 1L << 40)
+			.putFloat("float", 0.5f).putBoolean("boolean", true).commit();
+		final long[] sink = new long[1]; // so the reads are not optimized away
+		// the call in Bench.run() gets megamorphic from the third body on,
+		// which makes the first ones look faster - the second round compares
+		// them all on the same footing
+		for (int round = 1; round <= 2; ++round) {
+			System.out.println("Round " + round);
+			Bench.run("get(ctx, store, key, 1000) int", ITERATIONS,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						final int value = AccessPreferences.get(null, STORE,
+							"int", 1000);
+						sink[0] += value;
+					}
+				});
+			Bench.run("getInt(ctx, store, key, 1000)", ITERATIONS,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						sink[0] += AccessPreferences.getInt(null, STORE, "int",
+							1000);
+					}
+				});
+			Bench.run("get(ctx, store, key, 1000L) long", ITERATIONS,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						final long value = AccessPreferences.get(null, STORE,
+							"long", 1000L);
+						sink[0] += value;
+					}
+				});
+			Bench.run("getLong(ctx, store, key, 1000L)", ITERATIONS,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						sink[0] += AccessPreferences.getLong(null, STORE,
+							"long", 1000L);
+					}
+				});
+			Bench.run("get(ctx, store, key, 1.5f) float", ITERATIONS,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						final float value = AccessPreferences.get(null, STORE,
+							"float", 1.5f);
+						sink[0] += (long) value;
+					}
+				});
+			Bench.run("getFloat(ctx, store, key, 1.5f)", ITERATIONS,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						sink[0] += (long) AccessPreferences.getFloat(null,
+							STORE, "float", 1.5f);
+					}
+				});
+			// the editor of each write allocates anyway - MemoryPrefs copies
+			// less than the framework, which also schedules a disk write
+			Bench.run("put(ctx, store, key, (Object) int)", ITERATIONS / 10,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						AccessPreferences.put(null, STORE, "int",
+							(Object) (1000 + i));
+					}
+				});
+			Bench.run("put(ctx, store, key, int)", ITERATIONS / 10,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) {
+						AccessPreferences.put(null, STORE, "int", 1000 + i);
+					}
+				});
+		}
+	}
+}
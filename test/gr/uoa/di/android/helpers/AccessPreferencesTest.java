@@ -0,0 +1,351 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Goes through the named store methods with a null Context - the store, of
+ * in-memory preferences, is cached beforehand so the Context is never used
+ */
+public class AccessPreferencesTest {
+
+	private static final Codec<Integer> INTS = new Codec<Integer>() {
+
+		@Override
+		public String encode(Integer value) {
+			return value.toString();
+		}
+
+		@Override
+		public Integer decode(String encoded) {
+			return Integer.valueOf(encoded);
+		}
+	};
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private MemoryPrefs prefs;
+	private String store;
+	private PrefsStore st;
+
+	@Before
+	public void setUp() {
+		prefs = new MemoryPrefs();
+		store = "test" + System.nanoTime(); // stores are cached for good
+		st = new PrefsStore(store, prefs, new File(tmp.getRoot(), "sets"));
+		AccessPreferences.cache(st);
+	}
+
+	@Test
+	public void primitivesWidenToInt() {
+		AccessPreferences.put(null, store, "byte", (byte) 1);
+		AccessPreferences.put(null, store, "short", (short) -2);
+		AccessPreferences.put(null, store, "char", 'c');
+		assertEquals(1, prefs.getAll().get("byte"));
+		assertEquals(-2, prefs.getAll().get("short"));
+		assertEquals(99, prefs.getAll().get("char"));
+		assertEquals(99, AccessPreferences.getInt(null, store, "char", 0));
+	}
+
+	@Test
+	public void boxedBytesAreRejected() {
+		try {
+			AccessPreferences.put(null, store, "k", Byte.valueOf((byte) 1));
+			fail("A Byte was put");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			AccessPreferences.commit(null, store, "k", (byte) 1);
+			fail("A byte was committed");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			AccessPreferences.edit(null, store).put("k", 'c');
+			fail("A char was put in a transaction");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(0, prefs.getAll().size());
+	}
+
+	@Test
+	public void primitiveAccessors() {
+		AccessPreferences.put(null, store, "i", 1 << 20);
+		AccessPreferences.put(null, store, "l", Long.MIN_VALUE);
+		AccessPreferences.put(null, store, "f", 0.5f);
+		AccessPreferences.put(null, store, "b", true);
+		assertEquals(1 << 20, AccessPreferences.getInt(null, store, "i", 0));
+		assertEquals(Long.MIN_VALUE,
+			AccessPreferences.getLong(null, store, "l", 0));
+		assertEquals(0.5f, AccessPreferences.getFloat(null, store, "f", 0), 0);
+		assertEquals(true,
+			AccessPreferences.getBoolean(null, store, "b", false));
+		assertEquals(7, AccessPreferences.getInt(null, store, "missing", 7));
+		// the same values as the generic ones
+		assertEquals(Integer.valueOf(1 << 20),
+			AccessPreferences.get(null, store, "i", 0));
+		assertEquals(Long.valueOf(Long.MIN_VALUE),
+			AccessPreferences.get(null, store, "l", 0L));
+	}
+
+	@Test
+	public void statsCountEachOperation() {
+		PrefsStats.enable();
+		try {
+			AccessPreferences.put(null, store, "i", 1);
+			AccessPreferences.getInt(null, store, "i", 0);
+			AccessPreferences.get(null, store, "missing", "default");
+			AccessPreferences.contains(null, store, "i");
+			AccessPreferences.getAll(null, store);
+			AccessPreferences.putObject(null, store, "o", 7, INTS);
+			AccessPreferences.getObject(null, store, "o", INTS);
+			AccessPreferences.remove(null, store, "i");
+			AccessPreferences.clear(null, store);
+			final PrefsStats.Snapshot s = PrefsStats.snapshot();
+			assertEquals(2, s.count(PrefsStats.Op.PUT));
+			assertEquals(2, s.count(PrefsStats.Op.APPLY));
+			assertEquals(5, s.count(PrefsStats.Op.GET));
+			assertEquals(1, s.count(PrefsStats.Op.REMOVE));
+			assertEquals(1, s.count(PrefsStats.Op.CLEAR));
+			assertEquals(2, s.count(PrefsStats.Op.COMMIT));
+		} finally {
+			PrefsStats.disable();
+		}
+		assertEquals(0, PrefsStats.start()); // not timed when disabled
+	}
+
+	@Test
+	public void transactionsWriteInOneEdit() throws Exception {
+		prefs.edit().putString("gone", "x").commit();
+		final int writes = prefs.writes();
+		final AccessPreferences.Transaction t = AccessPreferences.edit(null,
+			store).put("s", "v").put("i", 1).put("l", 2L).remove("gone");
+		assertEquals(writes, prefs.writes()); // nothing till committed
+		assertFalse(prefs.contains("s"));
+		assertTrue(t.commit());
+		assertEquals(writes + 1, prefs.writes());
+		assertEquals("v", prefs.getString("s", null));
+		assertEquals(1, prefs.getInt("i", 0));
+		assertEquals(2L, prefs.getLong("l", 0));
+		assertFalse(prefs.contains("gone"));
+		// and read back through the store
+		assertEquals("v", AccessPreferences.get(null, store, "s", "default"));
+		AccessPreferences.edit(null, store).put("s", "w").put("i", 3).apply();
+		assertEquals(writes + 2, prefs.writes());
+		assertEquals(3, AccessPreferences.getInt(null, store, "i", 0));
+		assertTrue(AccessPreferences.edit(null, store).put("s", "async")
+			.commitAsync().get(5, TimeUnit.SECONDS));
+		assertEquals("async", prefs.getString("s", null));
+	}
+
+	@Test
+	public void transactionsAreNotOverwrittenByPendingPuts() {
+		AccessPreferences.enableCoalescing(null, store, 60 * 60 * 1000, 100);
+		try {
+			AccessPreferences.put(null, store, "k", "pending");
+			AccessPreferences.put(null, store, "other", "pending");
+			assertFalse(prefs.contains("k"));
+			// the pending puts go first, so the batch wins
+			AccessPreferences.edit(null, store).put("k", "batch").apply();
+			AccessPreferences.flush(null, store);
+			assertEquals("batch", prefs.getString("k", null));
+			assertEquals("pending", prefs.getString("other", null));
+			AccessPreferences.put(null, store, "k", "pending again");
+			assertTrue(AccessPreferences.edit(null, store).remove("k")
+				.commit());
+			AccessPreferences.flush(null, store);
+			assertFalse(prefs.contains("k"));
+			assertEquals(null, AccessPreferences.get(null, store, "k", null));
+		} finally {
+			AccessPreferences.disableCoalescing(null, store);
+		}
+	}
+
+	@Test
+	public void keyListenersWakeOnlyForTheirKeys() {
+		final List<String> calls = new ArrayList<String>();
+		final Recorder a = new Recorder("a", calls);
+		final Recorder b = new Recorder("b", calls);
+		AccessPreferences.registerListener(null, store, a, "x", "y");
+		AccessPreferences.registerListener(null, store, b, "y");
+		AccessPreferences.registerListener(null, store, a, "y"); // no op
+		AccessPreferences.put(null, store, "x", 1);
+		AccessPreferences.put(null, store, "y", 2);
+		AccessPreferences.put(null, store, "z", 3);
+		// in the order registered, each seeing the new value
+		assertEquals(Arrays.asList("a:x=1", "a:y=2", "b:y=2"), calls);
+		calls.clear();
+		AccessPreferences.unregisterListener(null, store, a);
+		AccessPreferences.put(null, store, "x", 4);
+		AccessPreferences.put(null, store, "y", 5);
+		assertEquals(Arrays.asList("b:y=5"), calls);
+		calls.clear();
+		AccessPreferences.unregisterListener(null, store, b);
+		AccessPreferences.put(null, store, "y", 6);
+		assertEquals(0, calls.size());
+	}
+
+	@Test
+	public void nullKeyWakesEachListenerOnce() {
+		final List<String> calls = new ArrayList<String>();
+		final KeyListeners listeners = new KeyListeners();
+		listeners.register(new Recorder("a", calls), null, "x", "y");
+		listeners.register(new Recorder("b", calls), null, "y");
+		listeners.dispatch(prefs, null); // what clear() passes on API 30+
+		assertEquals(Arrays.asList("a:null", "b:null"), calls);
+	}
+
+	@Test
+	public void keyListenersAreHeldTillUnregistered() {
+		final List<String> calls = new ArrayList<String>();
+		// only reachable from the store - the framework would drop it
+		final WeakReference<Recorder> ref = register(calls);
+		gc(ref, 3);
+		AccessPreferences.put(null, store, "x", 1);
+		assertEquals(Arrays.asList("a:x=1"), calls);
+		AccessPreferences.unregisterListener(null, store, ref.get());
+		gc(ref, 100);
+		assertNull("Unregistered listener still referenced", ref.get());
+	}
+
+	@Test
+	public void executorDeliveriesOfAKeyAreMerged() {
+		final List<String> calls = new ArrayList<String>();
+		final List<Runnable> queue = new ArrayList<Runnable>();
+		final Executor executor = new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				queue.add(command);
+			}
+		};
+		AccessPreferences.registerListener(null, store, executor,
+			new Recorder("a", calls), "x", "y");
+		AccessPreferences.put(null, store, "x", 1);
+		AccessPreferences.put(null, store, "x", 2);
+		AccessPreferences.put(null, store, "y", 3);
+		AccessPreferences.put(null, store, "x", 4);
+		assertEquals(0, calls.size()); // nothing delivered on this thread
+		assertEquals(2, queue.size());
+		for (Runnable r : queue) {
+			r.run();
+		}
+		// once per key, reading the latest value
+		assertEquals(Arrays.asList("a:x=4", "a:y=3"), calls);
+		queue.clear();
+		AccessPreferences.put(null, store, "x", 5); // queued again once run
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void decodedObjectsAreCachedTillTheValueChanges() {
+		final CountingCodec codec = new CountingCodec();
+		AccessPreferences.put(null, store, "o", "7");
+		final Integer seven = AccessPreferences.getObject(null, store, "o",
+			codec);
+		assertEquals(Integer.valueOf(7), seven);
+		assertSame(seven, AccessPreferences.getObject(null, store, "o", codec));
+		assertEquals(1, codec.decodes);
+		// a new value, through the store and through a raw editor
+		AccessPreferences.put(null, store, "o", "8");
+		assertEquals(Integer.valueOf(8),
+			AccessPreferences.getObject(null, store, "o", codec));
+		assertEquals(2, codec.decodes);
+		prefs.edit().putString("o", "9").commit();
+		assertEquals(Integer.valueOf(9),
+			AccessPreferences.getObject(null, store, "o", codec));
+		assertEquals(3, codec.decodes);
+		// an entry left for an older string (a change not notified yet) is
+		// not used - the string is compared by identity, not equality
+		st.cache("o", new String("9"), codec, 99);
+		assertEquals(Integer.valueOf(9),
+			AccessPreferences.getObject(null, store, "o", codec));
+		assertEquals(4, codec.decodes);
+		// the cache is per codec instance
+		final CountingCodec other = new CountingCodec();
+		assertEquals(Integer.valueOf(9),
+			AccessPreferences.getObject(null, store, "o", other));
+		assertEquals(1, other.decodes);
+		// putObject() caches what it wrote, remove() drops it
+		AccessPreferences.putObject(null, store, "o", 10, codec);
+		assertEquals(Integer.valueOf(10),
+			AccessPreferences.getObject(null, store, "o", codec));
+		assertEquals(4, codec.decodes);
+		AccessPreferences.remove(null, store, "o");
+		assertNull(AccessPreferences.getObject(null, store, "o", codec));
+		AccessPreferences.put(null, store, "o", "10");
+		assertEquals(Integer.valueOf(10),
+			AccessPreferences.getObject(null, store, "o", codec));
+		assertEquals(5, codec.decodes);
+	}
+
+	private static final class CountingCodec implements Codec<Integer> {
+
+		int decodes;
+
+		@Override
+		public String encode(Integer value) {
+			return value.toString();
+		}
+
+		@Override
+		public Integer decode(String encoded) {
+			++decodes;
+			return Integer.valueOf(encoded);
+		}
+	}
+
+	/** Appends "name:key=value" to calls - the value read from the store */
+	private final class Recorder implements OnSharedPreferenceChangeListener {
+
+		private final String name;
+		private final List<String> calls;
+
+		Recorder(String name, List<String> calls) {
+			this.name = name;
+			this.calls = calls;
+		}
+
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+			calls.add(name + ":" + (key == null ? "null" : key + "="
+				+ AccessPreferences.getInt(null, store, key, -1)));
+		}
+	}
+
+	/** Registers a listener for "x" and drops the strong reference to it */
+	private WeakReference<Recorder> register(List<String> calls) {
+		final Recorder lis = new Recorder("a", calls);
+		AccessPreferences.registerListener(null, store, lis, "x");
+		return new WeakReference<Recorder>(lis);
+	}
+
+	/** Collects till the referent is gone or rounds are done */
+	private static void gc(WeakReference<?> ref, int rounds) {
+		for (int i = 0; i < rounds && ref.get() != null; ++i) {
+			System.gc();
+			System.runFinalization();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package gr.uoa.di.android.helpers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Bare bones timing for the benchmarks of the test tree - warms up, then runs
+ * the body and prints the time and the bytes allocated by the calling thread
+ * per operation. Rough numbers, good for comparing two ways of doing a thing
+ * on the same machine - not a JMH replacement.
+ */
+public final class Bench {
+
+	/** The operation measured - i is the iteration, 0 based */
+	public interface Body {
+
+		void run(int i) throws Exception;
+	}
+
+	private Bench() {}
+
+	/**
+	 * Runs body iterations times after as many warm up runs and prints a line
+	 * with the nanoseconds and the bytes allocated per run
+	 *
+	 * @return the nanoseconds per run
+	 */
+	public static double run(final String name, final int iterations,
+			final Body body) throws Exception {
+		for (int i = 0; i < iterations; ++i) {
+			body.run(i);
+		}
+		final long allocated = allocated();
+		final long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			body.run(i);
+		}
+		final double nanos = (System.nanoTime() - start) / (double) iterations;
+		final long bytes = allocated() - allocated;
+		System.out.println(String.format(Locale.US,
+			"%-48s %12.0f ns/op %12s B/op", name, nanos, bytes < 0 ? "n/a"
+				: String.format(Locale.US, "%.0f", bytes / (double) iterations)));
+		return nanos;
+	}
+
+	/** Bytes allocated so far by the calling thread - -1 if not supported */
+	public static long allocated() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try { // com.sun.management.ThreadMXBean - HotSpot only
+			return (Long) Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", long.class)
+				.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class LogPreferencesTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private final Map<LogPreferences, File> files = new HashMap<LogPreferences, File>();
+
+	@Test
+	public void roundTrip() throws IOException {
+		final LogPreferences prefs = open();
+		prefs.edit().putString("s", "ελληνικά").putBoolean("b", true)
+			.putInt("i", -7).putLong("l", Long.MAX_VALUE).putFloat("f", 1.5f)
+			.putStringSet("set", set("a", "b")).commit();
+		assertAll(prefs);
+		prefs.edit().remove("i").putString("s", "other").apply();
+		assertFalse(prefs.contains("i"));
+		assertEquals("other", prefs.getString("s", null));
+		prefs.edit().putString("s", null).commit(); // null removes
+		assertFalse(prefs.contains("s"));
+	}
+
+	@Test
+	public void reload() throws IOException {
+		final LogPreferences prefs = open();
+		prefs.edit().putString("s", "ελληνικά").putBoolean("b", true)
+			.putInt("i", -7).putLong("l", Long.MAX_VALUE).putFloat("f", 1.5f)
+			.putStringSet("set", set("a", "b")).putInt("gone", 1).commit();
+		prefs.edit().remove("gone").commit();
+		final LogPreferences copy = reopen(prefs);
+		assertAll(copy);
+		assertFalse(copy.contains("gone"));
+		assertEquals(prefs.getAll(), copy.getAll());
+	}
+
+	@Test
+	public void reloadAfterClear() throws IOException {
+		final LogPreferences prefs = open();
+		prefs.edit().putInt("a", 1).putInt("b", 2).commit();
+		prefs.edit().clear().putInt("c", 3).commit(); // clear goes first
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("c", 3);
+		assertEquals(expected, prefs.getAll());
+		assertEquals(expected, reopen(prefs).getAll());
+	}
+
+	@Test
+	public void tornTailIsDropped() throws IOException {
+		final LogPreferences prefs = open();
+		prefs.edit().putInt("a", 1).commit();
+		prefs.edit().putInt("b", 2).commit();
+		// a bit flipped in the last record - its CRC won't match
+		final File flipped = copy(prefs);
+		final int last = lastRecord(flipped);
+		final RandomAccessFile raf = new RandomAccessFile(flipped, "rw");
+		try {
+			raf.seek(last + 8 + 3); // the first byte of the key
+			raf.write(raf.read() ^ 1);
+		} finally {
+			raf.close();
+		}
+		assertTornTail(LogPreferences.open(flipped));
+		// a length that runs past the end of the file
+		final File cut = copy(prefs);
+		final RandomAccessFile raf2 = new RandomAccessFile(cut, "rw");
+		try {
+			raf2.seek(lastRecord(cut));
+			raf2.writeInt(Integer.MAX_VALUE / 2);
+		} finally {
+			raf2.close();
+		}
+		assertTornTail(LogPreferences.open(cut));
+	}
+
+	@Test
+	public void failedBatchLeavesNoTrace() throws IOException {
+		final LogPreferences prefs = open();
+		prefs.edit().putInt("a", 1).commit();
+		final Set<Object> mixed = new HashSet<Object>();
+		mixed.add("fine");
+		mixed.add(1); // fails the encoding of the last record
+		try {
+			prefs.edit().putInt("a", 2).putInt("b", 2)
+				.putStringSet("c", raw(mixed)).commit();
+			fail("A set with an Integer was written");
+		} catch (ClassCastException e) {
+			// expected
+		}
+		assertEquals(1, prefs.getInt("a", 0));
+		assertFalse(prefs.contains("b"));
+		assertFalse(prefs.contains("c"));
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("a", 1);
+		assertEquals(expected, reopen(prefs).getAll());
+	}
+
+	@Test
+	public void compaction() throws Exception {
+		final LogPreferences prefs = open();
+		prefs.edit().putInt("kept", 42).commit();
+		final String big = big(1000);
+		for (int i = 0; i < 300; ++i) {
+			prefs.edit().putString("hot", big + i).apply();
+		}
+		LogPreferences.awaitCompactions();
+		assertEquals(2, prefs.getAll().size());
+		assertEquals(big + 299, prefs.getString("hot", null));
+		assertEquals(42, prefs.getInt("kept", 0));
+		// 300K were appended - less than MIN_DEAD_TO_COMPACT (64K) of dead
+		// records may be left after the last compaction
+		assertTrue(lastRecord(copy(prefs)) < 80 * 1024);
+		final LogPreferences copy = reopen(prefs);
+		assertEquals(prefs.getAll(), copy.getAll());
+		// and the compacted log can still be appended to
+		prefs.edit().putInt("after", 1).commit();
+		assertEquals(1, reopen(prefs).getInt("after", 0));
+	}
+
+	@Test
+	public void writesDuringCompaction() throws Exception {
+		final LogPreferences prefs = open();
+		final String big = big(1000);
+		final Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < 2000; ++i) {
+					final SharedPreferences.Editor ed = prefs.edit();
+					ed.putString("hot" + i % 7, big + i);
+					ed.putInt("count", i);
+					if (i % 100 == 0) ed.remove("hot" + (i + 1) % 7);
+					ed.apply();
+				}
+			}
+		};
+		writer.start();
+		writer.join();
+		LogPreferences.awaitCompactions();
+		assertEquals(1999, prefs.getInt("count", 0));
+		assertEquals(big + 1999, prefs.getString("hot" + 1999 % 7, null));
+		assertEquals(prefs.getAll(), reopen(prefs).getAll());
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private LogPreferences open() throws IOException {
+		final File file = new File(tmp.getRoot(), "prefs" + System.nanoTime()
+			+ ".log");
+		final LogPreferences prefs = LogPreferences.open(file);
+		files.put(prefs, file);
+		return prefs;
+	}
+
+	/** A new instance loaded from a copy of the log - as after a restart */
+	private LogPreferences reopen(LogPreferences prefs) throws IOException {
+		final File copy = copy(prefs);
+		final LogPreferences reopened = LogPreferences.open(copy);
+		files.put(reopened, copy);
+		return reopened;
+	}
+
+	/** Copies the log - the mapping is in the page cache so no sync needed */
+	private File copy(LogPreferences prefs) throws IOException {
+		final File log = files.get(prefs);
+		final File copy = new File(tmp.getRoot(), "copy" + System.nanoTime()
+			+ ".log");
+		final FileInputStream in = new FileInputStream(log);
+		try {
+			final FileOutputStream out = new FileOutputStream(copy);
+			try {
+				final byte[] buffer = new byte[8192];
+				for (int read; (read = in.read(buffer)) >= 0;) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return copy;
+	}
+
+	/** The offset of the last record of the log - walks the lengths */
+	private static int lastRecord(File log) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(log, "r");
+		try {
+			int pos = 4, last = -1;
+			while (pos + 8 <= raf.length()) {
+				raf.seek(pos);
+				final int len = raf.readInt();
+				if (len <= 0) break;
+				last = pos;
+				pos += 8 + len;
+			}
+			return last;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void assertTornTail(LogPreferences prefs) {
+		assertEquals(1, prefs.getInt("a", 0));
+		assertFalse(prefs.contains("b"));
+		// the next append goes where the torn record was
+		prefs.edit().putInt("c", 3).commit();
+		assertEquals(3, prefs.getInt("c", 0));
+	}
+
+	private static void assertAll(SharedPreferences prefs) {
+		assertEquals("ελληνικά", prefs.getString("s", null));
+		assertTrue(prefs.getBoolean("b", false));
+		assertEquals(-7, prefs.getInt("i", 0));
+		assertEquals(Long.MAX_VALUE, prefs.getLong("l", 0));
+		assertEquals(1.5f, prefs.getFloat("f", 0), 0);
+		assertEquals(set("a", "b"), prefs.getStringSet("set", null));
+		assertNull(prefs.getString("missing", null));
+	}
+
+	private static Set<String> set(String... values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> raw(Set<?> set) {
+		return (Set<String>) set;
+	}
+
+	private static String big(int length) {
+		final char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+}
@@ -0,0 +1,227 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * SharedPreferences in memory, behaving as the framework's do where the code
+ * under test relies on it : getters hand out the instances held in the map,
+ * putStringSet() copies the set, commit() and apply() update the map at once,
+ * listeners are held weakly and called for each key changed (synchronously -
+ * the framework posts them to the main thread for apply()). Counts the
+ * writes and the getAll() calls. {@link #putNull(String)} stores a null
+ * value, as older framework versions could, and {@link #beforeWrites(
+ * Runnable)} lets a test stop a write half way.
+ */
+public final class MemoryPrefs implements SharedPreferences {
+
+	private final Map<String, Object> map = new HashMap<String, Object>();
+	private final Map<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+	// guarded by this
+	private int writes;
+	private int getAlls;
+	private volatile Runnable beforeWrite;
+
+	public synchronized int writes() {
+		return writes;
+	}
+
+	public synchronized int getAlls() {
+		return getAlls;
+	}
+
+	/**
+	 * Runs the hook on the writing thread at the start of every commit() and
+	 * apply() - before anything is written. Null for none.
+	 */
+	public void beforeWrites(Runnable hook) {
+		beforeWrite = hook;
+	}
+
+	/** Stores a null value for the key and notifies the listeners */
+	public void putNull(String key) {
+		synchronized (this) {
+			map.put(key, null);
+			++writes;
+		}
+		notify(Collections.singletonList(key));
+	}
+
+	private void notify(List<String> changed) {
+		final List<OnSharedPreferenceChangeListener> copy;
+		synchronized (listeners) {
+			copy = new ArrayList<OnSharedPreferenceChangeListener>(
+				listeners.keySet());
+		}
+		for (String key : changed) {
+			for (OnSharedPreferenceChangeListener lis : copy) {
+				lis.onSharedPreferenceChanged(this, key);
+			}
+		}
+	}
+
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		++getAlls;
+		return new HashMap<String, Object>(map);
+	}
+
+	@Override
+	public synchronized String getString(String key, String defValue) {
+		final String v = (String) map.get(key);
+		return v != null ? v : defValue;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public synchronized Set<String> getStringSet(String key,
+			Set<String> defValues) {
+		final Set<String> v = (Set<String>) map.get(key);
+		return v != null ? v : defValues;
+	}
+
+	@Override
+	public synchronized int getInt(String key, int defValue) {
+		final Integer v = (Integer) map.get(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized long getLong(String key, long defValue) {
+		final Long v = (Long) map.get(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized float getFloat(String key, float defValue) {
+		final Float v = (Float) map.get(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		final Boolean v = (Boolean) map.get(key);
+		return v != null ? v : defValue;
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(
+			OnSharedPreferenceChangeListener listener) {
+		synchronized (listeners) {
+			listeners.put(listener, this);
+		}
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(
+			OnSharedPreferenceChangeListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	private final class MemoryEditor implements Editor {
+
+		/** Marks a removed key - null values remove too */
+		private final Object removed = new Object();
+		private final Map<String, Object> edits = new HashMap<String, Object>();
+		private boolean clear;
+
+		@Override
+		public synchronized Editor putString(String key, String value) {
+			edits.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putStringSet(String key, Set<String> values) {
+			edits.put(key, values == null ? null : new HashSet<String>(values));
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putInt(String key, int value) {
+			edits.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putLong(String key, long value) {
+			edits.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putFloat(String key, float value) {
+			edits.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putBoolean(String key, boolean value) {
+			edits.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor remove(String key) {
+			edits.put(key, removed);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor clear() {
+			clear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			final Runnable hook = beforeWrite;
+			if (hook != null) hook.run();
+			final List<String> changed = new ArrayList<String>();
+			synchronized (this) {
+				synchronized (MemoryPrefs.this) {
+					if (clear) map.clear();
+					for (Map.Entry<String, Object> e : edits.entrySet()) {
+						final Object value = e.getValue();
+						if (value == null || value == removed) {
+							if (map.remove(e.getKey()) == null) continue;
+						} else if (value.equals(map.get(e.getKey()))) {
+							continue; // the instance held is kept
+						} else map.put(e.getKey(), value);
+						changed.add(e.getKey());
+					}
+					++writes;
+				}
+				clear = false;
+				edits.clear();
+			}
+			MemoryPrefs.this.notify(changed);
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalescing mode through the named store methods - the store, of in-memory
+ * preferences, is cached beforehand so the null Context is never used
+ */
+public class PendingWritesTest {
+
+	private static final long HOUR = 3600 * 1000;
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private MemoryPrefs prefs;
+	private String store;
+
+	@Before
+	public void setUp() {
+		prefs = new MemoryPrefs();
+		store = "test" + System.nanoTime(); // stores are cached for good
+		AccessPreferences.cache(new PrefsStore(store, prefs, new File(tmp
+			.getRoot(), "sets")));
+	}
+
+	@After
+	public void tearDown() {
+		prefs.beforeWrites(null);
+		AccessPreferences.disableCoalescing(null, store);
+	}
+
+	@Test
+	public void putsAreCoalesced() {
+		AccessPreferences.enableCoalescing(null, store, HOUR, 100);
+		for (int i = 0; i < 50; ++i) {
+			AccessPreferences.put(null, store, "counter", i);
+			AccessPreferences.put(null, store, "other", "v" + i);
+		}
+		assertEquals(0, prefs.writes());
+		assertFalse(prefs.contains("counter"));
+		// reads see the pending values
+		assertEquals(49, AccessPreferences.getInt(null, store, "counter", -1));
+		assertEquals("v49", AccessPreferences.get(null, store, "other", ""));
+		AccessPreferences.flush(null, store);
+		assertEquals(1, prefs.writes()); // the last values, in one go
+		assertEquals(49, prefs.getInt("counter", -1));
+		assertEquals("v49", prefs.getString("other", null));
+	}
+
+	@Test
+	public void fullBufferIsFlushedAtOnce() throws InterruptedException {
+		AccessPreferences.enableCoalescing(null, store, HOUR, 10);
+		for (int i = 0; i < 10; ++i) {
+			AccessPreferences.put(null, store, "k" + i, i);
+		}
+		// on the flusher thread, without waiting for the window
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!prefs.contains("k9") && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(i, prefs.getInt("k" + i, -1));
+		}
+	}
+
+	@Test
+	public void removeWaitsForFlushInProgress() throws Exception {
+		duringFlush(new Runnable() {
+
+			@Override
+			public void run() {
+				AccessPreferences.remove(null, store, "k");
+			}
+		});
+		assertFalse(prefs.contains("k"));
+	}
+
+	@Test
+	public void clearWaitsForFlushInProgress() throws Exception {
+		duringFlush(new Runnable() {
+
+			@Override
+			public void run() {
+				AccessPreferences.clear(null, store);
+			}
+		});
+		assertEquals(0, prefs.getAll().size());
+	}
+
+	@Test
+	public void commitWaitsForFlushInProgress() throws Exception {
+		duringFlush(new Runnable() {
+
+			@Override
+			public void run() {
+				AccessPreferences.commit(null, store, "k", 2);
+			}
+		});
+		assertEquals(2, prefs.getInt("k", 0));
+	}
+
+	/**
+	 * Runs the write on a thread of its own while a flush of a pending k = 1
+	 * has copied the value but not written it yet - asserts the write waits
+	 * for the flush
+	 */
+	private void duringFlush(final Runnable write) throws Exception {
+		AccessPreferences.enableCoalescing(null, store, HOUR, 100);
+		AccessPreferences.put(null, store, "k", 1);
+		final CountDownLatch reached = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread flush = new Thread() {
+
+			@Override
+			public void run() {
+				AccessPreferences.flush(null, store);
+			}
+		};
+		prefs.beforeWrites(new Runnable() {
+
+			@Override
+			public void run() {
+				if (Thread.currentThread() != flush) return;
+				reached.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		flush.start();
+		final Thread writer = new Thread(write);
+		try {
+			assertTrue(reached.await(5, TimeUnit.SECONDS));
+			writer.start();
+			writer.join(200);
+			assertTrue("The write did not wait for the flush", writer
+				.isAlive());
+		} finally {
+			release.countDown();
+		}
+		writer.join(5000);
+		flush.join(5000);
+		assertFalse(writer.isAlive());
+	}
+}
@@ -0,0 +1,106 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+/**
+ * Typed keys through the named store methods - the stores, of in-memory
+ * preferences, are cached beforehand so the null Context is never used
+ */
+public class PrefKeyTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private MemoryPrefs prefs;
+	private String store;
+
+	@Before
+	public void setUp() {
+		prefs = new MemoryPrefs();
+		store = "test" + System.nanoTime(); // stores are cached for good
+		AccessPreferences.cache(new PrefsStore(store, prefs, new File(tmp
+			.getRoot(), "sets")));
+	}
+
+	@Test
+	public void keysStoreTheirType() {
+		final PrefKey<Long> l = PrefKey.ofLong("l", 0).inStore(store);
+		final PrefKey<Float> f = PrefKey.ofFloat("f", 0).inStore(store);
+		assertEquals(Long.valueOf(0), AccessPreferences.get(null, l));
+		AccessPreferences.put(null, l, 5L);
+		assertEquals(true, AccessPreferences.commit(null, f, 1.5f));
+		assertEquals(Long.valueOf(5), prefs.getAll().get("l")); // not an int
+		assertEquals(Float.valueOf(1.5f), prefs.getAll().get("f"));
+		assertEquals(Long.valueOf(5), AccessPreferences.get(null, l));
+		// a key of another type on the same string
+		try {
+			AccessPreferences.get(null, PrefKey.ofInt("l", 0).inStore(store));
+			fail("A Long was read as an Integer");
+		} catch (ClassCastException e) {
+			// expected
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void defaultsAreCheckedWhenDefined() {
+		try {
+			PrefKey.of("k", (Class) Long.class, 0); // an Integer default
+			fail("An Integer default was taken for a Long key");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			PrefKey.of("k", Double.class, 0.0);
+			fail("A Double key was defined");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(Long.valueOf(0), PrefKey.of("k", Long.class, 0L)
+			.getDefault());
+		assertEquals(null, PrefKey.of("k", Integer.class, null).getDefault());
+	}
+
+	@Test
+	public void transactionsRejectKeysOfOtherStores() {
+		final AccessPreferences.Transaction tr = AccessPreferences.edit(null,
+			store);
+		try {
+			tr.put(PrefKey.ofInt("i", 0).inStore("other"), 1);
+			fail("A key of another store was put");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			tr.put(PrefKey.ofInt("i", 0), 1); // of the default store
+			fail("A key of the default store was put");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(true, tr.put(PrefKey.ofInt("i", 0).inStore(store), 1)
+			.commit());
+		assertEquals(1, prefs.getInt("i", 0));
+	}
+
+	@Test
+	public void defaultKeysGoToTheDefaultStoreOpenedByName() {
+		// as when the default file was opened (or preloaded) by its name
+		// before AccessPreferences was asked for the default store
+		final MemoryPrefs defaults = new MemoryPrefs();
+		final String name = "default" + System.nanoTime();
+		AccessPreferences.cache(new PrefsStore(name, defaults, new File(tmp
+			.getRoot(), "default"), true));
+		assertEquals(true, AccessPreferences.edit(null, name).put(
+			PrefKey.ofInt("i", 0), 1).commit());
+		assertEquals(1, defaults.getInt("i", 0));
+		assertFalse(prefs.contains("i"));
+	}
+}
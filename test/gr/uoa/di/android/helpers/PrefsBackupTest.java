@@ -0,0 +1,166 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The backup format - a round trip through the named store methods and
+ * truncated or corrupt backups, which must fail with an IOException before
+ * anything is allocated for the sizes they claim
+ */
+public class PrefsBackupTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		final MemoryPrefs from = new MemoryPrefs();
+		from.edit().putString("s", "αβγ").putString("e", "")
+			.putBoolean("b", true).putInt("i", -7).putLong("l", 1L << 40)
+			.putFloat("f", 2.5f)
+			.putStringSet("set", new HashSet<String>(Arrays.asList("x", "y")))
+			.commit();
+		final String source = store(from);
+		final File file = tmp.newFile("backup");
+		assertEquals(7, AccessPreferences.exportTo(null, source, file));
+		final MemoryPrefs to = new MemoryPrefs();
+		to.edit().putString("old", "gone").putInt("i", 1).commit();
+		final String target = store(to);
+		assertEquals(7, AccessPreferences.importFrom(null, target, file, true));
+		assertEquals(from.getAll(), to.getAll());
+		// merging keeps the keys that are not in the backup
+		to.edit().putString("kept", "k").commit();
+		assertEquals(7, AccessPreferences.importFrom(null, target, file, false));
+		assertEquals(8, to.getAll().size());
+		assertEquals("k", to.getString("kept", null));
+	}
+
+	@Test
+	public void truncatedBackupsAreRejected() throws IOException {
+		final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+		entries.put("s", "value");
+		entries.put("i", 42);
+		entries.put("set", new HashSet<String>(Arrays.asList("a", "bb")));
+		final byte[] backup = write(entries);
+		assertEquals(3, read(backup, backup.length, new MemoryPrefs()));
+		for (int cut = 0; cut < backup.length; ++cut) {
+			final byte[] truncated = Arrays.copyOf(backup, cut);
+			// whether the length is the file's or the one claimed
+			assertRejected(truncated, cut);
+			assertRejected(truncated, backup.length);
+		}
+	}
+
+	@Test
+	public void corruptSizesAreRejected() throws IOException {
+		// a string of 2G bytes in a backup of a few bytes
+		assertRejected(record(6, 0x7fffffff));
+		assertRejected(record(6, -1));
+		// a set claiming more strings than there are bytes for
+		final ByteBuffer set = header(20);
+		set.put((byte) 6).putInt(1).put((byte) 'k').putInt(0x40000000);
+		assertRejected(set.array());
+		final ByteBuffer fits = header(20);
+		fits.put((byte) 6).putInt(1).put((byte) 'k').putInt(2).putInt(0)
+			.putInt(0);
+		// two empty strings fit but then the END marker is missing
+		assertRejected(fits.array(), fits.position());
+		// an unknown record type and a wrong magic
+		final ByteBuffer type = header(10);
+		type.put((byte) 99).putInt(0);
+		assertRejected(type.array());
+		final byte[] magic = write(new LinkedHashMap<String, Object>());
+		magic[0] ^= 1;
+		assertRejected(magic);
+	}
+
+	@Test
+	public void corruptFilesAreNotImported() throws IOException {
+		final MemoryPrefs prefs = new MemoryPrefs();
+		prefs.edit().putString("k", "v").commit();
+		final String store = store(prefs);
+		final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+		entries.put("a", "1");
+		entries.put("b", "2");
+		final byte[] backup = write(entries);
+		final File file = tmp.newFile("backup");
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(backup, 0, backup.length - 3);
+		} finally {
+			out.close();
+		}
+		try {
+			AccessPreferences.importFrom(null, store, file, true);
+			fail("A truncated backup was imported");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, prefs.getAll().size());
+		assertEquals("v", prefs.getString("k", null));
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private String store(MemoryPrefs prefs) {
+		final String name = "test" + System.nanoTime(); // cached for good
+		AccessPreferences.cache(new PrefsStore(name, prefs, new File(tmp
+			.getRoot(), name)));
+		return name;
+	}
+
+	private static byte[] write(Map<String, ?> entries) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrefsBackup.write(entries, out);
+		return out.toByteArray();
+	}
+
+	private static int read(byte[] backup, long length, MemoryPrefs prefs)
+			throws IOException {
+		return PrefsBackup.read(new ByteArrayInputStream(backup), length,
+			prefs.edit());
+	}
+
+	/** The header and the start of a record of the type, up to the key */
+	private static byte[] record(int type, int keyLength) {
+		final ByteBuffer b = header(16);
+		b.put((byte) type).putInt(keyLength);
+		return b.array();
+	}
+
+	private static ByteBuffer header(int capacity) {
+		final ByteBuffer b = ByteBuffer.allocate(5 + capacity);
+		b.putInt(0x41505242).put((byte) 1);
+		return b;
+	}
+
+	private static void assertRejected(byte[] backup) {
+		assertRejected(backup, backup.length);
+	}
+
+	private static void assertRejected(byte[] backup, long length) {
+		try {
+			read(backup, length, new MemoryPrefs());
+			fail("Read a corrupt backup of " + backup.length + " bytes");
+		} catch (IOException e) {
+			// expected - EOFException for the truncated ones
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.SharedPreferences.Editor;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * The snapshot of PrefsStore on a write-then-read loop - a put() followed by
+ * a null default get() of another key - over preferences of many keys. An
+ * editor from prefs.edit() drops the snapshot, so each get() rebuilds it via
+ * getAll() as every write used to; one from store.edit() updates the key it
+ * wrote. Runs on MemoryPrefs - the framework's getAll() also takes its lock.
+ */
+public final class PrefsStoreBenchmark {
+
+	private PrefsStoreBenchmark() {}
+
+	public static void main(String[] args) throws Exception {
+		for (final int keys : new int[] { 100, 1000, 5000 }) {
+			writeThenRead(keys, false);
+			writeThenRead(keys, true);
+		}
+	}
+
+	static void writeThenRead(final int keys, final boolean tracked)
+			throws Exception {
+		final MemoryPrefs prefs = new MemoryPrefs();
+		final Editor fill = prefs.edit();
+		for (int i = 0; i < keys; ++i) {
+			fill.putString("key" + i, "value" + i);
+		}
+		fill.commit();
+		// no journals there - the folder is only listed
+		final PrefsStore store = new PrefsStore("bench", prefs, new File(
+			System.getProperty("java.io.tmpdir"), "PrefsStoreBenchmark"));
+		final String[] names = new String[keys];
+		for (int i = 0; i < keys; ++i) {
+			names[i] = "key" + i;
+		}
+		final int iterations = 20000;
+		final int getAlls = prefs.getAlls();
+		final Object[] sink = new Object[1];
+		Bench.run((tracked ? "store.edit() " : "prefs.edit() (rebuild) ") + keys
+			+ " keys", iterations, new Bench.Body() {
+
+			@Override
+			public void run(int i) {
+				final String key = names[i % keys];
+				store.apply((tracked ? store.edit() : prefs.edit()).putString(
+					key, "value" + i));
+				final Map<String, ?> snapshot = store.snapshot();
+				sink[0] = snapshot.get(names[(i * 7) % keys]);
+			}
+		});
+		System.out.println("    getAll() calls : " + (prefs.getAlls() - getAlls)
+			+ " for " + 2 * iterations + " writes");
+	}
+}
@@ -0,0 +1,236 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.content.SharedPreferences.Editor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PrefsStoreTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private MemoryPrefs prefs;
+	private PrefsStore store;
+
+	@Before
+	public void setUp() {
+		prefs = new MemoryPrefs();
+		store = new PrefsStore("test", prefs, new File(tmp.getRoot(), "sets"));
+	}
+
+	@Test
+	public void applyAfterCommitAsyncWins() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future<Boolean> async = store.commitAsync(new BlockedEditor(prefs
+			.edit().putInt("k", 2), release));
+		store.apply(prefs.edit().putInt("k", 3)); // queued behind the commit
+		assertEquals(0, prefs.getInt("k", 0));
+		release.countDown();
+		assertTrue(async.get(5, TimeUnit.SECONDS));
+		store.awaitQueued();
+		assertEquals(3, prefs.getInt("k", 0));
+		store.apply(prefs.edit().putInt("k", 4)); // nothing queued - at once
+		assertEquals(4, prefs.getInt("k", 0));
+	}
+
+	@Test
+	public void commitAfterCommitAsyncWaitsForIt() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		store.commitAsync(new BlockedEditor(prefs.edit().putInt("k", 2),
+			release));
+		new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// release anyway
+				}
+				release.countDown();
+			}
+		}.start();
+		assertTrue(store.commit(prefs.edit().putInt("k", 3)));
+		assertEquals(3, prefs.getInt("k", 0));
+	}
+
+	@Test
+	public void snapshotSeesQueuedWritesOnceDone() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		store.commitAsync(new BlockedEditor(prefs.edit().putString("a", "1"),
+			release));
+		store.apply(prefs.edit().putString("b", "2"));
+		release.countDown();
+		store.awaitQueued();
+		assertEquals("1", store.snapshot().get("a"));
+		assertEquals("2", store.snapshot().get("b"));
+	}
+
+	@Test
+	public void snapshotFollowsOurWritesKeyByKey() {
+		fill(1000);
+		final Map<String, ?> snapshot = store.snapshot();
+		assertEquals(1, prefs.getAlls());
+		store.apply(store.edit().putInt("k1", -1).remove("k2")
+			.putString("new", "n"));
+		assertTrue(store.commit(store.edit().putLong("k3", 3L)
+			.putStringSet("set", set("a"))));
+		assertEquals(-1, snapshot.get("k1"));
+		assertFalse(snapshot.containsKey("k2"));
+		assertEquals("n", snapshot.get("new"));
+		assertEquals(3L, snapshot.get("k3")); // the type changed
+		assertEquals(set("a"), snapshot.get("set"));
+		assertEquals(prefs.getAll(), snapshot);
+		assertEquals(2, prefs.getAlls()); // the one above
+	}
+
+	@Test
+	public void snapshotFollowsOutsideWritesKeyByKey() {
+		fill(1000);
+		store.snapshot();
+		prefs.edit().putInt("k1", -1).remove("k2").apply(); // via the listener
+		assertEquals(-1, store.snapshot().get("k1"));
+		assertFalse(store.snapshot().containsKey("k2"));
+		// a new key and a new type - found by trying the getters
+		prefs.edit().putBoolean("new", true).putString("k3", "s").apply();
+		assertEquals(true, store.snapshot().get("new"));
+		assertEquals("s", store.snapshot().get("k3"));
+		assertEquals(prefs.getAll(), store.snapshot());
+		assertEquals(2, prefs.getAlls()); // the one above
+	}
+
+	@Test
+	public void snapshotRebuiltAfterClearAndRawEditors() {
+		fill(10);
+		store.snapshot();
+		store.apply(store.edit().clear().putInt("a", 1));
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("a", 1);
+		assertEquals(expected, store.snapshot());
+		store.apply(prefs.edit().putInt("b", 2)); // untracked
+		expected.put("b", 2);
+		assertEquals(expected, store.snapshot());
+		assertEquals(3, prefs.getAlls());
+	}
+
+	@Test
+	public void nullValuesAreLeftOut() {
+		fill(3);
+		prefs.edit().putString("s", "x").commit();
+		prefs.putNull("null");
+		assertFalse(store.snapshot().containsKey("null"));
+		assertEquals(1, store.snapshot().get("k1"));
+		prefs.putNull("k1"); // an Integer - its getter returns the default
+		prefs.putNull("s");
+		assertFalse(store.snapshot().containsKey("k1"));
+		assertFalse(store.snapshot().containsKey("s"));
+		// a 0 is not taken for a null
+		store.apply(store.edit().putInt("k2", 0).putBoolean("b", false));
+		assertEquals(0, store.snapshot().get("k2"));
+		assertEquals(false, store.snapshot().get("b"));
+		assertEquals(1, prefs.getAlls());
+	}
+
+	private void fill(int keys) {
+		final Editor ed = prefs.edit();
+		for (int i = 0; i < keys; ++i) {
+			ed.putInt("k" + i, i);
+		}
+		ed.commit();
+	}
+
+	private static Set<String> set(String... values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	/** Blocks in commit() till released - keeps the io thread busy */
+	private static final class BlockedEditor implements Editor {
+
+		private final Editor ed;
+		private final CountDownLatch release;
+
+		BlockedEditor(Editor ed, CountDownLatch release) {
+			this.ed = ed;
+			this.release = release;
+		}
+
+		@Override
+		public boolean commit() {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return ed.commit();
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			ed.putString(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			ed.putStringSet(key, values);
+			return this;
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			ed.putInt(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			ed.putLong(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			ed.putFloat(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			ed.putBoolean(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key) {
+			ed.remove(key);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			ed.clear();
+			return this;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Preloading a store of in-memory preferences - the opener stands in for the
+ * framework parsing the file and is held till the test releases it
+ */
+public class PreloadTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private MemoryPrefs prefs;
+	private String store;
+	private final AtomicInteger opens = new AtomicInteger();
+	private final CountDownLatch opening = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<String> events = new CopyOnWriteArrayList<String>();
+	private final AccessPreferences.PreloadListener lis = new AccessPreferences.PreloadListener() {
+
+		@Override
+		public void onPreloaded(String name, long loadNanos) {
+			events.add("preloaded " + name);
+		}
+
+		@Override
+		public void onWaited(String name, long waitNanos) {
+			events.add("waited " + name);
+		}
+	};
+
+	@Before
+	public void setUp() {
+		prefs = new MemoryPrefs();
+		prefs.edit().putString("k", "v").commit();
+		store = "test" + System.nanoTime(); // stores are cached for good
+	}
+
+	@Test
+	public void firstGetWaitsForThePreload() throws Exception {
+		AccessPreferences.preload(store, opener(), lis);
+		final AtomicReference<Object> value = new AtomicReference<Object>();
+		final Thread getter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				value.set(AccessPreferences.get(null, store, "k", null));
+			}
+		});
+		try {
+			assertTrue(opening.await(5, TimeUnit.SECONDS));
+			getter.start();
+			awaitBlocked(getter);
+			assertEquals(null, value.get());
+		} finally {
+			release.countDown();
+		}
+		getter.join(5000);
+		assertEquals("v", value.get());
+		assertEquals(1, opens.get()); // the getter did not open it again
+		// the snapshot for null defaults was built on the preload thread
+		assertEquals(1, prefs.getAlls());
+		assertEquals("v", AccessPreferences.get(null, store, "k", null));
+		assertEquals(1, prefs.getAlls());
+		// onPreloaded runs before the getter is let go
+		assertEquals(2, events.size());
+		assertEquals("preloaded " + store, events.get(0));
+		assertEquals("waited " + store, events.get(1));
+	}
+
+	@Test
+	public void preloadRunsOnce() throws Exception {
+		final Callable<PrefsStore> second = new Callable<PrefsStore>() {
+
+			@Override
+			public PrefsStore call() {
+				throw new AssertionError("Opened twice");
+			}
+		};
+		AccessPreferences.preload(store, opener(), lis);
+		try {
+			assertTrue(opening.await(5, TimeUnit.SECONDS));
+			AccessPreferences.preload(store, second, lis); // in progress
+		} finally {
+			release.countDown();
+		}
+		// a get waits for it - possibly not at all if it is done already
+		assertEquals("v", AccessPreferences.get(null, store, "k", "default"));
+		AccessPreferences.preload(store, second, lis); // loaded
+		assertEquals(1, opens.get());
+		assertEquals("preloaded " + store, events.get(0));
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** Opens the store of prefs once the test releases it */
+	private Callable<PrefsStore> opener() {
+		return new Callable<PrefsStore>() {
+
+			@Override
+			public PrefsStore call() throws InterruptedException {
+				opens.incrementAndGet();
+				opening.countDown();
+				if (!release.await(5, TimeUnit.SECONDS))
+					throw new AssertionError("Never released");
+				return new PrefsStore(store, prefs, new File(tmp.getRoot(),
+					"sets"));
+			}
+		};
+	}
+
+	/** Waits till the thread is parked - on the preload, here */
+	private static void awaitBlocked(Thread t) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (t.getState() != Thread.State.WAITING) {
+			if (System.nanoTime() > deadline) fail("Not blocked : " + t);
+			Thread.sleep(5);
+		}
+	}
+}
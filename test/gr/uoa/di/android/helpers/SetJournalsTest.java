@@ -0,0 +1,198 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SetJournalsTest {
+
+	private static final String KEY = "set";
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+	private MemoryPrefs prefs;
+	private File dir;
+	private PrefsStore store;
+
+	@Before
+	public void setUp() {
+		prefs = new MemoryPrefs();
+		dir = new File(tmp.getRoot(), "sets");
+		store = new PrefsStore("test", prefs, dir);
+	}
+
+	@Test
+	public void addsAndRemovesViaTheJournal() {
+		add("a");
+		add("b", "c");
+		store.sets.remove(KEY, Arrays.asList("b"));
+		assertEquals(set("a", "c"), store.sets.view(KEY));
+		assertTrue(store.sets.contains(KEY, "c"));
+		assertFalse(store.sets.contains(KEY, "b"));
+		// the first add wrote the key, the rest went to the journal
+		assertEquals(set("a"), prefs.getStringSet(KEY, null));
+		assertEquals(1, journals().length);
+	}
+
+	@Test
+	public void replaysTheJournal() {
+		add("a");
+		add("b", "c");
+		final PrefsStore restarted = new PrefsStore("test", prefs, dir);
+		assertEquals(set("a", "b", "c"), restarted.sets.view(KEY));
+	}
+
+	@Test
+	public void dropsTheJournalOnAnOutsideWrite() {
+		add("a");
+		add("b");
+		// a raw editor - no AccessPreferences write follows
+		prefs.edit().putStringSet(KEY, set("x")).commit();
+		assertEquals(set("x"), store.sets.view(KEY));
+		assertTrue(store.sets.contains(KEY, "x"));
+		assertFalse(store.sets.contains(KEY, "b"));
+		assertEquals(0, journals().length);
+		// and goes on from the new base
+		add("y");
+		assertEquals(set("x", "y"), store.sets.view(KEY));
+		assertEquals(set("x", "y"),
+			new PrefsStore("test", prefs, dir).sets.view(KEY));
+	}
+
+	@Test
+	public void dropsTheJournalOnAnOutsideRemove() {
+		add("a");
+		add("b");
+		prefs.edit().remove(KEY).commit();
+		assertNull(store.sets.view(KEY));
+		assertFalse(store.sets.contains(KEY, "a"));
+		assertEquals(0, journals().length);
+	}
+
+	@Test
+	public void foldsJournalsBiggerThanTheSet() {
+		add("a");
+		drainIo(); // no fold starts while the one of the new key is written
+		// 300 records on a set of 1 or 2 - folded once past 256 records
+		for (int i = 0; i < 150; ++i) {
+			add("b");
+			store.sets.remove(KEY, Arrays.asList("b"));
+		}
+		add("c");
+		final Set<String> expected = set("a", "c");
+		assertEquals(expected, store.sets.view(KEY));
+		assertEquals(set("a"), prefs.getStringSet(KEY, null)); // not yet
+		drainIo(); // the first fold is on disk - the next edit folds again
+		for (int i = 0; i < 150; ++i) {
+			add("b");
+			store.sets.remove(KEY, Arrays.asList("b"));
+		}
+		// folded - the records that follow are kept in the journal, which
+		// is replayed harmlessly on the folded set
+		assertTrue(prefs.getStringSet(KEY, null).contains("c"));
+		assertEquals(expected, store.sets.view(KEY));
+		assertEquals(expected, new PrefsStore("test", prefs, dir).sets.view(KEY));
+		store.sets.compactAll();
+		assertEquals(0, journals().length);
+		assertEquals(expected, prefs.getStringSet(KEY, null));
+	}
+
+	@Test
+	public void journalOutlivesTheFoldTillItIsOnDisk() throws Exception {
+		add("a");
+		drainIo(); // the fold of the new key
+		final CountDownLatch reached = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// stops the commit that waits for the fold to be written
+		prefs.beforeWrites(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!Thread.currentThread().getName().startsWith(
+					"AccessPreferences-io")) return;
+				reached.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		try {
+			for (int i = 0; i < 128; ++i) { // 256 records - folded
+				add("b");
+				store.sets.remove(KEY, Arrays.asList("b"));
+			}
+			assertTrue(reached.await(5, TimeUnit.SECONDS));
+			assertEquals(set("a"), prefs.getStringSet(KEY, null)); // applied
+			assertEquals(1, journals().length); // but not yet on disk
+			assertEquals(set("a"),
+				new PrefsStore("test", prefs, dir).sets.view(KEY));
+		} finally {
+			release.countDown();
+		}
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (journals().length > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, journals().length);
+		assertEquals(set("a"), store.sets.view(KEY));
+	}
+
+	@Test
+	public void viewFollowsTheEdits() {
+		add("a");
+		final Set<String> view = store.sets.view(KEY);
+		add("b");
+		store.sets.remove(KEY, Arrays.asList("a"));
+		assertSame(view, store.sets.view(KEY)); // not copied
+		assertEquals(set("b"), view);
+		// a put of the key replaces it - the old view stays as it was
+		prefs.edit().putStringSet(KEY, set("x")).commit();
+		assertEquals(set("x"), store.sets.view(KEY));
+		assertEquals(set("b"), view);
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private void add(String... values) {
+		store.sets.add(KEY, Arrays.asList(values));
+	}
+
+	/** Waits for the tasks on the I/O thread of the store */
+	private void drainIo() {
+		PrefsStore.await(store.onIoThread(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return true;
+			}
+		}));
+	}
+
+	private String[] journals() {
+		final String[] names = dir.list();
+		return names == null ? new String[0] : names;
+	}
+
+	private static Set<String> set(String... values) {
+		return Collections.unmodifiableSet(new HashSet<String>(Arrays
+			.asList(values)));
+	}
+}
@@ -0,0 +1,213 @@
+package gr.uoa.di.android.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Bytes written per put() as the number of keys and of shards grow. The
+ * framework rewrites the whole xml file of the preferences on every write,
+ * so each shard here is a MemoryPrefs that counts, on every write, the size
+ * of the xml the framework would write for it (as XmlUtils.writeMapXml()).
+ * Each put() changes one random key of a store of string keys of 16 chars
+ * and values of 32.
+ */
+public final class ShardedPreferencesBenchmark {
+
+	private static final int PUTS = 2000;
+
+	private ShardedPreferencesBenchmark() {}
+
+	public static void main(String[] args) {
+		System.out.println(String.format(Locale.US, "%8s %8s %16s",
+			"keys", "shards", "bytes/put"));
+		for (int keys : new int[] { 100, 500, 2000 }) {
+			for (int shards : new int[] { 1, 2, 4, 8, 16 }) {
+				System.out.println(String.format(Locale.US, "%8d %8d %16.0f",
+					keys, shards, bytesPerPut(keys, shards)));
+			}
+		}
+	}
+
+	static double bytesPerPut(int keys, int shards) {
+		final long[] written = new long[1];
+		final SharedPreferences prefs = new ShardedPreferences(null, "bench",
+			shards, new PrefsBackend() {
+
+				@Override
+				public SharedPreferences open(Context ctx, String name) {
+					return new XmlSized(written);
+				}
+
+				@Override
+				public long sizeOf(Context ctx, String name) {
+					return 0;
+				}
+			});
+		final SharedPreferences.Editor fill = prefs.edit();
+		for (int i = 0; i < keys; ++i) {
+			fill.putString(key(i), value(i));
+		}
+		fill.commit();
+		written[0] = 0;
+		final Random random = new Random(42);
+		for (int i = 0; i < PUTS; ++i) {
+			final int k = random.nextInt(keys);
+			prefs.edit().putString(key(k), value(i)).commit();
+		}
+		return written[0] / (double) PUTS;
+	}
+
+	private static String key(int i) {
+		return String.format(Locale.US, "key-%012d", i);
+	}
+
+	private static String value(int i) {
+		return String.format(Locale.US, "value-%026d", i);
+	}
+
+	/** MemoryPrefs adding the size of its xml file to written on each write */
+	private static final class XmlSized implements SharedPreferences {
+
+		private final MemoryPrefs prefs = new MemoryPrefs();
+		private final long[] written;
+
+		XmlSized(long[] written) {
+			this.written = written;
+		}
+
+		/** As XmlUtils.writeMapXml() with FastXmlSerializer - strings only */
+		private long xmlSize() {
+			long size = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n</map>\n"
+				.length();
+			for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+				size += "    <string name=\"\"></string>\n".length()
+					+ e.getKey().length() + e.getValue().toString().length();
+			}
+			return size;
+		}
+
+		@Override
+		public Map<String, ?> getAll() {
+			return prefs.getAll();
+		}
+
+		@Override
+		public String getString(String key, String defValue) {
+			return prefs.getString(key, defValue);
+		}
+
+		@Override
+		public Set<String> getStringSet(String key, Set<String> defValues) {
+			return prefs.getStringSet(key, defValues);
+		}
+
+		@Override
+		public int getInt(String key, int defValue) {
+			return prefs.getInt(key, defValue);
+		}
+
+		@Override
+		public long getLong(String key, long defValue) {
+			return prefs.getLong(key, defValue);
+		}
+
+		@Override
+		public float getFloat(String key, float defValue) {
+			return prefs.getFloat(key, defValue);
+		}
+
+		@Override
+		public boolean getBoolean(String key, boolean defValue) {
+			return prefs.getBoolean(key, defValue);
+		}
+
+		@Override
+		public boolean contains(String key) {
+			return prefs.contains(key);
+		}
+
+		@Override
+		public Editor edit() {
+			final Editor ed = prefs.edit();
+			return new Editor() {
+
+				@Override
+				public Editor putString(String key, String value) {
+					ed.putString(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putStringSet(String key, Set<String> values) {
+					ed.putStringSet(key, values);
+					return this;
+				}
+
+				@Override
+				public Editor putInt(String key, int value) {
+					ed.putInt(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putLong(String key, long value) {
+					ed.putLong(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putFloat(String key, float value) {
+					ed.putFloat(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putBoolean(String key, boolean value) {
+					ed.putBoolean(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor remove(String key) {
+					ed.remove(key);
+					return this;
+				}
+
+				@Override
+				public Editor clear() {
+					ed.clear();
+					return this;
+				}
+
+				@Override
+				public boolean commit() {
+					final boolean result = ed.commit();
+					written[0] += xmlSize();
+					return result;
+				}
+
+				@Override
+				public void apply() {
+					commit();
+				}
+			};
+		}
+
+		@Override
+		public void registerOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+			prefs.registerOnSharedPreferenceChangeListener(listener);
+		}
+
+		@Override
+		public void unregisterOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+			prefs.unregisterOnSharedPreferenceChangeListener(listener);
+		}
+	}
+}
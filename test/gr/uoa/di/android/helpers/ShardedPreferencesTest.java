@@ -0,0 +1,169 @@
+package gr.uoa.di.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Shards of in-memory preferences - the backend never uses the Context */
+public class ShardedPreferencesTest {
+
+	private static final int SHARDS = 4;
+	private final Map<String, MemoryPrefs> files = new HashMap<String, MemoryPrefs>();
+	private ShardedPreferences prefs;
+
+	@Before
+	public void setUp() {
+		prefs = new ShardedPreferences(null, "store", SHARDS,
+			new PrefsBackend() {
+
+				@Override
+				public SharedPreferences open(Context ctx, String name) {
+					final MemoryPrefs p = new MemoryPrefs();
+					files.put(name, p);
+					return p;
+				}
+
+				@Override
+				public long sizeOf(Context ctx, String name) {
+					return 0;
+				}
+			});
+	}
+
+	@Test
+	public void shardOfRoutesByNamespace() {
+		final int sync = ShardedPreferences.shardOf("sync", SHARDS);
+		assertEquals(sync, ShardedPreferences.shardOf("sync:last", SHARDS));
+		assertEquals(sync, ShardedPreferences.shardOf("sync:count", SHARDS));
+		assertEquals(sync, ShardedPreferences.shardOf("sync:", SHARDS));
+		assertEquals(sync, ShardedPreferences.shardOf("sync:a:b", SHARDS));
+		// the hash is String's, so the shards stay put across runs
+		assertEquals(("sync".hashCode() & Integer.MAX_VALUE) % SHARDS, sync);
+		// a key whose hash is Integer.MIN_VALUE, and other negative ones
+		assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode());
+		for (String key : new String[] { "polygenelubricants", "zzzzzzz",
+				":leading", "" }) {
+			final int shard = ShardedPreferences.shardOf(key, SHARDS);
+			assertTrue(key, shard >= 0 && shard < SHARDS);
+		}
+		assertEquals(ShardedPreferences.shardOf("", SHARDS),
+			ShardedPreferences.shardOf(":leading", SHARDS));
+	}
+
+	@Test
+	public void keysLiveInTheirShard() {
+		prefs.edit().putString("sync:last", "now").putInt("sync:count", 3)
+			.putBoolean("flag", true).commit();
+		final MemoryPrefs sync = shard("sync");
+		assertEquals("now", sync.getString("sync:last", null));
+		assertEquals(3, sync.getInt("sync:count", 0));
+		assertTrue(shard("flag").getBoolean("flag", false));
+		// read back through the sharded preferences
+		assertEquals("now", prefs.getString("sync:last", null));
+		assertTrue(prefs.contains("flag"));
+		assertFalse(prefs.contains("missing"));
+		for (MemoryPrefs p : files.values()) {
+			if (p != sync) assertFalse(p.contains("sync:last"));
+		}
+	}
+
+	@Test
+	public void getAllMergesTheShards() {
+		final SharedPreferences.Editor ed = prefs.edit();
+		for (int i = 0; i < 50; ++i) {
+			ed.putInt("ns" + i + ":k", i);
+		}
+		ed.commit();
+		int used = 0;
+		for (MemoryPrefs p : files.values()) {
+			if (p.getAll().size() > 0) ++used;
+		}
+		assertTrue("All keys in one shard", used > 1);
+		final Map<String, ?> all = prefs.getAll();
+		assertEquals(50, all.size());
+		for (int i = 0; i < 50; ++i) {
+			assertEquals(i, all.get("ns" + i + ":k"));
+		}
+	}
+
+	@Test
+	public void editorsWriteOnlyTheShardsTouched() {
+		assertEquals(SHARDS, files.size());
+		final String other = keyNotIn(shardIndex("sync"));
+		prefs.edit().putInt("sync:a", 1).putLong("sync:b", 2L).commit();
+		for (Map.Entry<String, MemoryPrefs> e : files.entrySet()) {
+			assertEquals(e.getKey(), e.getValue() == shard("sync") ? 1 : 0, e
+				.getValue().writes());
+		}
+		prefs.edit().remove("sync:a").putFloat(other, 1f).apply();
+		assertEquals(2, shard("sync").writes());
+		assertEquals(1, shard(other).writes());
+		prefs.edit().commit(); // nothing touched - nothing written
+		int writes = 0;
+		for (MemoryPrefs p : files.values()) {
+			writes += p.writes();
+		}
+		assertEquals(3, writes);
+		// clear() touches all of them
+		prefs.edit().clear().commit();
+		for (MemoryPrefs p : files.values()) {
+			assertEquals(0, p.getAll().size());
+		}
+		assertEquals(0, prefs.getAll().size());
+	}
+
+	@Test
+	public void listenersHearEveryShard() {
+		final List<String> changes = new ArrayList<String>();
+		final OnSharedPreferenceChangeListener lis = new OnSharedPreferenceChangeListener() {
+
+			@Override
+			public void onSharedPreferenceChanged(SharedPreferences sp,
+					String key) {
+				// the shard, not the sharded preferences
+				assertSame(shard(key), sp);
+				changes.add(key);
+			}
+		};
+		prefs.registerOnSharedPreferenceChangeListener(lis);
+		final String other = keyNotIn(shardIndex("sync"));
+		prefs.edit().putInt("sync:a", 1).putInt(other, 2).commit();
+		assertEquals(2, changes.size());
+		assertTrue(changes.contains("sync:a"));
+		assertTrue(changes.contains(other));
+		prefs.unregisterOnSharedPreferenceChangeListener(lis);
+		prefs.edit().putInt("sync:a", 3).commit();
+		assertEquals(2, changes.size());
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private static int shardIndex(String key) {
+		return ShardedPreferences.shardOf(key, SHARDS);
+	}
+
+	/** The preferences of the shard the key lives in */
+	private MemoryPrefs shard(String key) {
+		return files.get(ShardedPreferences.shardName("store", shardIndex(key)));
+	}
+
+	private static String keyNotIn(int shard) {
+		for (int i = 0;; ++i) {
+			if (shardIndex("k" + i) != shard) return "k" + i;
+		}
+	}
+}
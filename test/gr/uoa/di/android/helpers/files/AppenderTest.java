@@ -0,0 +1,67 @@
+package gr.uoa.di.android.helpers.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+public class AppenderTest {
+
+	/** Writes to it fail with ENOSPC */
+	private static final File FULL = new File("/dev/full");
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void closeWritesWhatIsBuffered() throws IOException {
+		final File file = tmp.newFile();
+		final Appender appender = new Appender(file, 1 << 20, 0, false);
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 1000; ++i) {
+			final byte[] record = ("record " + i + "\n").getBytes("UTF-8");
+			appender.append(record);
+			expected.write(record);
+		}
+		appender.close();
+		appender.close(); // idempotent
+		assertArrayEquals(expected.toByteArray(), Reader.read(file.getPath()));
+	}
+
+	@Test
+	public void closeThrowsIfTheLastWriteFails() throws IOException {
+		assumeTrue(FULL.exists());
+		final Appender appender = new Appender(FULL, 1 << 20, 0, false);
+		appender.append(new byte[100]); // buffered
+		try {
+			appender.close();
+			fail("The buffered bytes were silently dropped");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void closeThrowsIfAnEarlierWriteFailed() throws IOException {
+		assumeTrue(FULL.exists());
+		final Appender appender = new Appender(FULL, 0, 0, false);
+		try {
+			appender.append(new byte[100]); // written at once
+			fail("No exception");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			appender.close();
+			fail("The failure was not rethrown");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
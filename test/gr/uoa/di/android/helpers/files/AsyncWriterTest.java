@@ -0,0 +1,165 @@
+package gr.uoa.di.android.helpers.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The writer thread takes the records under the lock of the writer, so a test
+ * holding that lock keeps the records in the buffer - appends from the same
+ * thread get in as the lock is reentrant
+ */
+public class AsyncWriterTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void dropNewestRejectsWhatDoesNotFit() throws IOException {
+		final File file = tmp.newFile();
+		// room for two records of 6 bytes (and their 4 byte headers)
+		final AsyncWriter w = Writer.asyncWriter(file, 20,
+			AsyncWriter.Overflow.DROP_NEWEST);
+		synchronized (w) {
+			assertTrue(w.append(record('a')));
+			assertTrue(w.append(record('b')));
+			assertEquals(20, w.queuedBytes());
+			assertFalse(w.append(record('c')));
+			assertFalse(w.append(new byte[1]));
+			assertEquals(2, w.queueDepth());
+			assertEquals(2, w.dropped());
+		}
+		w.close();
+		assertEquals("aaaaaabbbbbb", read(file));
+		assertEquals(2, w.written());
+		assertEquals(2, w.dropped());
+	}
+
+	@Test
+	public void dropOldestMakesRoom() throws IOException {
+		final File file = tmp.newFile();
+		final AsyncWriter w = Writer.asyncWriter(file, 20,
+			AsyncWriter.Overflow.DROP_OLDEST);
+		synchronized (w) {
+			assertTrue(w.append(record('a')));
+			assertTrue(w.append(record('b')));
+			assertTrue(w.append(record('c'))); // drops a, wraps to index 0
+			assertEquals(2, w.queueDepth());
+			assertEquals(1, w.dropped());
+			// needs the room of both, its body wraps around the end
+			assertTrue(w.append("0123456789".getBytes("UTF-8")));
+			assertEquals(1, w.queueDepth());
+			assertEquals(3, w.dropped());
+		}
+		w.close();
+		assertEquals("0123456789", read(file));
+		assertEquals(1, w.written());
+	}
+
+	@Test
+	public void blockWaitsForTheWriter() throws IOException {
+		final File file = tmp.newFile();
+		final AsyncWriter w = Writer.asyncWriter(file, 64,
+			AsyncWriter.Overflow.BLOCK);
+		final StringBuilder expected = new StringBuilder();
+		// far more than the buffer holds - each append past the first few
+		// waits for the writer thread to make room
+		for (int i = 0; i < 2000; ++i) {
+			final String record = "record " + i + "\n";
+			assertTrue(w.append(record.getBytes("UTF-8")));
+			expected.append(record);
+		}
+		w.close();
+		assertEquals(expected.toString(), read(file));
+		assertEquals(2000, w.written());
+		assertEquals(0, w.dropped());
+	}
+
+	@Test
+	public void recordsWrapAroundTheRing() throws IOException {
+		final File file = tmp.newFile();
+		// an odd capacity so headers and records land on every offset
+		final AsyncWriter w = Writer.asyncWriter(file, 23,
+			AsyncWriter.Overflow.BLOCK);
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 500; ++i) {
+			final byte[] record = new byte[i % 20];
+			for (int j = 0; j < record.length; ++j) {
+				record[j] = (byte) (i + j);
+			}
+			w.append(record);
+			expected.write(record);
+			if (i % 3 == 0) w.flush(); // the ring empties, the head moves on
+		}
+		w.flush();
+		assertEquals(0, w.queueDepth());
+		assertEquals(0, w.queuedBytes());
+		assertEquals(500, w.written());
+		w.close();
+		assertArrayEquals(expected.toByteArray(), Reader.read(file.getPath()));
+	}
+
+	@Test
+	public void closeWritesWhatIsBuffered() throws IOException {
+		final File file = tmp.newFile();
+		final AsyncWriter w = Writer.asyncWriter(file, 1 << 16,
+			AsyncWriter.Overflow.BLOCK);
+		final StringBuilder expected = new StringBuilder();
+		synchronized (w) {
+			for (int i = 0; i < 1000; ++i) {
+				final String record = "record " + i + "\n";
+				w.append(record.getBytes("UTF-8"));
+				expected.append(record);
+			}
+			assertEquals(1000, w.queueDepth()); // none written yet
+		}
+		w.close();
+		w.close(); // idempotent
+		assertEquals(expected.toString(), read(file));
+		assertEquals(1000, w.written());
+		try {
+			w.append(new byte[1]);
+			fail("Appended to a closed writer");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsRecordsBiggerThanTheBuffer() throws IOException {
+		final AsyncWriter w = Writer.asyncWriter(tmp.newFile(), 20,
+			AsyncWriter.Overflow.DROP_OLDEST);
+		try {
+			w.append(new byte[17]); // 4 bytes of header
+			fail("A record bigger than the buffer was taken");
+		} catch (IllegalArgumentException e) {
+			// expected
+		} finally {
+			w.close();
+		}
+		assertEquals(0, w.dropped());
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** 6 bytes of c */
+	private static byte[] record(char c) {
+		return new byte[] { (byte) c, (byte) c, (byte) c, (byte) c, (byte) c,
+				(byte) c };
+	}
+
+	private static String read(File file) throws IOException {
+		return Reader.read(file.getPath(), "UTF-8");
+	}
+}
@@ -0,0 +1,87 @@
+package gr.uoa.di.android.helpers.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class EncodersTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void writesOnceWhateverTheLength() throws IOException {
+		for (String cs : new String[] { "UTF-8", "UTF-16", "ISO-8859-1" }) {
+			for (int length : new int[] { 0, 1, 2000, 8192, 8193, 100000 }) {
+				final String data = text(length);
+				final CountingChannel channel = new CountingChannel();
+				final Encoders.Encoder encoder = Encoders.take(cs);
+				try {
+					encoder.write(data, channel);
+				} finally {
+					Encoders.give(cs, encoder);
+				}
+				final String what = cs + " " + length;
+				assertEquals(what, length == 0 ? 0 : 1, channel.writes);
+				assertArrayEquals(what, data.getBytes(cs), channel.bytes());
+			}
+		}
+	}
+
+	@Test
+	public void replacesWhatCantBeEncoded() throws IOException {
+		final String data = "ελληνικά \ud800 unpaired";
+		final File file = tmp.newFile();
+		Writer.append(file, data, "ISO-8859-1");
+		Writer.append(file, data, "UTF-8");
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(data.getBytes("ISO-8859-1"));
+		expected.write(data.getBytes("UTF-8"));
+		assertArrayEquals(expected.toByteArray(), Reader.read(file.getPath()));
+	}
+
+	private static String text(int length) {
+		final StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			sb.append(i % 5 == 0 ? 'λ' : (char) ('a' + i % 26));
+		}
+		return sb.toString();
+	}
+
+	private static final class CountingChannel implements WritableByteChannel {
+
+		int writes;
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public int write(ByteBuffer src) {
+			++writes;
+			final int n = src.remaining();
+			final byte[] bytes = new byte[n];
+			src.get(bytes);
+			out.write(bytes, 0, n);
+			return n;
+		}
+
+		byte[] bytes() {
+			return out.toByteArray();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+}
@@ -0,0 +1,230 @@
+package gr.uoa.di.android.helpers.files;
+
+import gr.uoa.di.android.helpers.Bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reader against the plain ways of reading the same files. Run with a folder
+ * to write the files to - defaults to the temp folder. Each comparison runs
+ * twice : the call in Bench.run() gets megamorphic from the third body on,
+ * which favours the first ones, so compare the numbers of the second round.
+ */
+public final class ReaderBenchmark {
+
+	private static final String ASCII = "The quick brown fox jumps over the lazy dog. ";
+	private static final String GREEK = "Ξεσκεπάζω την ψυχοφθόρα βδελυγμία. ";
+
+	private ReaderBenchmark() {}
+
+	public static void main(String[] args) throws Exception {
+		final File dir = new File(args.length > 0 ? args[0]
+			: System.getProperty("java.io.tmpdir"), "ReaderBenchmark");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can not create folder " + dir);
+		for (int round = 1; round <= 2; ++round) {
+			System.out.println("Round " + round);
+			decode(dir);
+			read(dir);
+			map(dir);
+		}
+	}
+
+	/**
+	 * The decoding alone, on bytes already read - Decoders against a new
+	 * decoder per call, as read(filename, csName) used to, and new String()
+	 */
+	static void decode(final File dir) throws Exception {
+		for (final int length : new int[] { 200, 1024 * 1024 }) {
+			for (final String text : new String[] { ASCII, GREEK }) {
+				final String kind = (text == ASCII ? "ascii " : "greek ")
+					+ length + "B";
+				final byte[] bytes = Reader.read(file(dir, text, length)
+					.getPath());
+				final int iterations = length > 10000 ? 200 : 200000;
+				Bench.run("decode, new decoder, " + kind, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							Charset.forName("UTF-8").newDecoder().decode(
+								ByteBuffer.wrap(bytes)).toString();
+						}
+					});
+				Bench.run("decode, Decoders, " + kind, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							Decoders.decode(bytes, "UTF-8");
+						}
+					});
+				Bench.run("decode, new String(), " + kind, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							new String(bytes, "UTF-8");
+						}
+					});
+			}
+		}
+	}
+
+	/**
+	 * read(filename, csName) - a cached decoder, ASCII inflated directly -
+	 * against a new decoder per file as it used to and new String(). The
+	 * latter replaces malformed input instead of throwing, so it is not a
+	 * drop in replacement - just the floor.
+	 */
+	static void read(final File dir) throws Exception {
+		for (final int length : new int[] { 200, 1024 * 1024 }) {
+			for (final String text : new String[] { ASCII, GREEK }) {
+				final String kind = (text == ASCII ? "ascii " : "greek ")
+					+ length + "B";
+				final String path = file(dir, text, length).getPath();
+				final int iterations = length > 10000 ? 200 : 20000;
+				Bench.run("new decoder per file, " + kind, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							Charset.forName("UTF-8").newDecoder().decode(
+								ByteBuffer.wrap(Reader.read(path))).toString();
+						}
+					});
+				Bench.run("read(path, UTF-8), " + kind, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							Reader.read(path, "UTF-8");
+						}
+					});
+				Bench.run("new String(read(path), UTF-8), " + kind,
+					iterations, new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							new String(Reader.read(path), "UTF-8");
+						}
+					});
+			}
+		}
+	}
+
+	/**
+	 * map() against read() of a 64MB ASCII file - counting its lines, which
+	 * touches every byte, and reading its first line only. The file is in
+	 * the page cache after the first run, so this compares the copy to the
+	 * heap against the page faults of the mapping - not the disk.
+	 */
+	static void map(final File dir) throws Exception {
+		final File file = file(dir, ASCII + "\n", 64 * 1024 * 1024);
+		final String path = file.getPath();
+		final long[] sink = new long[1];
+		Bench.run("read(path), count lines, 64MB", 10, new Bench.Body() {
+
+			@Override
+			public void run(int i) throws Exception {
+				final byte[] bytes = Reader.read(path);
+				int lines = 0;
+				for (byte b : bytes) {
+					if (b == '\n') ++lines;
+				}
+				sink[0] += lines;
+			}
+		});
+		Bench.run("map(file) segment, count lines, 64MB", 10,
+			new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					final MappedFile mapped = Reader.map(file);
+					try {
+						final ByteBuffer segment = mapped.segment(0);
+						final int length = segment.limit();
+						int lines = 0;
+						for (int j = 0; j < length; ++j) {
+							if (segment.get(j) == '\n') ++lines;
+						}
+						sink[0] += lines;
+					} finally {
+						mapped.close();
+					}
+				}
+			});
+		Bench.run("map(file) get(long), count lines, 64MB", 10,
+			new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					final MappedFile mapped = Reader.map(file);
+					try {
+						final long length = mapped.length();
+						int lines = 0;
+						for (long j = 0; j < length; ++j) {
+							if (mapped.get(j) == '\n') ++lines;
+						}
+						sink[0] += lines;
+					} finally {
+						mapped.close();
+					}
+				}
+			});
+		Bench.run("read(path), first line, 64MB", 10, new Bench.Body() {
+
+			@Override
+			public void run(int i) throws Exception {
+				final byte[] bytes = Reader.read(path);
+				int end = 0;
+				while (bytes[end] != '\n') {
+					++end;
+				}
+				sink[0] += end;
+			}
+		});
+		Bench.run("map(file) chars(), first line, 64MB", 10,
+			new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					final MappedFile mapped = Reader.map(file);
+					try {
+						final CharSequence chars = mapped.chars();
+						int end = 0;
+						while (chars.charAt(end) != '\n') {
+							++end;
+						}
+						sink[0] += chars.subSequence(0, end).toString()
+							.length();
+					} finally {
+						mapped.close();
+					}
+				}
+			});
+	}
+
+	/** A file of text repeated to length bytes of UTF-8 or a bit more */
+	private static File file(final File dir, final String text,
+			final int length) throws IOException {
+		final byte[] unit = text.getBytes("UTF-8");
+		final byte[] bytes = new byte[(length + unit.length - 1) / unit.length
+			* unit.length]; // whole copies, so no char is cut in two
+		for (int i = 0; i < bytes.length; i += unit.length) {
+			System.arraycopy(unit, 0, bytes, i, unit.length);
+		}
+		final File file = new File(dir, "text" + System.nanoTime());
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
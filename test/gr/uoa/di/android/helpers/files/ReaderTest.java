@@ -0,0 +1,528 @@
+package gr.uoa.di.android.helpers.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ReaderTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void readsEmptyFile() throws IOException {
+		assertArrayEquals(new byte[0], Reader.read(file(new byte[0])
+			.getPath()));
+	}
+
+	@Test
+	public void readsFilesAroundTheBufferSize() throws IOException {
+		for (int length : new int[] { 1, 8191, 8192, 8193, 16384 }) {
+			final byte[] bytes = random(length);
+			assertArrayEquals("length " + length, bytes,
+				Reader.read(file(bytes).getPath()));
+		}
+	}
+
+	@Test
+	public void readsBigFile() throws IOException {
+		final byte[] bytes = random(5 * 1024 * 1024 + 7);
+		assertArrayEquals(bytes, Reader.read(file(bytes).getPath()));
+	}
+
+	@Test
+	public void readsFileLongerThanItsReportedLength() throws IOException {
+		final byte[] bytes = random(20000);
+		final FileInputStream in = new FileInputStream(file(bytes));
+		try {
+			// as if the file grew after its length was read
+			for (int reported : new int[] { 0, 1, 8192, 19999 }) {
+				in.getChannel().position(0);
+				assertArrayEquals("reported " + reported, bytes,
+					Reader.readAll(new ShortChannel(in.getChannel(), reported)));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void readsProcFiles() throws IOException {
+		final File proc = new File("/proc/version");
+		assumeTrue(proc.exists()); // Linux only
+		assertEquals(0, proc.length()); // the length is not known in advance
+		final byte[] expected = readStream(new FileInputStream(proc));
+		assertArrayEquals(expected, Reader.read(proc.getPath()));
+	}
+
+	@Test
+	public void decodesAsStringConstructor() throws IOException {
+		final String[] texts = { "", "plain ascii\n",
+				"ελληνικά €",
+				"café", big() };
+		for (String cs : new String[] { "UTF-8", "ISO-8859-1", "UTF-16" }) {
+			for (String text : texts) {
+				final byte[] bytes = text.getBytes(cs);
+				assertEquals(cs, new String(bytes, cs),
+					Reader.read(file(bytes).getPath(), cs));
+			}
+		}
+	}
+
+	@Test
+	public void malformedInputThrows() throws IOException {
+		final byte[][] malformed = { { 'a', (byte) 0xC3 }, // cut in two
+				{ (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, // a surrogate
+				{ 'a', (byte) 0xFF, 'b' } };
+		for (byte[] bytes : malformed) {
+			for (String cs : new String[] { "UTF-8", "US-ASCII" }) {
+				try {
+					Reader.read(file(bytes).getPath(), cs);
+					fail(cs + " decoded " + Arrays.toString(bytes));
+				} catch (CharacterCodingException e) {
+					// expected
+				}
+			}
+		}
+		// a real U+FFFD is not malformed
+		final String replacement = "a \uFFFD b";
+		assertEquals(replacement, Reader.read(
+			file(replacement.getBytes("UTF-8")).getPath(), "UTF-8"));
+	}
+
+	@Test
+	public void splitsLinesAsBufferedReader() throws IOException {
+		final List<String> texts = new ArrayList<String>(Arrays.asList("",
+			"a", "a\n", "no terminator", "a\r\nb", "\n\n\r\n\r\r",
+			"a\r\r\nb\n\nc\r", "\r\n\r\n", "é\rε\n€"));
+		// a "\r\n" split across the 8K byte (and char) buffers
+		for (int pad = 8189; pad <= 8193; ++pad) {
+			texts.add(repeat('x', pad) + "\r\n" + "y");
+			texts.add(repeat('x', pad) + "\r\n\r\n");
+			texts.add(repeat('x', pad) + "\r" + "y\n");
+		}
+		for (int pad = 4094; pad <= 4097; ++pad) { // 2 bytes a char
+			texts.add(repeat('é', pad) + "\r\n" + "y");
+		}
+		texts.add(big());
+		for (String text : texts) {
+			final File f = file(text.getBytes("UTF-8"));
+			final List<String> lines = readLines(f, Integer.MAX_VALUE);
+			assertEquals(lines(text), lines);
+		}
+	}
+
+	@Test
+	public void readLinesStopsWhenTold() throws IOException {
+		final File f = file("a\nb\nc\n".getBytes("UTF-8"));
+		assertEquals(Arrays.asList("a", "b"), readLines(f, 2));
+		assertEquals(2, Reader.readLines(f, "UTF-8", new LineAction() {
+
+			private int left = 2;
+
+			@Override
+			public boolean useLine(CharSequence line) {
+				return --left > 0;
+			}
+		}));
+	}
+
+	@Test
+	public void readsChunks() throws IOException {
+		for (int length : new int[] { 0, 1, 99, 100, 101, 250 }) {
+			final byte[] bytes = random(length);
+			final ByteArrayOutputStream read = new ByteArrayOutputStream();
+			final List<Integer> lengths = new ArrayList<Integer>();
+			assertEquals(length, Reader.readChunks(file(bytes), 100,
+				new ChunkAction() {
+
+					@Override
+					public boolean useChunk(byte[] chunk, int n) {
+						read.write(chunk, 0, n);
+						lengths.add(n);
+						return true;
+					}
+				}));
+			assertArrayEquals(bytes, read.toByteArray());
+			// all full but the last, which is not empty
+			assertEquals((length + 99) / 100, lengths.size());
+			for (int i = 0; i < lengths.size() - 1; ++i) {
+				assertEquals(100, (int) lengths.get(i));
+			}
+		}
+		// stopped after the first chunk
+		assertEquals(100, Reader.readChunks(file(random(250)), 100,
+			new ChunkAction() {
+
+				@Override
+				public boolean useChunk(byte[] chunk, int length) {
+					return false;
+				}
+			}));
+		try {
+			Reader.readChunks(file(random(1)), 0, null);
+			fail("A chunk size of 0 was taken");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void mappedGetCrossesSegments() throws IOException {
+		// a sparse file a little longer than a segment - no disk used for
+		// the hole
+		final long segment = MappedFile.SEGMENT_SIZE;
+		final File f = tmp.newFile();
+		final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(segment + 4096);
+			raf.seek(segment - 3);
+			raf.write("abcdef".getBytes("US-ASCII"));
+			raf.seek(segment + 4095);
+			raf.write('z');
+		} finally {
+			raf.close();
+		}
+		final MappedFile mapped = Reader.map(f);
+		try {
+			assertEquals(segment + 4096, mapped.length());
+			assertEquals(2, mapped.segmentCount());
+			assertEquals(segment, mapped.segment(0).capacity());
+			assertEquals(4096, mapped.segment(1).capacity());
+			assertEquals('c', mapped.get(segment - 1));
+			assertEquals('d', mapped.get(segment));
+			assertEquals('z', mapped.get(segment + 4095));
+			assertEquals(0, mapped.get(0));
+			// a window over the boundary, and the whole file
+			assertEquals("abcdef", mapped.chars(segment - 3, 6).toString());
+			final CharSequence all = mapped.chars();
+			assertEquals(segment + 4096, all.length());
+			assertEquals('d', all.charAt((int) segment));
+			assertEquals("cd", all.subSequence((int) segment - 1,
+				(int) segment + 1).toString());
+			for (long position : new long[] { -1, segment + 4096 }) {
+				try {
+					mapped.get(position);
+					fail("Read position " + position);
+				} catch (IndexOutOfBoundsException e) {
+					// expected
+				}
+			}
+		} finally {
+			mapped.close();
+		}
+	}
+
+	@Test
+	public void mappedCharsBoundsAndSubSequence() throws IOException {
+		final byte[] bytes = "key=caf\u00e9;next=1".getBytes("ISO-8859-1");
+		final MappedFile mapped = Reader.map(file(bytes));
+		try {
+			assertEquals("key=caf\u00e9;next=1", mapped.chars().toString());
+			final CharSequence value = mapped.chars(4, 4);
+			assertEquals("caf\u00e9", value.toString());
+			assertEquals('\u00e9', value.charAt(3)); // a byte read as a char
+			assertEquals("af", value.subSequence(1, 3).toString());
+			assertEquals("f", value.subSequence(1, 3).subSequence(1, 2)
+				.toString());
+			assertEquals("", value.subSequence(4, 4).toString());
+			assertEquals(0, mapped.chars(bytes.length, 0).length());
+			// searchable as is
+			final Matcher m = Pattern.compile("next=(\\d+)").matcher(
+				mapped.chars());
+			assertTrue(m.find());
+			assertEquals("1", m.group(1));
+			final long[][] ranges = { { -1, 1 }, { 0, -1 },
+					{ 0, bytes.length + 1 }, { bytes.length, 1 },
+					{ Long.MAX_VALUE, 1 } };
+			for (long[] range : ranges) {
+				try {
+					mapped.chars(range[0], (int) range[1]);
+					fail("Chars of " + Arrays.toString(range));
+				} catch (IndexOutOfBoundsException e) {
+					// expected
+				}
+			}
+			for (int index : new int[] { -1, 4 }) {
+				try {
+					value.charAt(index);
+					fail("Char at " + index);
+				} catch (IndexOutOfBoundsException e) {
+					// expected
+				}
+			}
+			final int[][] subs = { { -1, 2 }, { 2, 1 }, { 0, 5 } };
+			for (int[] sub : subs) {
+				try {
+					value.subSequence(sub[0], sub[1]);
+					fail("Subsequence " + Arrays.toString(sub));
+				} catch (IndexOutOfBoundsException e) {
+					// expected
+				}
+			}
+		} finally {
+			mapped.close();
+		}
+	}
+
+	@Test
+	public void mappedFileThrowsOnceClosed() throws IOException {
+		final MappedFile mapped = Reader.map(file("abc".getBytes("US-ASCII")));
+		final CharSequence chars = mapped.chars();
+		assertEquals('a', mapped.get(0));
+		mapped.close();
+		mapped.close(); // idempotent
+		assertEquals(3, mapped.length());
+		assertEquals(3, chars.length());
+		final List<Runnable> calls = Arrays.<Runnable> asList(new Runnable() {
+
+			@Override
+			public void run() {
+				mapped.get(0);
+			}
+		}, new Runnable() {
+
+			@Override
+			public void run() {
+				mapped.segment(0);
+			}
+		}, new Runnable() {
+
+			@Override
+			public void run() {
+				mapped.segmentCount();
+			}
+		}, new Runnable() {
+
+			@Override
+			public void run() {
+				chars.charAt(0); // made before the close - not unmapped
+			}
+		}, new Runnable() {
+
+			@Override
+			public void run() {
+				mapped.chars(0, 1).toString();
+			}
+		});
+		for (int i = 0; i < calls.size(); ++i) {
+			try {
+				calls.get(i).run();
+				fail("Call " + i + " after close");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void mapsEmptyFile() throws IOException {
+		final MappedFile mapped = Reader.map(file(new byte[0]));
+		try {
+			assertEquals(0, mapped.length());
+			assertEquals(1, mapped.segmentCount());
+			assertEquals(0, mapped.segment(0).capacity());
+			assertEquals("", mapped.chars().toString());
+		} finally {
+			mapped.close();
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private File file(byte[] bytes) throws IOException {
+		final File f = tmp.newFile();
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	/** The first max lines of the file, as passed to the action */
+	private static List<String> readLines(File f, final int max)
+			throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		Reader.readLines(f, "UTF-8", new LineAction() {
+
+			@Override
+			public boolean useLine(CharSequence line) {
+				lines.add(line.toString());
+				return lines.size() < max;
+			}
+		});
+		return lines;
+	}
+
+	/** The lines of the text as BufferedReader splits them */
+	private static List<String> lines(String text) throws IOException {
+		final BufferedReader in = new BufferedReader(new StringReader(text));
+		final List<String> lines = new ArrayList<String>();
+		for (String line; (line = in.readLine()) != null;) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	private static String repeat(char c, int count) {
+		final char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static byte[] random(int length) {
+		final byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static String big() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; ++i) {
+			sb.append("line ").append(i).append(" é\n");
+		}
+		return sb.toString();
+	}
+
+	private static byte[] readStream(InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			for (int read; (read = in.read(buffer)) >= 0;) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Reads through a real channel but reports a smaller size */
+	private static final class ShortChannel extends FileChannel {
+
+		private final FileChannel channel;
+		private final long size;
+
+		ShortChannel(FileChannel channel, long size) {
+			this.channel = channel;
+			this.size = size;
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length)
+				throws IOException {
+			return channel.read(dsts, offset, length);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileChannel truncate(long size) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void force(boolean metaData) {}
+
+		@Override
+		public long transferTo(long position, long count,
+				WritableByteChannel target) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position,
+				long count) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return channel.read(dst, position);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void implCloseChannel() {}
+	}
+}
@@ -0,0 +1,215 @@
+package gr.uoa.di.android.helpers.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The compressions and deletions run in the background, so the tests wait
+ * for the segments to settle
+ */
+public class RollingFileTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void rollsOnSize() throws IOException, InterruptedException {
+		final RollingFile rf = Writer.rollingFile(log(), 10, 0, 0);
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try {
+			for (String record : new String[] { "123456", "7890", "abc",
+					"0123456789ab", "x" }) {
+				rf.append(record, "UTF-8");
+				expected.write(record.getBytes("UTF-8"));
+			}
+		} finally {
+			rf.close();
+		}
+		// "123456" "7890" | "abc" | "0123456789ab" (longer, not split) | "x"
+		final List<File> segments = settle(rf, 4, true);
+		assertEquals(4, segments.size());
+		assertArrayEquals(expected.toByteArray(), contents(segments));
+		assertEquals("0123456789ab", new String(gunzip(segments.get(2)),
+			"UTF-8"));
+	}
+
+	@Test
+	public void rollsOnAge() throws IOException, InterruptedException {
+		final RollingFile rf = Writer.rollingFile(log(), 1 << 20, 50, 0);
+		try {
+			rf.append("a", "UTF-8");
+			rf.append("b", "UTF-8");
+			Thread.sleep(80);
+			rf.append("c", "UTF-8"); // the active segment is too old
+			rf.roll();
+			rf.roll(); // empty - no op
+		} finally {
+			rf.close();
+		}
+		final List<File> segments = settle(rf, 2, true);
+		assertEquals("ab", new String(gunzip(segments.get(0)), "UTF-8"));
+		assertEquals("c", new String(gunzip(segments.get(1)), "UTF-8"));
+	}
+
+	@Test
+	public void leftoversAreCompressedOnOpen() throws IOException,
+			InterruptedException {
+		final File log = log();
+		final File dir = log.getParentFile();
+		write(new File(dir, "log.0000000000001"), "left".getBytes("UTF-8"));
+		// a compression interrupted by the process dying
+		final File interrupted = new File(dir, "log.0000000000002.gz.tmp");
+		write(interrupted, new byte[] { 0x1f });
+		final RollingFile rf = Writer.rollingFile(log, 1 << 20, 0, 0);
+		try {
+			assertFalse(interrupted.exists());
+			rf.append("new", "UTF-8");
+		} finally {
+			rf.close();
+		}
+		final List<File> segments = settle(rf, 2, true);
+		assertEquals("log.0000000000001.gz", segments.get(0).getName());
+		assertArrayEquals("leftnew".getBytes("UTF-8"), contents(segments));
+	}
+
+	@Test
+	public void capDeletesTheOldestButNotTheActive() throws IOException,
+			InterruptedException {
+		final File log = log();
+		final File dir = log.getParentFile();
+		for (int i = 1; i <= 3; ++i) {
+			write(new File(dir, "log.000000000000" + i + ".gz"), new byte[100]);
+		}
+		final RollingFile rf = Writer.rollingFile(log, 1 << 20, 0, 250);
+		try {
+			rf.append(new byte[1000]); // the active one is over the cap alone
+			rf.roll(); // the rolled one is compressed, the cap enforced
+			final byte[] active = "active".getBytes("UTF-8");
+			rf.append(active);
+			final List<File> segments = settle(rf, 4, false);
+			// the oldest went first - the rolled one compresses to a few
+			// bytes so two of the old ones fit with it
+			assertEquals("log.0000000000002.gz", segments.get(0).getName());
+			assertEquals("log.0000000000003.gz", segments.get(1).getName());
+			assertArrayEquals(new byte[1000], gunzip(segments.get(2)));
+			assertArrayEquals(active, Reader.read(segments.get(3).getPath()));
+		} finally {
+			rf.close();
+		}
+		// a cap below the size of the active segment never deletes it
+		final RollingFile tiny = Writer.rollingFile(log(), 1 << 20, 0, 1);
+		try {
+			tiny.append("x", "UTF-8");
+			tiny.roll();
+			tiny.append("y", "UTF-8");
+			final List<File> segments = settle(tiny, 1, false);
+			assertFalse(segments.get(0).getName().endsWith(".gz"));
+			tiny.append("z", "UTF-8");
+			assertArrayEquals("yz".getBytes("UTF-8"), Reader.read(segments
+				.get(0).getPath()));
+		} finally {
+			tiny.close();
+		}
+	}
+
+	@Test
+	public void closedFileRejectsAppends() throws IOException {
+		final RollingFile rf = Writer.rollingFile(log(), 10, 0, 0);
+		rf.close();
+		rf.close(); // idempotent
+		try {
+			rf.append(new byte[1]);
+			fail("Appended to a closed file");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			rf.roll();
+			fail("Rolled a closed file");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** A file in a directory of its own */
+	private File log() throws IOException {
+		return new File(tmp.newFolder(), "log");
+	}
+
+	/**
+	 * Waits till there are count segments and all but the last are
+	 * compressed - the last too if closed. Returns them.
+	 */
+	private static List<File> settle(RollingFile rf, int count,
+			boolean closed) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		List<File> segments;
+		while (!settled(segments = rf.segments(), count, closed)) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Segments did not settle : " + segments);
+			Thread.sleep(10);
+		}
+		return segments;
+	}
+
+	private static boolean settled(List<File> segments, int count,
+			boolean closed) {
+		if (segments.size() != count) return false;
+		final int compressed = closed ? count : count - 1;
+		for (int i = 0; i < compressed; ++i) {
+			if (!segments.get(i).getName().endsWith(".gz")) return false;
+		}
+		return true;
+	}
+
+	/** The segments decompressed and concatenated */
+	private static byte[] contents(List<File> segments) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (File segment : segments) {
+			out.write(segment.getName().endsWith(".gz") ? gunzip(segment)
+					: Reader.read(segment.getPath()));
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] gunzip(File file) throws IOException {
+		final InputStream in = new GZIPInputStream(new FileInputStream(file));
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			for (int read; (read = in.read(buffer)) >= 0;) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package gr.uoa.di.android.helpers.files;
+
+import gr.uoa.di.android.helpers.Bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writer (and Appender, AsyncWriter) against the plain ways of writing the
+ * same bytes. Run with a folder to write to - defaults to the temp folder.
+ */
+public final class WriterBenchmark {
+
+	private WriterBenchmark() {}
+
+	public static void main(String[] args) throws Exception {
+		final File dir = new File(args.length > 0 ? args[0]
+			: System.getProperty("java.io.tmpdir"), "WriterBenchmark");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can not create folder " + dir);
+		appendString(dir);
+		writeAtomically(dir);
+		appender(dir);
+		asyncWriter(dir);
+		appendAll(dir);
+	}
+
+	/** append(File, String, String) vs getBytes() plus append(File, byte[]) */
+	static void appendString(final File dir) throws Exception {
+		for (final int length : new int[] { 100, 2000, 100000 }) {
+			final StringBuilder sb = new StringBuilder(length);
+			for (int i = 0; i < length; ++i) {
+				sb.append((char) ('a' + i % 26));
+			}
+			final String data = sb.toString();
+			final int iterations = length > 10000 ? 2000 : 20000;
+			final File bytes = fresh(dir, "bytes");
+			Bench.run("getBytes + append(byte[]) " + length + " chars",
+				iterations, new Bench.Body() {
+
+					@Override
+					public void run(int i) throws Exception {
+						Writer.append(bytes, data.getBytes("UTF-8"));
+					}
+				});
+			final File string = fresh(dir, "string");
+			Bench.run("append(String, UTF-8) " + length + " chars",
+				iterations, new Bench.Body() {
+
+					@Override
+					public void run(int i) throws Exception {
+						Writer.append(string, data, "UTF-8");
+					}
+				});
+		}
+	}
+
+	/**
+	 * writeAtomically() per durability against write() which truncates in
+	 * place - run it on the disk you care about, fsync costs depend on it
+	 */
+	static void writeAtomically(final File dir) throws Exception {
+		final byte[] bytes = new byte[4096];
+		final File plain = fresh(dir, "plain");
+		final OutputStreamAction action = new OutputStreamAction() {
+
+			@Override
+			public void useStream(OutputStream stream) throws IOException {
+				stream.write(bytes);
+			}
+		};
+		Bench.run("write() 4K in place", 200, new Bench.Body() {
+
+			@Override
+			public void run(int i) throws Exception {
+				Writer.write(plain, action, false);
+			}
+		});
+		for (final Writer.Durability durability : Writer.Durability.values()) {
+			final File file = fresh(dir, "atomic" + durability);
+			Bench.run("writeAtomically 4K " + durability, 200,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) throws Exception {
+						Writer.writeAtomically(file, bytes, durability);
+					}
+				});
+		}
+	}
+
+	/** Appender against opening the file per append, 100 byte records */
+	static void appender(final File dir) throws Exception {
+		final byte[] record = new byte[100];
+		for (final int threads : new int[] { 1, 4 }) {
+			final File plain = fresh(dir, "plain");
+			throughput("append(byte[])", threads, 20000, new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					Writer.append(plain, record);
+				}
+			});
+			final File file = fresh(dir, "appender");
+			final Appender appender = Writer.appender(file);
+			throughput("appender()", threads, 20000, new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					appender.append(record);
+				}
+			});
+			appender.close();
+			final File buffered = fresh(dir, "buffered");
+			final Appender batching = Writer.appender(buffered, 64 * 1024, 0,
+				false);
+			throughput("appender(64K)", threads, 20000, new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					batching.append(record);
+				}
+			});
+			batching.close();
+		}
+	}
+
+	/**
+	 * AsyncWriter per overflow policy against writing on the producer's
+	 * thread, 100 byte records into a 1MB buffer - the time and allocation
+	 * per append, the spread of the latencies (disk stalls show in the tail)
+	 * and the throughput of several producers
+	 */
+	static void asyncWriter(final File dir) throws Exception {
+		final byte[] record = new byte[100];
+		final int count = 200000;
+		final File plain = fresh(dir, "plain");
+		latencies("append(byte[])", count, new Bench.Body() {
+
+			@Override
+			public void run(int i) throws Exception {
+				Writer.append(plain, record);
+			}
+		});
+		final File file = fresh(dir, "appender");
+		final Appender appender = Writer.appender(file);
+		latencies("appender()", count, new Bench.Body() {
+
+			@Override
+			public void run(int i) throws Exception {
+				appender.append(record);
+			}
+		});
+		appender.close();
+		for (final AsyncWriter.Overflow overflow : AsyncWriter.Overflow
+			.values()) {
+			final AsyncWriter writer = Writer.asyncWriter(fresh(dir, "async"
+				+ overflow), 1024 * 1024, overflow);
+			final String name = "asyncWriter(1MB, " + overflow + ")";
+			Bench.run(name, count, new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					writer.append(record);
+				}
+			});
+			latencies(name, count, new Bench.Body() {
+
+				@Override
+				public void run(int i) throws Exception {
+					writer.append(record);
+				}
+			});
+			writer.close();
+			System.out.println(String.format(Locale.US,
+				"    written %d, dropped %d", writer.written(),
+				writer.dropped()));
+		}
+		for (final int threads : new int[] { 1, 4 }) {
+			final AsyncWriter writer = Writer.asyncWriter(fresh(dir,
+				"asyncThreads"), 1024 * 1024, AsyncWriter.Overflow.BLOCK);
+			throughput("asyncWriter(1MB, BLOCK)", threads, count,
+				new Bench.Body() {
+
+					@Override
+					public void run(int i) throws Exception {
+						writer.append(record);
+					}
+				});
+			writer.close();
+		}
+	}
+
+	/**
+	 * appendAll() of a batch of records against a loop of append(byte[]), a
+	 * copy of the batch in one array appended at once and - for the framed
+	 * records - a DataOutputStream over a BufferedOutputStream
+	 */
+	static void appendAll(final File dir) throws Exception {
+		for (final int size : new int[] { 100, 4096 }) {
+			for (final int n : new int[] { 100, 1000 }) {
+				final List<byte[]> records = new ArrayList<byte[]>(n);
+				for (int i = 0; i < n; ++i) {
+					records.add(new byte[size]);
+				}
+				final String batch = n + " x " + size + "B";
+				final int iterations = size * n > 1000000 ? 50 : 200;
+				final File loop = fresh(dir, "loop");
+				Bench.run("append(byte[]) loop, " + batch, n > 100 ? 10
+					: iterations, new Bench.Body() {
+
+					@Override
+					public void run(int i) throws Exception {
+						for (byte[] record : records) {
+							Writer.append(loop, record);
+						}
+					}
+				});
+				final File copy = fresh(dir, "copy");
+				Bench.run("copy + append(byte[]), " + batch, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							final byte[] all = new byte[n * size];
+							int at = 0;
+							for (byte[] record : records) {
+								System.arraycopy(record, 0, all, at, size);
+								at += size;
+							}
+							Writer.append(copy, all);
+						}
+					});
+				final File gather = fresh(dir, "gather");
+				Bench.run("appendAll(), " + batch, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							Writer.appendAll(gather, records, false);
+						}
+					});
+				final File data = fresh(dir, "data");
+				Bench.run("framed DataOutputStream, " + batch, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							final DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(
+									data, true), 8192));
+							try {
+								for (byte[] record : records) {
+									out.writeInt(record.length);
+									out.write(record);
+								}
+							} finally {
+								out.close();
+							}
+						}
+					});
+				final File framed = fresh(dir, "framed");
+				Bench.run("framed appendAll(), " + batch, iterations,
+					new Bench.Body() {
+
+						@Override
+						public void run(int i) throws Exception {
+							Writer.appendAll(framed, records, true);
+						}
+					});
+			}
+		}
+	}
+
+	/**
+	 * Times each of count runs of body (after as many warm up runs) and
+	 * prints the median, the 99th and 99.9th percentiles and the maximum
+	 */
+	static void latencies(final String name, final int count,
+			final Bench.Body body) throws Exception {
+		for (int i = 0; i < count; ++i) {
+			body.run(i);
+		}
+		final long[] nanos = new long[count];
+		for (int i = 0; i < count; ++i) {
+			final long start = System.nanoTime();
+			body.run(i);
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		System.out.println(String.format(Locale.US,
+			"%-48s p50 %6d  p99 %7d  p99.9 %8d  max %9d ns", name,
+			nanos[count / 2], nanos[count * 99 / 100],
+			nanos[count * 999 / 1000], nanos[count - 1]));
+	}
+
+	/**
+	 * Runs body perThread times on each of the threads (after a warm up run)
+	 * and prints the operations per second of all the threads together
+	 */
+	static void throughput(final String name, final int threads,
+			final int perThread, final Bench.Body body) throws Exception {
+		for (int i = 0; i < perThread; ++i) {
+			body.run(i);
+		}
+		final Thread[] workers = new Thread[threads];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < threads; ++t) {
+			workers[t] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < perThread; ++i) {
+							body.run(i);
+						}
+					} catch (Exception e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+		}
+		final long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		synchronized (failure) {
+			if (failure[0] != null) throw failure[0];
+		}
+		System.out.println(String.format(Locale.US, "%-48s %12.0f ops/s",
+			name + ", " + threads + " thread(s)", threads * perThread
+				/ seconds));
+	}
+
+	private static File fresh(File dir, String name) {
+		final File file = new File(dir, name);
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+}
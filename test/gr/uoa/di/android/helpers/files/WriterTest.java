@@ -0,0 +1,115 @@
+package gr.uoa.di.android.helpers.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class WriterTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void writeAtomicallyReplacesTheContents() throws IOException {
+		for (Writer.Durability durability : Writer.Durability.values()) {
+			final File file = new File(tmp.getRoot(), durability.name());
+			Writer.writeAtomically(file, "old", "UTF-8", durability);
+			Writer.writeAtomically(file, "new", "UTF-8", durability);
+			assertArrayEquals(durability.name(), "new".getBytes("UTF-8"),
+				Reader.read(file.getPath()));
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+		}
+	}
+
+	@Test
+	public void writeAtomicallyKeepsTheOldContentsOnFailure()
+			throws IOException {
+		final File file = tmp.newFile();
+		Writer.writeAtomically(file, "old", "UTF-8", Writer.Durability.FULL);
+		try {
+			Writer.writeAtomically(file, new OutputStreamAction() {
+
+				@Override
+				public void useStream(OutputStream stream) throws IOException {
+					stream.write("half".getBytes("UTF-8"));
+					throw new IOException("failed");
+				}
+			}, Writer.Durability.FULL);
+			fail("No exception");
+		} catch (IOException e) {
+			// expected
+		}
+		assertArrayEquals("old".getBytes("UTF-8"), Reader.read(file.getPath()));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void syncsDirectoriesOnLinux() throws IOException {
+		assumeTrue(new File("/proc/version").exists());
+		assertTrue(FileUtils.syncDir(tmp.getRoot()));
+	}
+
+	@Test
+	public void appendAllWritesTheRecordsInOrder() throws IOException {
+		// small and big records mixed, more than a chunk of small ones and
+		// more buffers than IOV_MAX
+		final List<byte[]> records = new ArrayList<byte[]>();
+		final Random random = new Random(42);
+		for (int i = 0; i < 3000; ++i) {
+			final int length = i % 7 == 0 ? 1024 + random.nextInt(3000)
+					: random.nextInt(1024);
+			final byte[] record = new byte[length];
+			random.nextBytes(record);
+			records.add(record);
+		}
+		for (boolean framed : new boolean[] { false, true }) {
+			final File file = new File(tmp.getRoot(), "framed" + framed);
+			Writer.append(file, new byte[] { 1, 2, 3 }); // appended after
+			final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(expected);
+			out.write(new byte[] { 1, 2, 3 });
+			for (byte[] record : records) {
+				if (framed) out.writeInt(record.length);
+				out.write(record);
+			}
+			final long written = Writer.appendAll(file, records, framed);
+			assertEquals(expected.size() - 3, written);
+			assertArrayEquals(expected.toByteArray(),
+				Reader.read(file.getPath()));
+		}
+	}
+
+	@Test
+	public void appendAllAdvancesTheBuffers() throws IOException {
+		final ByteBuffer small = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3 });
+		small.position(1);
+		final ByteBuffer big = ByteBuffer.wrap(new byte[5000]);
+		big.position(10);
+		final File file = tmp.newFile();
+		assertEquals(4 + 3 + 4 + 4990, Writer.appendAll(file,
+			new ByteBuffer[] { small, big }, true));
+		assertFalse(small.hasRemaining());
+		assertFalse(big.hasRemaining());
+		final byte[] bytes = Reader.read(file.getPath());
+		assertEquals(4 + 3 + 4 + 4990, bytes.length);
+		assertEquals(3, ByteBuffer.wrap(bytes).getInt());
+		assertEquals(1, bytes[4]);
+	}
+}